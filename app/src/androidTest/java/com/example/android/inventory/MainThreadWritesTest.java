@@ -0,0 +1,249 @@
+package com.example.android.inventory;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.StrictMode;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.EditText;
+import android.widget.PopupMenu;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the catalog's and the editor's writes under a {@link StrictMode} policy that kills the app
+ * on any disk read or write from the main thread, and checks that each write still lands.
+ * <p>
+ * The products are set up and checked from the test thread, which the policy doesn't cover.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MainThreadWritesTest {
+
+    /** How long a write has to land before the test fails */
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Rule
+    public final ActivityTestRule<CatalogActivity> mActivityRule = new ActivityTestRule<>(CatalogActivity.class);
+
+    private final Instrumentation mInstrumentation = InstrumentationRegistry.getInstrumentation();
+    private ContentResolver mContentResolver;
+    private StrictMode.ThreadPolicy mOldPolicy;
+
+    @Before
+    public void setUp() {
+        mContentResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        mContentResolver.delete(ProductEntry.CONTENT_URI, null, null);
+
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mOldPolicy = StrictMode.getThreadPolicy();
+                StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                        .detectDiskReads()
+                        .detectDiskWrites()
+                        .penaltyLog()
+                        .penaltyDeath()
+                        .build());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                StrictMode.setThreadPolicy(mOldPolicy);
+            }
+        });
+    }
+
+    @Test
+    public void catalogActions_writeOffTheMainThread() {
+        CatalogActivity activity = mActivityRule.getActivity();
+
+        selectMenuItem(activity, R.menu.menu_main, R.id.action_insert_product);
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return countProducts() == 1;
+            }
+        });
+        final long id = getOnlyProductId();
+        final int quantity = getQuantity(id);
+
+        // Tap Sale on the product once the list shows it
+        final RecyclerView list = activity.findViewById(R.id.list);
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                final boolean[] clicked = new boolean[1];
+                mInstrumentation.runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (list.getChildCount() > 0) {
+                            clicked[0] = list.getChildAt(0).findViewById(R.id.sale).performClick();
+                        }
+                    }
+                });
+                return clicked[0];
+            }
+        });
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return getQuantity(id) == quantity - 1;
+            }
+        });
+
+        selectMenuItem(activity, R.menu.menu_main, R.id.action_delete_products);
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return countProducts() == 0;
+            }
+        });
+    }
+
+    @Test
+    public void editorSave_writesOffTheMainThread() {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, "Bolts");
+        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, 1999);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 3);
+        values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME, "Acme");
+        values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE, "555-0100");
+        final Uri productUri = mContentResolver.insert(ProductEntry.CONTENT_URI, values);
+
+        Intent intent = new Intent(InstrumentationRegistry.getTargetContext(), EditorActivity.class)
+                .setData(productUri)
+                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        final Activity editor = mInstrumentation.startActivitySync(intent);
+
+        // Change the price once the editor has loaded the product, then save it
+        final EditText nameEditText = editor.findViewById(R.id.edit_product_name);
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                final boolean[] loaded = new boolean[1];
+                mInstrumentation.runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        loaded[0] = nameEditText.length() > 0;
+                    }
+                });
+                return loaded[0];
+            }
+        });
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                EditText priceEditText = editor.findViewById(R.id.edit_product_price);
+                priceEditText.setText("12.34");
+            }
+        });
+        selectMenuItem(editor, R.menu.menu_editor, R.id.action_save);
+
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return getPrice(ContentUris.parseId(productUri)) == 1234;
+            }
+        });
+    }
+
+    /**
+     * Select an item of the given menu on the activity, as tapping it in the app bar would.
+     */
+    private void selectMenuItem(final Activity activity, final int menuResource, final int itemId) {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                PopupMenu popupMenu = new PopupMenu(activity, activity.getWindow().getDecorView());
+                Menu menu = popupMenu.getMenu();
+                popupMenu.getMenuInflater().inflate(menuResource, menu);
+                MenuItem item = menu.findItem(itemId);
+                activity.onOptionsItemSelected(item);
+            }
+        });
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    /**
+     * Check the condition from the test thread until it is met, failing after {@link #TIMEOUT_MILLIS}.
+     */
+    private static void waitFor(Condition condition) {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.isMet()) {
+            if (SystemClock.uptimeMillis() > deadline) {
+                fail("The write didn't land within " + TIMEOUT_MILLIS + " ms");
+            }
+            SystemClock.sleep(50);
+        }
+    }
+
+    private int countProducts() {
+        Cursor cursor = mContentResolver.query(ProductEntry.CONTENT_URI, new String[] { ProductEntry._ID },
+                null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long getOnlyProductId() {
+        Cursor cursor = mContentResolver.query(ProductEntry.CONTENT_URI, new String[] { ProductEntry._ID },
+                null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int getQuantity(long id) {
+        return (int) getLong(id, ProductEntry.COLUMN_PRODUCT_QUANTITY);
+    }
+
+    private long getPrice(long id) {
+        return getLong(id, ProductEntry.COLUMN_PRODUCT_PRICE);
+    }
+
+    private long getLong(long id, String column) {
+        Cursor cursor = mContentResolver.query(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id),
+                new String[] { column }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.android.inventory.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.SupplierEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures how long the catalog takes to read a page of products while another thread keeps
+ * writing, with the rollback journal the database used to have and with write-ahead logging.
+ * <p>
+ * With the rollback journal there is one connection, so a read waits for the write transaction
+ * in progress to end. With write-ahead logging the read takes a connection of its own and reads
+ * the last committed data. The percentiles are logged and reported to the instrumentation as
+ * status, where {@code am instrument -r} prints them. Results are recorded in
+ * {@code benchmarks/wal-baseline.csv}, with the setup they were measured on.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WriteAheadLoggingBenchmark {
+
+    private static final String LOG_TAG = WriteAheadLoggingBenchmark.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "wal-benchmark.db";
+
+    private static final int CATALOG_SIZE = 5000;
+
+    /** Pages read with each journal mode, after as many again to warm up */
+    private static final int READ_COUNT = 300;
+
+    private static final int PAGE_SIZE = 50;
+
+    /** Products each write transaction updates, about the size of a batch of sales */
+    private static final int WRITE_BATCH_SIZE = 100;
+
+    /** The catalog's page query, as the product page loader runs it */
+    private static final String SQL_READ_PAGE =
+            "SELECT " + ProductEntry._ID + ", " + ProductEntry.COLUMN_PRODUCT_NAME + ", " +
+                    ProductEntry.COLUMN_PRODUCT_PRICE + ", " + ProductEntry.COLUMN_PRODUCT_QUANTITY +
+                    " FROM " + ProductEntry.TABLE_NAME + " WHERE " + ProductEntry._ID + " > ? ORDER BY " +
+                    ProductEntry._ID + " LIMIT " + PAGE_SIZE;
+
+    private static final String SQL_WRITE =
+            "UPDATE " + ProductEntry.TABLE_NAME + " SET " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " = " +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + " + 1 WHERE " + ProductEntry._ID + " = ?";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @Test
+    public void readLatencyUnderConcurrentWrites() throws InterruptedException {
+        long[] rollbackIdle = measure(false, false);
+        long[] rollbackLoaded = measure(false, true);
+        long[] walIdle = measure(true, false);
+        long[] walLoaded = measure(true, true);
+
+        Bundle results = new Bundle();
+        report(results, "rollback_idle", rollbackIdle);
+        report(results, "rollback_writes", rollbackLoaded);
+        report(results, "wal_idle", walIdle);
+        report(results, "wal_writes", walLoaded);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+
+        // Timings vary too much between devices and runs to fail on, so only the comparison is logged
+        Log.i(LOG_TAG, String.format(Locale.US, "Reads under writes: p90 %d us with WAL, %d us without",
+                percentileMicros(walLoaded, 90), percentileMicros(rollbackLoaded, 90)));
+    }
+
+    /**
+     * Fill a new database, then time reading {@link #READ_COUNT} pages from it, with a writer
+     * thread running or not. Return the sorted times, in nanoseconds.
+     */
+    private long[] measure(boolean writeAheadLogging, boolean underWrites) throws InterruptedException {
+        mContext.deleteDatabase(DATABASE_NAME);
+        ProductDbHelper dbHelper = new ProductDbHelper(mContext, DATABASE_NAME, writeAheadLogging);
+        final SQLiteDatabase database = dbHelper.getWritableDatabase();
+        try {
+            fill(database);
+
+            final AtomicBoolean stopped = new AtomicBoolean();
+            final AtomicInteger writes = new AtomicInteger();
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(1);
+                    SQLiteStatement statement = database.compileStatement(SQL_WRITE);
+                    try {
+                        while (!stopped.get()) {
+                            database.beginTransaction();
+                            try {
+                                for (int i = 0; i < WRITE_BATCH_SIZE; i++) {
+                                    statement.bindLong(1, 1 + random.nextInt(CATALOG_SIZE));
+                                    statement.executeUpdateDelete();
+                                }
+                                database.setTransactionSuccessful();
+                            } finally {
+                                database.endTransaction();
+                            }
+                            writes.incrementAndGet();
+                        }
+                    } finally {
+                        statement.close();
+                    }
+                }
+            });
+            if (underWrites) {
+                writer.start();
+            }
+
+            Random random = new Random(2);
+            long[] nanos = new long[READ_COUNT];
+            for (int i = -READ_COUNT; i < READ_COUNT; i++) {
+                long start = System.nanoTime();
+                Cursor cursor = database.rawQuery(SQL_READ_PAGE,
+                        new String[] { String.valueOf(random.nextInt(CATALOG_SIZE - PAGE_SIZE)) });
+                try {
+                    while (cursor.moveToNext()) {
+                        cursor.getString(1);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if (i >= 0) {
+                    nanos[i] = System.nanoTime() - start;
+                }
+            }
+
+            stopped.set(true);
+            if (underWrites) {
+                writer.join();
+                assertTrue("The writer never committed", writes.get() > 0);
+            }
+            Arrays.sort(nanos);
+            return nanos;
+        } finally {
+            dbHelper.close();
+            mContext.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    private static void fill(SQLiteDatabase database) {
+        SQLiteStatement statement = database.compileStatement("INSERT INTO " + ProductEntry.TABLE_NAME +
+                " (" + ProductEntry.COLUMN_PRODUCT_NAME + ", " + ProductEntry.COLUMN_PRODUCT_PRICE + ", " +
+                ProductEntry.COLUMN_PRODUCT_QUANTITY + ", " + ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID +
+                ") VALUES (?, ?, ?, ?)");
+        database.beginTransaction();
+        try {
+            database.execSQL("INSERT INTO " + SupplierEntry.TABLE_NAME + " (" + SupplierEntry.COLUMN_SUPPLIER_NAME +
+                    ", " + SupplierEntry.COLUMN_SUPPLIER_PHONE + ") VALUES ('Acme', '555-0100')");
+            for (int i = 0; i < CATALOG_SIZE; i++) {
+                statement.bindString(1, String.format(Locale.US, "Product %07d", i));
+                statement.bindLong(2, 100 + i);
+                statement.bindLong(3, i % 50);
+                statement.bindLong(4, 1);
+                statement.executeInsert();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            statement.close();
+        }
+    }
+
+    private static void report(Bundle results, String name, long[] sortedNanos) {
+        for (int percentile : new int[] { 50, 90, 99 }) {
+            results.putLong(name + "_p" + percentile + "_us", percentileMicros(sortedNanos, percentile));
+        }
+        Log.i(LOG_TAG, String.format(Locale.US, "%s: p50 %d us, p90 %d us, p99 %d us", name,
+                percentileMicros(sortedNanos, 50), percentileMicros(sortedNanos, 90),
+                percentileMicros(sortedNanos, 99)));
+    }
+
+    private static long percentileMicros(long[] sortedNanos, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, index)] / 1000;
+    }
+}
@@ -1,25 +1,48 @@
 package com.example.android.inventory;
 
+import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
+import android.content.Context;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.ParcelFileDescriptor;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.widget.Toast;
 
+import com.example.android.inventory.data.CurrencyFormatter;
+import com.example.android.inventory.data.Prices;
 import com.example.android.inventory.data.ProductContract.ProductEntry;
 import com.example.android.inventory.data.ProductCursorAdapter;
+import com.example.android.inventory.data.ProductExporter;
+import com.example.android.inventory.data.ProductImporter;
+import com.example.android.inventory.data.ProductPageLoader;
+import com.example.android.inventory.data.ProductReports;
+import com.example.android.inventory.data.ProductWriter;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 /**
  * Displays list of products that were entered and stored in the by the inventory app.
@@ -28,9 +51,24 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
 
     private static final String LOG_TAG = CatalogActivity.class.getName();
 
+    /** Load the next page once the list scrolls within this many rows of its end */
+    private static final int PREFETCH_DISTANCE = 20;
+
+    /** Request code for picking the file to import products from */
+    private static final int REQUEST_IMPORT_PRODUCTS = 1;
+
+    /** Request code for choosing the file to export products to */
+    private static final int REQUEST_EXPORT_PRODUCTS = 2;
+
     // This is the Adapter being used to display the list's data.
     private ProductCursorAdapter mProductCursorAdapter;
 
+    // Reports over the products, which are kept until the products change
+    private ProductReports mProductReports;
+
+    // Writes to the products off the UI thread
+    private ProductWriter mProductWriter;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -46,22 +84,16 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
-        // Find the ListView which will be populated with the product data
-        ListView productListView = findViewById(R.id.list);
-
-        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        productListView.setEmptyView(emptyView);
+        // Find the RecyclerView which will be populated with the product data
+        RecyclerView productListView = findViewById(R.id.list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        productListView.setLayoutManager(layoutManager);
+        productListView.addItemDecoration(new DividerItemDecoration(this, DividerItemDecoration.VERTICAL));
 
-        // Setup cursor adapter using cursor from last step
-        mProductCursorAdapter = new ProductCursorAdapter(this, null);
-        // Attach cursor adapter to the ListView
-        productListView.setAdapter(mProductCursorAdapter);
-
-        // Setup item click listener
-        productListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Setup cursor adapter with an item click listener that opens the product in the editor
+        mProductCursorAdapter = new ProductCursorAdapter(this, new ProductCursorAdapter.OnProductClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+            public void onProductClick(long id) {
                 // Create net intent to go to {@link EditorActivity}
                 Intent intent = new Intent(CatalogActivity.this, com.example.android.inventory.EditorActivity.class);
 
@@ -76,11 +108,67 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
                 startActivity(intent);
             }
         });
+        // Attach cursor adapter to the RecyclerView
+        productListView.setAdapter(mProductCursorAdapter);
 
+        // Find the empty view, and only show it when the list has 0 items.
+        final View emptyView = findViewById(R.id.empty_view);
+        mProductCursorAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+
+            private void updateEmptyView() {
+                emptyView.setVisibility(mProductCursorAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+            }
+        });
+
+        // Fetch the next page of products before the list scrolls to the end of those loaded
+        productListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int totalItemCount = layoutManager.getItemCount();
+                if (totalItemCount > 0
+                        && layoutManager.findLastVisibleItemPosition() >= totalItemCount - PREFETCH_DISTANCE) {
+                    Loader<Cursor> loader = getLoaderManager().getLoader(0);
+                    if (loader != null) {
+                        ((ProductPageLoader) loader).loadMore();
+                    }
+                }
+            }
+        });
 
         // Prepare the loader.  Either re-connect with an existing one,
         // or start a new one.
         getLoaderManager().initLoader(0, null, this);
+
+        mProductReports = new ProductReports(getContentResolver());
+        mProductWriter = new ProductWriter(getContentResolver());
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mProductReports.close();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Start writing any sales that are waiting to be batched. The write carries on in the
+        // background without holding up the pause.
+        mProductCursorAdapter.flushSales();
     }
 
     @Override
@@ -102,10 +190,39 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             case R.id.action_delete_products:
                 deleteProducts();
                 return true;
+            // Respond to a click on the "Import Products" menu option
+            case R.id.action_import_products:
+                pickImportFile();
+                return true;
+            // Respond to a click on the "Export Products" menu option
+            case R.id.action_export_products:
+                pickExportFile();
+                return true;
+            // Respond to a click on the "Reports" menu option
+            case R.id.action_show_reports:
+                new ShowReportsTask(this, mProductReports).execute();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_IMPORT_PRODUCTS) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                new ImportProductsTask(getApplicationContext()).execute(data.getData());
+            }
+            return;
+        }
+        if (requestCode == REQUEST_EXPORT_PRODUCTS) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                new ExportProductsTask(getApplicationContext()).execute(data.getData());
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
     //region implementation of LoaderManager.LoaderCallbacks
 
     @Override
@@ -118,20 +235,15 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             ProductEntry.COLUMN_PRODUCT_QUANTITY,
         };
 
-        // Create and return a CursorLoader that will take care of
-        // creating a Cursor for the data being displayed.
-        return new CursorLoader(this,
-        ProductEntry.CONTENT_URI,
-        projection,
-        null,
-        null,
-        null);
+        // Create and return a loader that fetches the products a page at a time, so the
+        // first rows show without waiting for the whole table to load.
+        return new ProductPageLoader(this, projection, ProductPageLoader.DEFAULT_PAGE_SIZE);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Swap the new cursor in.  (The framework will take care of closing the
-        // old cursor once we return.)
+        // Swap the new cursor in.  (The adapter will take care of closing the
+        // old cursor once it's no longer shown.)
         mProductCursorAdapter.swapCursor(data);
     }
 
@@ -153,20 +265,163 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         // Create a new map of values, where column names are the keys
         ContentValues values = new ContentValues();
         values.put(ProductEntry.COLUMN_PRODUCT_NAME, getString(R.string.street_rod_name));
-        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, Float.parseFloat(getString(R.string.street_rod_price)));
+        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, Prices.parse(getString(R.string.street_rod_price)));
         values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, Integer.parseInt(getString(R.string.street_rod_quantity)));
         values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME, getString(R.string.street_rod_supplier_name));
         values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE, getString(R.string.street_rod_supplier_phone));
 
-        // Insert the new row, returning the primary key value of the new row
-        try {
-            Uri uri = getContentResolver().insert(
-                    ProductEntry.CONTENT_URI,
-                    values);
+        // Insert the new row off the UI thread, logging the URI of the new row
+        mProductWriter.insert(ProductEntry.CONTENT_URI, values, new ProductWriter.Callback<Uri>() {
+            @Override
+            public void onSuccess(Uri uri) {
+                Log.i(LOG_TAG, "The uri of the newly inserted row is: " + uri);
+            }
+
+            @Override
+            public void onFailure(RuntimeException ex) {
+                Log.e(LOG_TAG, "There was a problem inserting the product", ex);
+            }
+        });
+    }
+
+    /**
+     * Helper method to let the user pick a CSV or JSON file of products to import.
+     */
+    private void pickImportFile() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("*/*");
+        intent.putExtra(Intent.EXTRA_MIME_TYPES, new String[] {
+                "text/csv", "text/comma-separated-values", "text/plain", "application/json" });
+        startActivityForResult(intent, REQUEST_IMPORT_PRODUCTS);
+    }
 
-            Log.i(LOG_TAG, "The uri of the newly inserted row is: " + uri);
-        } catch (Exception ex) {
-            Log.e(LOG_TAG, "There was a problem inserting the product", ex);
+    /**
+     * Streams the products in the given file into the products table off the UI thread, then
+     * reports how many were imported and rejected.
+     */
+    private static class ImportProductsTask extends AsyncTask<Uri, Void, ProductImporter.Result> {
+
+        private final Context mContext;
+
+        ImportProductsTask(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        protected ProductImporter.Result doInBackground(Uri... uris) {
+            Uri uri = uris[0];
+            ContentResolver contentResolver = mContext.getContentResolver();
+            ProductImporter importer = new ProductImporter(contentResolver);
+
+            // Files that don't say they are JSON are treated as CSV
+            String type = contentResolver.getType(uri);
+            boolean json = (type != null && type.contains("json"))
+                    || String.valueOf(uri.getLastPathSegment()).endsWith(".json");
+
+            InputStream in = null;
+            try {
+                in = contentResolver.openInputStream(uri);
+                if (in == null) {
+                    return null;
+                }
+                Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+                return json ? importer.importJson(reader) : importer.importCsv(reader);
+            } catch (IOException | RuntimeException ex) {
+                Log.e(LOG_TAG, "There was a problem importing products from " + uri, ex);
+                return null;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(ProductImporter.Result result) {
+            if (result == null) {
+                Toast.makeText(mContext, R.string.import_products_failed, Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            for (ProductImporter.RowError error : result.getErrors()) {
+                Log.w(LOG_TAG, "Rejected import row " + error);
+            }
+            Toast.makeText(mContext,
+                    mContext.getString(R.string.import_products_result,
+                            result.getRowsImported(), result.getErrorCount()),
+                    Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * Helper method to let the user choose where to export the products to.
+     */
+    private void pickExportFile() {
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("text/csv");
+        intent.putExtra(Intent.EXTRA_TITLE, getString(R.string.export_products_file_name));
+        startActivityForResult(intent, REQUEST_EXPORT_PRODUCTS);
+    }
+
+    /**
+     * Writes the products table to the given file as CSV off the UI thread, then reports how
+     * many products were exported.
+     */
+    private static class ExportProductsTask extends AsyncTask<Uri, Void, Integer> {
+
+        private final Context mContext;
+
+        ExportProductsTask(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        protected Integer doInBackground(Uri... uris) {
+            Uri uri = uris[0];
+            ContentResolver contentResolver = mContext.getContentResolver();
+            ProductExporter exporter = new ProductExporter(contentResolver);
+
+            ParcelFileDescriptor pfd = null;
+            FileOutputStream out = null;
+            try {
+                pfd = contentResolver.openFileDescriptor(uri, "w");
+                if (pfd == null) {
+                    return null;
+                }
+                out = new FileOutputStream(pfd.getFileDescriptor());
+                // Replace anything already in the file
+                out.getChannel().truncate(0);
+                return exporter.exportCsv(out.getChannel(), null, null);
+            } catch (IOException | RuntimeException ex) {
+                Log.e(LOG_TAG, "There was a problem exporting products to " + uri, ex);
+                return null;
+            } finally {
+                try {
+                    if (out != null) {
+                        out.close();
+                    }
+                    if (pfd != null) {
+                        pfd.close();
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer rowsWritten) {
+            if (rowsWritten == null) {
+                Toast.makeText(mContext, R.string.export_products_failed, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            Toast.makeText(mContext,
+                    mContext.getString(R.string.export_products_result, rowsWritten),
+                    Toast.LENGTH_SHORT).show();
         }
     }
 
@@ -174,16 +429,71 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
      * Helper method to delete all products table rows.
      */
     private void deleteProducts() {
-        // Delete all rows returning the number deleted
-        try {
-            int numberDeleted = getContentResolver().delete(
-                    ProductEntry.CONTENT_URI,
-                    null,
-                    null);
-
-            Log.i(LOG_TAG, "Deleted rows: " + numberDeleted);
-        } catch (Exception ex) {
-            Log.e(LOG_TAG, "There was a problem deleting the products", ex);
+        // Delete all rows off the UI thread, logging the number deleted
+        mProductWriter.delete(ProductEntry.CONTENT_URI, null, null, new ProductWriter.Callback<Integer>() {
+            @Override
+            public void onSuccess(Integer numberDeleted) {
+                Log.i(LOG_TAG, "Deleted rows: " + numberDeleted);
+            }
+
+            @Override
+            public void onFailure(RuntimeException ex) {
+                Log.e(LOG_TAG, "There was a problem deleting the products", ex);
+            }
+        });
+    }
+
+    /**
+     * Computes a summary of the product reports off the UI thread, then shows it in a dialog if
+     * the activity is still showing. The activity is only weakly held, so that a slow report
+     * doesn't keep a closed activity alive.
+     */
+    private static class ShowReportsTask extends AsyncTask<Void, Void, String> {
+
+        private final WeakReference<Activity> mActivity;
+        private final Context mContext;
+        private final ProductReports mProductReports;
+
+        ShowReportsTask(Activity activity, ProductReports productReports) {
+            mActivity = new WeakReference<>(activity);
+            mContext = activity.getApplicationContext();
+            mProductReports = productReports;
+        }
+
+        @Override
+        protected String doInBackground(Void... voids) {
+            try {
+                String none = mContext.getString(R.string.reports_none);
+
+                List<ProductReports.ProductTotal> topProducts = mProductReports.getTopByQuantity(1);
+                List<ProductReports.SupplierTotal> suppliers = mProductReports.getValueBySupplier();
+                return mContext.getString(R.string.reports_summary,
+                        CurrencyFormatter.getInstance().formatToString(mProductReports.getTotalValue()),
+                        mProductReports.getOutOfStock().size(),
+                        mProductReports.getLowStockCount(),
+                        topProducts.isEmpty() ? none : topProducts.get(0).getName(),
+                        suppliers.isEmpty() ? none : suppliers.get(0).getName());
+            } catch (RuntimeException ex) {
+                Log.e(LOG_TAG, "There was a problem computing the reports", ex);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String summary) {
+            Activity activity = mActivity.get();
+            if (activity == null || activity.isFinishing() || activity.isDestroyed()) {
+                return;
+            }
+            if (summary == null) {
+                Toast.makeText(activity, R.string.reports_failed, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            new AlertDialog.Builder(activity)
+                    .setTitle(R.string.show_reports)
+                    .setMessage(summary)
+                    .setPositiveButton(android.R.string.ok, null)
+                    .show();
         }
     }
 }
@@ -2,7 +2,11 @@ package com.example.android.inventory;
 
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -28,8 +32,12 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.example.android.inventory.data.Prices;
 import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.StockMovementEntry;
+import com.example.android.inventory.data.ProductWriter;
 
+import java.util.ArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -45,12 +53,18 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     /** EditText field to enter the product's name */
     private EditText mNameEditText;
 
+    /** EditText field to enter the product's SKU or barcode */
+    private EditText mSkuEditText;
+
     /** EditText field to enter the product's price */
     private EditText mPriceEditText;
 
     /** EditText field to enter the quantity of product's */
     private TextView mQuantityTextView;
 
+    /** EditText field to enter the quantity at which the product should be reordered */
+    private EditText mReorderThresholdEditText;
+
     /** EditText field to enter the product supplier's name */
     private EditText mSupplierNameEditText;
 
@@ -63,6 +77,20 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     // Edit dirty flag to avoid missing edits before save is clicked
     private boolean mProductHasChanged = false;
 
+    // The quantity of the product being edited when it was last loaded. Saving writes the
+    // difference from it, so sales and merged stock since then aren't overwritten.
+    private int mLoadedQuantity;
+
+    // Writes the product off the UI thread
+    private ProductWriter mProductWriter;
+
+    // Set while a save is being written, so that it isn't submitted twice
+    private boolean mSaving = false;
+
+    // Set once the editor is destroyed, for example by a rotation while a save is being written.
+    // The save's outcome is then ignored, since there is no editor left to close or toast over.
+    private boolean mDestroyed = false;
+
     ///endregion
 
     @Override
@@ -70,6 +98,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_editor);
 
+        mProductWriter = new ProductWriter(getContentResolver());
+
         // Examine the intent that was used to launch this activity
         // in order to figure out if were creating a new product or editing an existing one.
         Intent intent = getIntent();
@@ -94,8 +124,10 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
         // Find all relevant views that we will need to read user input from
         mNameEditText = findViewById(R.id.edit_product_name);
+        mSkuEditText = findViewById(R.id.edit_product_sku);
         mPriceEditText = findViewById(R.id.edit_product_price);
         mQuantityTextView = findViewById(R.id.quantity);
+        mReorderThresholdEditText = findViewById(R.id.edit_product_reorder_threshold);
         mSupplierNameEditText = findViewById(R.id.edit_product_supplier_name);
         mSupplierPhoneEditText = findViewById(R.id.edit_product_supplier_phone);
 
@@ -103,7 +135,9 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
         // Listen for unsaved edits
         mNameEditText.setOnTouchListener(mTouchListener);
+        mSkuEditText.setOnTouchListener(mTouchListener);
         mQuantityTextView.setOnTouchListener(mTouchListener);
+        mReorderThresholdEditText.setOnTouchListener(mTouchListener);
         mPriceEditText.setOnTouchListener(mTouchListener);
         mSupplierNameEditText.setOnTouchListener(mTouchListener);
         mSupplierPhoneEditText.setOnTouchListener(mTouchListener);
@@ -148,6 +182,12 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         });
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDestroyed = true;
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_editor.xml file.
@@ -162,10 +202,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save product to database
-                if (saveProduct()) {
-                    finish();
-                }
+                // Save product to database. The editor closes once the product is saved.
+                saveProduct();
                 break;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
@@ -255,8 +293,10 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         String[] projection = new String[] {
                 ProductEntry._ID,
                 ProductEntry.COLUMN_PRODUCT_NAME,
+                ProductEntry.COLUMN_PRODUCT_SKU,
                 ProductEntry.COLUMN_PRODUCT_PRICE,
                 ProductEntry.COLUMN_PRODUCT_QUANTITY,
+                ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD,
                 ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME,
                 ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE,
         };
@@ -282,10 +322,14 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
         mNameEditText.setText(
             data.getString(data.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_NAME)));
+        mSkuEditText.setText(
+            data.getString(data.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_SKU)));
         mPriceEditText.setText(
-            String.valueOf(data.getFloat(data.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_PRICE))));
-        mQuantityTextView.setText(
-            String.valueOf(data.getInt(data.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_QUANTITY))));
+            Prices.toString(data.getLong(data.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_PRICE))));
+        mLoadedQuantity = data.getInt(data.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_QUANTITY));
+        mQuantityTextView.setText(String.valueOf(mLoadedQuantity));
+        mReorderThresholdEditText.setText(
+            String.valueOf(data.getInt(data.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD))));
         mSupplierNameEditText.setText(
             data.getString(data.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME)));
         mSupplierPhoneEditText.setText(
@@ -299,8 +343,10 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         final String EMPTY_STRING = "";
 
         mNameEditText.setText(EMPTY_STRING);
+        mSkuEditText.setText(EMPTY_STRING);
         mPriceEditText.setText(EMPTY_STRING);
         mQuantityTextView.setText(EMPTY_STRING);
+        mReorderThresholdEditText.setText(EMPTY_STRING);
         mSupplierNameEditText.setText(EMPTY_STRING);
         mSupplierPhoneEditText.setText(EMPTY_STRING);
     }
@@ -309,11 +355,21 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     //region Helpers
 
-    private boolean saveProduct()
+    /**
+     * Write the product in the editor to the database off the UI thread, then close the editor,
+     * or stay open and show the problem if the product can't be saved.
+     */
+    private void saveProduct()
     {
+        if (mSaving) {
+            return;
+        }
+
         String name = mNameEditText.getText().toString().trim();
+        String sku = mSkuEditText.getText().toString().trim();
         String price = mPriceEditText.getText().toString().trim();
         String quantity = mQuantityTextView.getText().toString().trim();
+        String reorderThreshold = mReorderThresholdEditText.getText().toString().trim();
         String supplierName = mSupplierNameEditText.getText().toString().trim();
         String supplierPhone = mSupplierPhoneEditText.getText().toString().trim();
 
@@ -321,65 +377,107 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         if (TextUtils.isEmpty(name) && TextUtils.isEmpty(price) && TextUtils.isEmpty(quantity)
                 && TextUtils.isEmpty(supplierName) && TextUtils.isEmpty(supplierPhone)) {
             // Don't save
-            return true;
+            finish();
+            return;
         }
 
         // Create a new map of values, where column names are the keys
         ContentValues values = new ContentValues();
         values.put(ProductEntry.COLUMN_PRODUCT_NAME, name);
-        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, price);
+        if (TextUtils.isEmpty(sku)) {
+            values.putNull(ProductEntry.COLUMN_PRODUCT_SKU);
+        } else {
+            values.put(ProductEntry.COLUMN_PRODUCT_SKU, sku);
+        }
+        Prices.putAmount(values, price);
         values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        // No threshold means the product is flagged once it is out of stock
+        values.put(ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD,
+                TextUtils.isEmpty(reorderThreshold) ? "0" : reorderThreshold);
         values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME, supplierName);
         values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE, supplierPhone);
 
-        boolean success = false;
-        try {
-            if (mCurrentProductUri == null) {
-            // Insert the new row, returning the primary key value of the new row
-                 Uri uri = getContentResolver().insert(
-                        ProductEntry.CONTENT_URI,
-                        values);
+        ProductWriter.Callback<Uri> insertCallback = new ProductWriter.Callback<Uri>() {
+            @Override
+            public void onSuccess(Uri uri) {
+                onProductSaved(uri != null);
+            }
 
-                if (uri != null)
-                    success = true;
+            @Override
+            public void onFailure(RuntimeException ex) {
+                onProductSaveFailed(ex);
             }
-            else {
-                // Update the existing row, returning the primary key value of the existing row
-                int rowsUpdated;
-                rowsUpdated = getContentResolver().update(
-                        mCurrentProductUri,
-                        values,
-                        null,
-                        null
-                );
-
-                if (rowsUpdated == 1)
-                    success = true;
+        };
+        ProductWriter.Callback<ContentProviderResult[]> updateCallback =
+                new ProductWriter.Callback<ContentProviderResult[]>() {
+            @Override
+            public void onSuccess(ContentProviderResult[] results) {
+                onProductSaved(results[0].count == 1);
             }
+
+            @Override
+            public void onFailure(RuntimeException ex) {
+                onProductSaveFailed(ex);
+            }
+        };
+
+        mSaving = true;
+        if (mCurrentProductUri == null) {
+            // Insert the new row
+            mProductWriter.insert(ProductEntry.CONTENT_URI, values, insertCallback);
         }
-        catch (IllegalArgumentException ex) {
-            Toast toast = Toast.makeText(this, ex.getMessage(), Toast.LENGTH_SHORT);
-            toast.setGravity(Gravity.TOP, 0, 0);
-            toast.show();
-            return false;
-        }
-        catch (Exception ex) {
-            Log.e(LOG_TAG, "There was a problem with saving product: ", ex);
-            Toast toast = Toast.makeText(this, R.string.editor_product_save_failed, Toast.LENGTH_SHORT);
-            toast.setGravity(Gravity.TOP, 0, 0);
-            toast.show();
-            return false;
+        else {
+            // Update the existing row, and record a change in quantity as a stock adjustment in
+            // the same transaction. Writing the quantity itself would undo any stock movements
+            // made since the product was loaded.
+            values.remove(ProductEntry.COLUMN_PRODUCT_QUANTITY);
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>(2);
+            operations.add(ContentProviderOperation.newUpdate(mCurrentProductUri).withValues(values).build());
+            int quantityChange = TextUtils.isEmpty(quantity) ? 0 : Integer.parseInt(quantity) - mLoadedQuantity;
+            if (quantityChange != 0) {
+                operations.add(ContentProviderOperation.newInsert(StockMovementEntry.CONTENT_URI)
+                        .withValue(StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID,
+                                ContentUris.parseId(mCurrentProductUri))
+                        .withValue(StockMovementEntry.COLUMN_MOVEMENT_TYPE, StockMovementEntry.TYPE_ADJUSTMENT)
+                        .withValue(StockMovementEntry.COLUMN_MOVEMENT_QUANTITY, quantityChange)
+                        .build());
+            }
+            mProductWriter.applyBatch(operations, updateCallback);
         }
+    }
 
-        // Show a toast message depending on whether or not the insert/update was successful
-        String message = getString(R.string.editor_product_save_successful);
-        if (!success) {
-            getString(R.string.editor_product_save_failed);
+    /**
+     * Called once a save has been written. Show a toast message depending on whether or not the
+     * insert/update was successful, and close the editor.
+     */
+    private void onProductSaved(boolean success) {
+        mSaving = false;
+        if (mDestroyed) {
+            return;
         }
-        Toast.makeText(this, message,
-                Toast.LENGTH_SHORT).show();
+        int message = success ? R.string.editor_product_save_successful : R.string.editor_product_save_failed;
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+        finish();
+    }
 
-        return success;
+    /**
+     * Called if a save was rejected. Keep the editor open so that the product can be corrected.
+     */
+    private void onProductSaveFailed(RuntimeException ex) {
+        mSaving = false;
+        if (mDestroyed) {
+            Log.e(LOG_TAG, "There was a problem with saving product: ", ex);
+            return;
+        }
+        Toast toast;
+        if (ex instanceof IllegalArgumentException) {
+            toast = Toast.makeText(this, ex.getMessage(), Toast.LENGTH_SHORT);
+        } else {
+            Log.e(LOG_TAG, "There was a problem with saving product: ", ex);
+            toast = Toast.makeText(this, R.string.editor_product_save_failed, Toast.LENGTH_SHORT);
+        }
+        toast.setGravity(Gravity.TOP, 0, 0);
+        toast.show();
     }
 
     /**
@@ -438,20 +536,27 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     }
 
     /**
-     * Perform the deletion of the product in the database.
+     * Perform the deletion of the product in the database, off the UI thread. The editor closes
+     * straight away, so the outcome is shown with the application context.
      */
     private void deleteProduct() {
-        int rowsDeleted = getContentResolver().delete(
-                mCurrentProductUri,
-                null,
-                null
-        );
+        final Context context = getApplicationContext();
+        mProductWriter.delete(mCurrentProductUri, null, null, new ProductWriter.Callback<Integer>() {
+            @Override
+            public void onSuccess(Integer rowsDeleted) {
+                // Show a toast message depending if the delete was successful
+                int message = rowsDeleted == 1
+                        ? R.string.editor_delete_product_successful
+                        : R.string.editor_delete_product_failed;
+                Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
+            }
 
-        // Show a toast message depending if the delete was successful
-        String message = getString(R.string.editor_delete_product_successful);
-        if (rowsDeleted != 1)
-            getString(R.string.editor_delete_product_failed);
-        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+            @Override
+            public void onFailure(RuntimeException ex) {
+                Log.e(LOG_TAG, "There was a problem deleting the product", ex);
+                Toast.makeText(context, R.string.editor_delete_product_failed, Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     //endregion
@@ -0,0 +1,35 @@
+package com.example.android.inventory;
+
+import android.app.Application;
+import android.os.StrictMode;
+
+import com.example.android.inventory.sync.SyncService;
+
+/**
+ * The inventory app. In debug builds it turns on {@link StrictMode}, so that any database or file
+ * access that finds its way back onto the main thread is logged. It also schedules the
+ * {@link LowStockService} check and the {@link SyncService} sync.
+ */
+public class InventoryApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        if (BuildConfig.DEBUG) {
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .penaltyLog()
+                    .build());
+            StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                    .detectLeakedSqlLiteObjects()
+                    .detectLeakedClosableObjects()
+                    .penaltyLog()
+                    .build());
+        }
+
+        LowStockService.schedule(this);
+        SyncService.schedule(this);
+    }
+}
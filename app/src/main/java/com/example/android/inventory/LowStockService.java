@@ -0,0 +1,189 @@
+package com.example.android.inventory;
+
+import android.app.AlarmManager;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v4.app.JobIntentService;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.inventory.data.ProductContract;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks in the background for products that are low on stock, that is at or below their
+ * {@link ProductEntry#COLUMN_PRODUCT_REORDER_THRESHOLD}, and posts a notification listing them.
+ * <p>
+ * The check runs about once an hour, from an alarm set by {@link #schedule}. It only looks at
+ * products changed since the last check: it keeps the latest product version it has seen as a
+ * watermark, and the version index holds each product's quantity and threshold, so products
+ * that aren't low are skipped without reading their rows. A check costs in proportion to the
+ * changes since the last one, not to the size of the catalog.
+ */
+public class LowStockService extends JobIntentService {
+
+    private static final String LOG_TAG = LowStockService.class.getSimpleName();
+
+    /** Unique ID of the low stock work, within the app */
+    private static final int JOB_ID = 1000;
+
+    private static final int NOTIFICATION_ID = 1;
+    private static final String CHANNEL_ID = "low_stock";
+
+    /** Preferences that hold the watermark, the latest product version already checked */
+    private static final String PREFS_NAME = "low_stock";
+    private static final String PREF_VERSION = "version";
+
+    /** Most products listed in the notification */
+    private static final int MAX_LISTED_PRODUCTS = 5;
+
+    /** Products changed between two versions that are at or below their reorder threshold */
+    private static final String LOW_STOCK_SELECTION =
+            ProductEntry.COLUMN_PRODUCT_VERSION + " > ? AND " +
+                    ProductEntry.COLUMN_PRODUCT_VERSION + " <= ? AND " +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + " <= " +
+                    ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD;
+
+    private static final String[] LOW_STOCK_PROJECTION = new String[] {
+            ProductEntry._ID,
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+    };
+
+    /**
+     * Set the hourly alarm that runs the check, unless it is already set. Alarms don't survive a
+     * reboot, so this is called every time the app starts.
+     */
+    public static void schedule(Context context) {
+        Intent intent = new Intent(context, AlarmReceiver.class);
+        if (PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+
+        // The check can wait for the device to wake up, and for other alarms to batch with
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager != null) {
+            alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                    SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR,
+                    AlarmManager.INTERVAL_HOUR, PendingIntent.getBroadcast(context, 0, intent, 0));
+        }
+    }
+
+    /**
+     * Receives the alarm and hands the check to the service, which runs it as a job where
+     * background services aren't allowed.
+     */
+    public static class AlarmReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            enqueueWork(context, LowStockService.class, JOB_ID, intent);
+        }
+    }
+
+    @Override
+    protected void onHandleWork(@NonNull Intent intent) {
+        SharedPreferences preferences = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        long lastVersion = preferences.getLong(PREF_VERSION, 0);
+
+        ContentResolver contentResolver = getContentResolver();
+        Bundle result = contentResolver.call(ProductEntry.CONTENT_URI,
+                ProductContract.METHOD_GET_VERSION, null, null);
+        if (result == null) {
+            return;
+        }
+        long version = result.getLong(ProductContract.EXTRA_VERSION);
+        if (version == lastVersion) {
+            // Nothing has changed
+            return;
+        }
+        if (version < lastVersion) {
+            // The database was recreated, so every product is new
+            lastVersion = 0;
+        }
+
+        // Products changed after the version was read are left for the next check
+        Cursor cursor = contentResolver.query(ProductEntry.CONTENT_URI, LOW_STOCK_PROJECTION,
+                LOW_STOCK_SELECTION,
+                new String[] { String.valueOf(lastVersion), String.valueOf(version) },
+                ProductEntry.COLUMN_PRODUCT_QUANTITY + " ASC");
+        if (cursor == null) {
+            return;
+        }
+        int lowCount;
+        List<String> lines = new ArrayList<>();
+        try {
+            lowCount = cursor.getCount();
+            int nameColumnIndex = cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_NAME);
+            int quantityColumnIndex = cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_QUANTITY);
+            while (lines.size() < MAX_LISTED_PRODUCTS && cursor.moveToNext()) {
+                lines.add(getString(R.string.low_stock_product,
+                        cursor.getString(nameColumnIndex), cursor.getInt(quantityColumnIndex)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Log.i(LOG_TAG, "Found " + lowCount + " products low on stock between versions " +
+                lastVersion + " and " + version);
+        if (lowCount > 0) {
+            notifyLowStock(lowCount, lines);
+        }
+
+        // Only move the watermark once the products have been reported
+        preferences.edit().putLong(PREF_VERSION, version).apply();
+    }
+
+    /**
+     * Post the notification that lists the products low on stock, which opens the catalog when
+     * tapped.
+     *
+     * @param lowCount number of products low on stock
+     * @param lines    a line for each of the first products, lowest stock first
+     */
+    private void notifyLowStock(int lowCount, List<String> lines) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager notificationManager =
+                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            if (notificationManager != null) {
+                notificationManager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                        getString(R.string.low_stock_channel_name), NotificationManager.IMPORTANCE_DEFAULT));
+            }
+        }
+
+        String title = getResources().getQuantityString(R.plurals.low_stock_title, lowCount, lowCount);
+        NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle()
+                .setBigContentTitle(title);
+        for (String line : lines) {
+            style.addLine(line);
+        }
+
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, CatalogActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        NotificationManagerCompat.from(this).notify(NOTIFICATION_ID,
+                new NotificationCompat.Builder(this, CHANNEL_ID)
+                        .setSmallIcon(R.mipmap.ic_launcher)
+                        .setContentTitle(title)
+                        .setContentText(TextUtils.join(", ", lines))
+                        .setStyle(style)
+                        .setNumber(lowCount)
+                        .setContentIntent(contentIntent)
+                        .setAutoCancel(true)
+                        .build());
+    }
+}
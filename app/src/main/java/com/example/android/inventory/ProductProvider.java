@@ -1,21 +1,50 @@
 package com.example.android.inventory;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.example.android.inventory.data.ProductCache;
+import com.example.android.inventory.data.ProductChange;
 import com.example.android.inventory.data.ProductContract;
 import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.StockCounterEntry;
+import com.example.android.inventory.data.ProductContract.StockMovementEntry;
+import com.example.android.inventory.data.ProductContract.SupplierEntry;
+import com.example.android.inventory.data.ProductContract.TombstoneEntry;
 import com.example.android.inventory.data.ProductDbHelper;
+import com.example.android.inventory.data.Prices;
+import com.example.android.inventory.data.ProductValidator;
+import com.example.android.inventory.data.StockLedger;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * {@link ContentProvider} for inventory app.
@@ -28,12 +57,159 @@ public class ProductProvider extends ContentProvider {
     /** Database helper object */
     private ProductDbHelper mDbHelper;
 
+    /** Recently read products, which single product queries are answered from */
+    private ProductCache mProductCache;
+
+    /** Calls, rows and latency of each operation, see {@link ProductContract#METHOD_GET_METRICS} */
+    private final ProviderMetrics mMetrics = new ProviderMetrics();
+
+    /**
+     * Set while {@link #applyBatch} is running on the calling thread, so the individual operations
+     * don't each fire a change notification.
+     */
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<>();
+
+    /** Insert statement compiled once per {@link #bulkInsert} and reused for every row */
+    private static final String SQL_INSERT_PRODUCT =
+            "INSERT INTO " + ProductEntry.TABLE_NAME + " (" +
+                    ProductEntry.COLUMN_PRODUCT_NAME + ", " +
+                    ProductEntry.COLUMN_PRODUCT_PRICE + ", " +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID + ", " +
+                    ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SKU + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+    /** Finds the supplier with a given name and phone */
+    private static final String SQL_FIND_SUPPLIER =
+            "SELECT " + SupplierEntry._ID + " FROM " + SupplierEntry.TABLE_NAME +
+                    " WHERE " + SupplierEntry.COLUMN_SUPPLIER_NAME + " = ? AND " +
+                    SupplierEntry.COLUMN_SUPPLIER_PHONE + " = ?";
+
+    /** Adds a supplier */
+    private static final String SQL_INSERT_SUPPLIER =
+            "INSERT INTO " + SupplierEntry.TABLE_NAME + " (" +
+                    SupplierEntry.COLUMN_SUPPLIER_NAME + ", " +
+                    SupplierEntry.COLUMN_SUPPLIER_PHONE + ") VALUES (?, ?)";
+
+    /**
+     * Takes stock for a sale, but only if there is enough of it, so concurrent sales can never
+     * take the quantity below zero or overwrite each other
+     */
+    private static final String SQL_SELL_PRODUCT =
+            "UPDATE " + ProductEntry.TABLE_NAME +
+                    " SET " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " = " +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + " - ?" +
+                    " WHERE " + ProductEntry._ID + " = ? AND " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " >= ?";
+
+    /** Takes stock for a sale whose quantity has already been checked */
+    private static final String SQL_TAKE_STOCK =
+            "UPDATE " + ProductEntry.TABLE_NAME +
+                    " SET " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " = " +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + " - ?" +
+                    " WHERE " + ProductEntry._ID + " = ?";
+
+    /**
+     * Applies a stock movement to a product. A movement that takes stock only applies if it leaves
+     * the quantity at zero or more, but one that adds stock always does, even to a quantity that
+     * merged sales from other devices have left below zero.
+     */
+    private static final String SQL_MOVE_STOCK =
+            "UPDATE " + ProductEntry.TABLE_NAME +
+                    " SET " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " = " +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + " + ?" +
+                    " WHERE " + ProductEntry._ID + " = ? AND (? > 0 OR " +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + " + ? >= 0)";
+
+    /**
+     * Applies the change in stock that merging another device's counter adds up to. Unlike a
+     * movement made here, it applies even if it leaves the quantity below zero, which means the
+     * devices together sold more than there was.
+     */
+    private static final String SQL_MERGE_STOCK =
+            "UPDATE " + ProductEntry.TABLE_NAME +
+                    " SET " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " = " +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + " + ?" +
+                    " WHERE " + ProductEntry._ID + " = ?";
+
+    /** Reads the ID of this device's stock counters */
+    private static final String SQL_QUERY_DEVICE_ID =
+            "SELECT " + StockCounterEntry.COLUMN_COUNTER_DEVICE_ID + " FROM " + StockCounterEntry.DEVICE_TABLE_NAME;
+
+    /** Reads the latest product version handed out */
+    private static final String SQL_QUERY_VERSION =
+            "SELECT " + ProductEntry.COLUMN_PRODUCT_VERSION + " FROM " + ProductEntry.VERSION_TABLE_NAME;
+
+    /** Reads the stock level of a single product */
+    private static final String SQL_QUERY_QUANTITY =
+            "SELECT " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " FROM " + ProductEntry.TABLE_NAME +
+                    " WHERE " + ProductEntry._ID + " = ?";
+
+    /** The columns a sale changes, as described in its change notification */
+    private static final String[] QUANTITY_COLUMNS = new String[] { ProductEntry.COLUMN_PRODUCT_QUANTITY };
+
     /** URI matcher code for the content URI for the products table */
     private static final int PRODUCTS = 100;
 
     /** URI matcher code for the content URI for a single product in the products table */
     private static final int PRODUCT_ID = 101;
 
+    /** URI matcher code for the content URI for searching the products table */
+    private static final int SEARCH = 102;
+
+    /** URI matcher code for the content URI for looking up a product by SKU */
+    private static final int SKU = 103;
+
+    /** URI matcher code for the content URI for the suppliers table */
+    private static final int SUPPLIERS = 200;
+
+    /** URI matcher code for the content URI for a single supplier */
+    private static final int SUPPLIER_ID = 201;
+
+    /** URI matcher code for the content URI for the products of a single supplier */
+    private static final int SUPPLIER_PRODUCTS = 202;
+
+    /** URI matcher code for the content URI for the stock movements table */
+    private static final int MOVEMENTS = 300;
+
+    /** URI matcher code for the content URI for the stock movements of a single product */
+    private static final int PRODUCT_MOVEMENTS = 301;
+
+    /** URI matcher code for the content URI for the tombstones of deleted products */
+    private static final int TOMBSTONES = 400;
+
+    /** URI matcher code for the stock counters table */
+    private static final int COUNTERS = 500;
+
+    /** Tables joined for a search: each product and its supplier with its row in the full-text index */
+    private static final String SEARCH_TABLES =
+            ProductEntry.VIEW_NAME + " JOIN " + ProductEntry.FTS_TABLE_NAME + " ON " +
+                    ProductEntry.VIEW_NAME + "." + ProductEntry._ID + " = " +
+                    ProductEntry.FTS_TABLE_NAME + ".docid";
+
+    /**
+     * Default order of search results, given a test of whether the name has every word the user
+     * typed. Products whose name matched come before products that only matched on supplier
+     * name, and shorter names, which are closer to the typed prefix, come first. The test is a
+     * few LIKEs on each match's name, which is cheaper than computing offsets() for every match.
+     */
+    private static final String SEARCH_SORT_ORDER =
+            "NOT (%s), " +
+                    "length(" + ProductEntry.VIEW_NAME + "." + ProductEntry.COLUMN_PRODUCT_NAME + "), " +
+                    ProductEntry.VIEW_NAME + "." + ProductEntry.COLUMN_PRODUCT_NAME + " COLLATE NOCASE";
+
+    /** Maps the product columns a search may return onto the joined search tables */
+    private static final Map<String, String> sSearchProjectionMap = new HashMap<>();
+
+    /** The product columns a search returns when no projection is given */
+    private static final String[] SEARCH_COLUMNS = new String[] {
+            ProductEntry._ID,
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE,
+    };
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -59,6 +235,46 @@ public class ProductProvider extends ContentProvider {
          * "content://com.example.android.products/products" doesn't.
          */
         sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/#", PRODUCT_ID);
+
+        /*
+         * Sets the code for a search. The "*" wildcard matches the search text, so
+         * "content://com.example.android.products/products/search/harley" matches.
+         */
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_SEARCH + "/*", SEARCH);
+
+        // The content URI of the form "content://com.example.android.inventory/products/sku/*"
+        // will map to the integer code {@link #SKU}, with the SKU as the last path segment.
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/" + ProductContract.PATH_SKU + "/*", SKU);
+
+        // Codes for the suppliers table, a single supplier, and a single supplier's products
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_SUPPLIERS, SUPPLIERS);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_SUPPLIERS + "/#", SUPPLIER_ID);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_SUPPLIERS + "/#/" + ProductContract.PATH_PRODUCTS, SUPPLIER_PRODUCTS);
+
+        // Codes for the stock movement ledger, and a single product's movements
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_MOVEMENTS, MOVEMENTS);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY,
+                ProductContract.PATH_PRODUCTS + "/#/" + ProductContract.PATH_MOVEMENTS, PRODUCT_MOVEMENTS);
+
+        // Code for the tombstones table
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_TOMBSTONES, TOMBSTONES);
+
+        // Code for the stock counters table
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_COUNTERS, COUNTERS);
+
+        // Product columns are qualified with the products view, since the full-text index has
+        // columns with the same names
+        for (String column : SEARCH_COLUMNS) {
+            sSearchProjectionMap.put(column, ProductEntry.VIEW_NAME + "." + column + " AS " + column);
+        }
+        for (String column : new String[] { ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID,
+                ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD, ProductEntry.COLUMN_PRODUCT_SKU,
+                ProductEntry.COLUMN_PRODUCT_VERSION }) {
+            sSearchProjectionMap.put(column, ProductEntry.VIEW_NAME + "." + column + " AS " + column);
+        }
     }
 
     /**
@@ -69,6 +285,8 @@ public class ProductProvider extends ContentProvider {
         // To access our database, we instantiate our subclass of SQLiteOpenHelper
         // and pass the context, which is the current activity.
         mDbHelper = new ProductDbHelper(getContext());
+        mProductCache = new ProductCache(
+                Objects.requireNonNull(getContext()).getResources().getInteger(R.integer.product_cache_size));
 
         return true;
     }
@@ -79,6 +297,23 @@ public class ProductProvider extends ContentProvider {
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        long start = ProviderMetrics.start();
+        Cursor cursor = null;
+        try {
+            cursor = queryProducts(uri, projection, selection, selectionArgs, sortOrder);
+            return mMetrics.countRowsRead(ProviderMetrics.QUERY, cursor);
+        } finally {
+            // The rows are added when the caller closes the cursor, so that a caller that only
+            // reads one page of a large result doesn't pay for counting the rest
+            mMetrics.record(ProviderMetrics.QUERY, start, 0, cursor != null);
+        }
+    }
+
+    /**
+     * Perform the query for the given URI, as {@link #query} describes.
+     */
+    private Cursor queryProducts(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                                 String sortOrder) {
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
@@ -90,12 +325,20 @@ public class ProductProvider extends ContentProvider {
         switch (match) {
             case PRODUCTS:
                 // For the PRODUCTS code, query the products table directly with the given
-                // projection, selection, selection arguments, and sort order. The cursor
-                // could contain multiple rows of the products table.
-                cursor = database.query(ProductEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                // projection, selection, selection arguments, and sort order, joined with the
+                // suppliers table if the query uses supplier columns. The cursor could contain
+                // multiple rows of the products table, or one per group if they were grouped, up
+                // to the limit if one was given.
+                cursor = database.query(getProductSource(projection, selection, sortOrder), projection,
+                        selection, selectionArgs, getGroupBy(uri), null, sortOrder, getLimit(uri));
                 break;
             case PRODUCT_ID:
+                // Queries for columns the cache holds are answered from it
+                if (ProductCache.covers(projection)) {
+                    cursor = queryCachedProduct(database, ContentUris.parseId(uri), projection);
+                    break;
+                }
+
                 // For the PRODUCT_ID code, extract out the ID from the URI.
                 // For an example URI such as "content://com.example.android.inventory/products/3",
                 // the selection will be "_id=?" and the selection argument will be a
@@ -109,9 +352,65 @@ public class ProductProvider extends ContentProvider {
 
                 // This will perform a query on the products table where the _id equals 3 to return a
                 // Cursor containing that row of the table.
-                cursor = database.query(ProductEntry.TABLE_NAME, projection, selection, selectionArgs,
+                cursor = database.query(getProductSource(projection, null, null), projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case SKU:
+                // For the SKU code, the last path segment is the SKU. Queries for columns the
+                // cache holds are answered from it, so a repeated scan doesn't touch the database.
+                String sku = uri.getLastPathSegment();
+                if (ProductCache.covers(projection)) {
+                    cursor = queryCachedProductBySku(database, sku, projection);
+                    break;
+                }
+                cursor = database.query(getProductSource(projection, null, null), projection,
+                        ProductEntry.COLUMN_PRODUCT_SKU + "=?", new String[] { sku }, null, null, sortOrder);
+                break;
+            case SEARCH:
+                // For the SEARCH code, the last path segment is the text to search for.
+                cursor = searchProducts(database, uri.getLastPathSegment(), projection, selection,
+                        selectionArgs, sortOrder, getLimit(uri));
+                break;
+            case SUPPLIERS:
+                cursor = database.query(SupplierEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder, getLimit(uri));
+                break;
+            case SUPPLIER_ID:
+                selection = SupplierEntry._ID + "=?";
+                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+                cursor = database.query(SupplierEntry.TABLE_NAME, projection, selection, selectionArgs,
                         null, null, sortOrder);
                 break;
+            case SUPPLIER_PRODUCTS:
+                // The supplier's ID is the second path segment, and its products come with its
+                // name and phone like any other product query
+                selection = DatabaseUtils.concatenateWhere(ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID + "=?", selection);
+                selectionArgs = DatabaseUtils.appendSelectionArgs(
+                        new String[] { uri.getPathSegments().get(1) }, selectionArgs);
+                cursor = database.query(ProductEntry.VIEW_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder, getLimit(uri));
+                break;
+            case MOVEMENTS:
+                cursor = database.query(StockMovementEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder, getLimit(uri));
+                break;
+            case PRODUCT_MOVEMENTS:
+                // The product's ID is the second path segment
+                selection = DatabaseUtils.concatenateWhere(
+                        StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID + "=?", selection);
+                selectionArgs = DatabaseUtils.appendSelectionArgs(
+                        new String[] { uri.getPathSegments().get(1) }, selectionArgs);
+                cursor = database.query(StockMovementEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder, getLimit(uri));
+                break;
+            case TOMBSTONES:
+                cursor = database.query(TombstoneEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder, getLimit(uri));
+                break;
+            case COUNTERS:
+                cursor = database.query(StockCounterEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder, getLimit(uri));
+                break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
@@ -125,69 +424,266 @@ public class ProductProvider extends ContentProvider {
     }
 
     /**
-     * Insert new data into the provider with the given ContentValues.
+     * Return the given columns of a single product, from the cache if it's there and otherwise
+     * from the database, in which case the product is cached for next time.
      */
-    @Override
-    public Uri insert(@NonNull Uri uri, ContentValues contentValues) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PRODUCTS:
-                return insertProduct(uri, contentValues);
-            default:
-                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+    private Cursor queryCachedProduct(SQLiteDatabase database, long id, String[] projection) {
+        Object[] row = mProductCache.get(id);
+        if (row == null) {
+            long generation = mProductCache.getGeneration();
+            Cursor cursor = database.query(ProductEntry.VIEW_NAME, ProductCache.COLUMNS,
+                    ProductEntry._ID + "=?", new String[] { String.valueOf(id) }, null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    row = ProductCache.readRow(cursor);
+                    mProductCache.put(id, row, generation);
+                }
+            } finally {
+                cursor.close();
+            }
         }
+        return ProductCache.toCursor(projection, row);
     }
 
     /**
-     * Insert a product into the database with the given content values. Return the new content URI
-     * for that specific row in the database.
+     * Return the given columns of the product with the given SKU, from the cache if it's there and
+     * otherwise from the database through the SKU index, in which case the product is cached for
+     * next time. The cursor is empty if no product has the SKU.
      */
-    private Uri insertProduct(Uri uri, ContentValues values) {
+    private Cursor queryCachedProductBySku(SQLiteDatabase database, String sku, String[] projection) {
+        Object[] row = mProductCache.getBySku(sku);
+        if (row == null) {
+            long generation = mProductCache.getGeneration();
+            Cursor cursor = database.query(ProductEntry.VIEW_NAME, ProductCache.COLUMNS,
+                    ProductEntry.COLUMN_PRODUCT_SKU + "=?", new String[] { sku }, null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    row = ProductCache.readRow(cursor);
+                    mProductCache.put(cursor.getLong(0), row, generation);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return ProductCache.toCursor(projection, row);
+    }
 
-        // Check that the name is not null
-        String name = values.getAsString(ProductEntry.COLUMN_PRODUCT_NAME);
-        if (TextUtils.isEmpty(name)) {
-            throw new IllegalArgumentException("Product requires a name");
+    /**
+     * Search the full-text index for products whose name or supplier name has words starting with
+     * each word of the given text. The results are ranked by {@link #SEARCH_SORT_ORDER} unless
+     * another sort order is given.
+     */
+    private static Cursor searchProducts(SQLiteDatabase database, String text, String[] projection,
+                                         String selection, String[] selectionArgs, String sortOrder,
+                                         String limit) {
+        String match = buildMatchQuery(text);
+        if (match.isEmpty()) {
+            // Nothing to search for, so nothing matches
+            return new MatrixCursor(projection != null ? projection : SEARCH_COLUMNS);
         }
 
-        // Check that the price is provided, and that it's greater than or equal to 0 kg
-        Float price = values.getAsFloat(ProductEntry.COLUMN_PRODUCT_PRICE);
-        if (price == null || price < 0) {
-            throw new IllegalArgumentException("Product requires valid price");
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(SEARCH_TABLES);
+        builder.setProjectionMap(sSearchProjectionMap);
+        builder.appendWhere(ProductEntry.FTS_TABLE_NAME + " MATCH ");
+        builder.appendWhereEscapeString(match);
+
+        if (TextUtils.isEmpty(sortOrder)) {
+            sortOrder = String.format(SEARCH_SORT_ORDER, buildNameMatch(text));
         }
+        return builder.query(database, projection != null ? projection : SEARCH_COLUMNS,
+                selection, selectionArgs, null, null, sortOrder, limit);
+    }
 
-        // Check that the quantity is provided, and that it's greater than or equal to 0 kg
-        Integer quantity = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_QUANTITY);
-        if (quantity == null || quantity < 0) {
-            throw new IllegalArgumentException("Product requires valid quantity");
+    /**
+     * Turn the text the user typed into a full-text query that matches every word as a prefix.
+     * Each word is quoted so that anything the user types is never read as query syntax.
+     */
+    private static String buildMatchQuery(String text) {
+        StringBuilder match = new StringBuilder();
+        for (String word : splitWords(text)) {
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(word).append("*\"");
+        }
+        return match.toString();
+    }
+
+    /**
+     * Return an expression that is true if a word of the product's name starts with each word of
+     * the given text. Like the full-text index, LIKE ignores the case of ASCII letters. Words
+     * are only told apart by spaces here, so a name such as "Bolt-cutter" doesn't count as
+     * matching "cut", and only ranks lower.
+     */
+    private static String buildNameMatch(String text) {
+        String name = "' ' || " + ProductEntry.VIEW_NAME + "." + ProductEntry.COLUMN_PRODUCT_NAME;
+        StringBuilder match = new StringBuilder();
+        for (String word : splitWords(text)) {
+            if (match.length() > 0) {
+                match.append(" AND ");
+            }
+            // Words hold only letters and digits, so never a LIKE wildcard
+            match.append(name).append(" LIKE ").append(DatabaseUtils.sqlEscapeString("% " + word + "%"));
         }
+        return match.toString();
+    }
 
-        // Check that the supplier name is not null
-        String supplierName = values.getAsString(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME);
-        if (TextUtils.isEmpty(supplierName)) {
-            throw new IllegalArgumentException("Product requires a name");
+    /**
+     * Return the words of the text the user typed: its runs of letters and digits.
+     */
+    private static List<String> splitWords(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
         }
+        for (String word : text.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
 
-        // Check that the supplier phone is not null
-        String supplierPhone = values.getAsString(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE);
-        if (TextUtils.isEmpty(supplierPhone)) {
-            throw new IllegalArgumentException("Product requires a name");
+    /**
+     * Return the row limit given by the {@link ProductContract#QUERY_PARAMETER_LIMIT} query
+     * parameter of the URI, or null if there is none.
+     */
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_LIMIT);
+        if (limit == null) {
+            return null;
+        }
+        try {
+            if (Integer.parseInt(limit) < 0) {
+                throw new IllegalArgumentException("Invalid limit " + limit + " for " + uri);
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid limit " + limit + " for " + uri);
         }
+        return limit;
+    }
+
+    /**
+     * Return the column given by the {@link ProductContract#QUERY_PARAMETER_GROUP_BY} query
+     * parameter of the URI, or null if there is none.
+     */
+    private static String getGroupBy(Uri uri) {
+        String groupBy = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_GROUP_BY);
+        if (groupBy != null && !groupBy.matches("\\w+")) {
+            throw new IllegalArgumentException("Invalid group by " + groupBy + " for " + uri);
+        }
+        return groupBy;
+    }
+
+    /**
+     * Return what a product query should read from: the view that joins products with their
+     * suppliers if the query uses a supplier column, or else the products table on its own,
+     * which saves the join.
+     */
+    private static String getProductSource(String[] projection, String selection, String sortOrder) {
+        if (projection == null || mentionsSupplier(selection) || mentionsSupplier(sortOrder)) {
+            return ProductEntry.VIEW_NAME;
+        }
+        for (String column : projection) {
+            if (mentionsSupplier(column)) {
+                return ProductEntry.VIEW_NAME;
+            }
+        }
+        return ProductEntry.TABLE_NAME;
+    }
+
+    /**
+     * Return true if the given SQL refers to the supplier name or phone of a product, which only
+     * the products view has.
+     */
+    private static boolean mentionsSupplier(String sql) {
+        return sql != null && (sql.contains(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME) ||
+                sql.contains(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE));
+    }
+
+    /**
+     * Return a selection of products that can be used to write to the products table. One that
+     * refers to supplier columns is turned into a selection of the matching IDs in the view.
+     */
+    private static String getWritableSelection(String selection) {
+        if (!mentionsSupplier(selection)) {
+            return selection;
+        }
+        return ProductEntry._ID + " IN (SELECT " + ProductEntry._ID + " FROM " +
+                ProductEntry.VIEW_NAME + " WHERE " + selection + ")";
+    }
+
+    /**
+     * Insert new data into the provider with the given ContentValues.
+     */
+    @Override
+    public Uri insert(@NonNull Uri uri, ContentValues contentValues) {
+        long start = ProviderMetrics.start();
+        Uri newUri = null;
+        try {
+            final int match = sUriMatcher.match(uri);
+            switch (match) {
+                case PRODUCTS:
+                    newUri = insertProduct(uri, contentValues);
+                    return newUri;
+                case SUPPLIERS:
+                    newUri = insertSupplier(uri, contentValues);
+                    return newUri;
+                case MOVEMENTS:
+                    newUri = insertMovement(uri, contentValues);
+                    return newUri;
+                default:
+                    throw new IllegalArgumentException("Insertion is not supported for " + uri);
+            }
+        } finally {
+            mMetrics.record(ProviderMetrics.INSERT, start, newUri != null ? 1 : 0, newUri != null);
+        }
+    }
+
+    /**
+     * Insert a product into the database with the given content values. Return the new content URI
+     * for that specific row in the database.
+     */
+    private Uri insertProduct(Uri uri, ContentValues values) {
+
+        // Check that all of the required product values are present and valid
+        ProductValidator.validateProduct(values);
 
         // Get writable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Insert a new product into the products database table with the given ContentValues
-        long id = database.insert(ProductEntry.TABLE_NAME, null, values);
+        // Insert a new product into the products database table with the given ContentValues,
+        // finding or adding its supplier and recording its opening stock in the same transaction
+        long id;
+        SupplierResolver suppliers = new SupplierResolver(database);
+        StockLedger ledger = new StockLedger(database);
+        database.beginTransaction();
+        try {
+            id = database.insert(ProductEntry.TABLE_NAME, null, toProductRow(values, suppliers));
+            if (id == -1 && isSkuTaken(database, values)) {
+                throw new IllegalArgumentException("Product SKU is already in use");
+            }
+            int quantity = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_QUANTITY);
+            if (id != -1 && quantity != 0) {
+                ledger.record(id, StockMovementEntry.TYPE_RECEIPT, quantity);
+                ledger.checkpointIfDue();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            suppliers.close();
+            ledger.close();
+        }
         // If the ID is -1, then the insertion failed. Log an error and return null.
         if (id == -1) {
             Log.e(LOG_TAG, "Failed to insert row for " + uri);
             return null;
         }
 
-        // Notify all listeners that the data has changed for the product content URI
-        // uri: content://come.example.android.inventory/products
-        Objects.requireNonNull(getContext()).getContentResolver().notifyChange(uri, null);
+        // Notify all listeners that this product has been added
+        // uri: content://come.example.android.inventory/products/3?change=insert
+        notifyChange(ProductChange.buildUri(ProductChange.TYPE_INSERT, new long[] { id }, null));
 
         // Once we know the ID of the new row in the table,
         // return the new URI with the ID appended to the end of it
@@ -195,23 +691,289 @@ public class ProductProvider extends ContentProvider {
     }
 
     /**
-     * Updates the data at the given selection and selection arguments, with the new ContentValues.
+     * Return whether a new product with the given values would share its SKU with another.
+     */
+    private static boolean isSkuTaken(SQLiteDatabase database, ContentValues values) {
+        String sku = values.getAsString(ProductEntry.COLUMN_PRODUCT_SKU);
+        return sku != null && DatabaseUtils.queryNumEntries(database, ProductEntry.TABLE_NAME,
+                ProductEntry.COLUMN_PRODUCT_SKU + "=?", new String[] { sku }) > 0;
+    }
+
+    /**
+     * Return whether writing the given values to the products that match the given selection
+     * would give a SKU to more than one product: because a product outside the selection already
+     * has it, or because the selection matches several products.
+     */
+    private static boolean isSkuTaken(SQLiteDatabase database, ContentValues values, String selection,
+                                      String[] selectionArgs) {
+        String sku = values.getAsString(ProductEntry.COLUMN_PRODUCT_SKU);
+        if (sku == null) {
+            return false;
+        }
+        if (DatabaseUtils.queryNumEntries(database, ProductEntry.TABLE_NAME, selection, selectionArgs) > 1) {
+            return true;
+        }
+        return selection != null && DatabaseUtils.queryNumEntries(database, ProductEntry.TABLE_NAME,
+                ProductEntry.COLUMN_PRODUCT_SKU + "=? AND NOT (" + selection + ")",
+                DatabaseUtils.appendSelectionArgs(new String[] { sku }, selectionArgs)) > 0;
+    }
+
+    /**
+     * Insert a supplier into the database with the given content values. Return the new content
+     * URI for that supplier, or null if there already is one with the same name and phone.
+     */
+    private Uri insertSupplier(Uri uri, ContentValues values) {
+        ProductValidator.validateSupplier(values);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long id = database.insert(SupplierEntry.TABLE_NAME, null, values);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        notifyChange(SupplierEntry.CONTENT_URI);
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Record a stock movement and apply it to the product's quantity in the same transaction.
+     * A movement that would take the quantity below zero is rejected. Return the content URI of
+     * the product's movements.
+     */
+    private Uri insertMovement(Uri uri, ContentValues values) {
+        Long productId = values.getAsLong(StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID);
+        if (productId == null) {
+            throw new IllegalArgumentException("Stock movement requires a product");
+        }
+        Integer type = values.getAsInteger(StockMovementEntry.COLUMN_MOVEMENT_TYPE);
+        if (type == null || !StockMovementEntry.isValidType(type)) {
+            throw new IllegalArgumentException("Stock movement requires a valid type");
+        }
+        Integer quantity = values.getAsInteger(StockMovementEntry.COLUMN_MOVEMENT_QUANTITY);
+        if (quantity == null || quantity == 0) {
+            throw new IllegalArgumentException("Stock movement requires a quantity other than 0");
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        StockLedger ledger = new StockLedger(database);
+        database.beginTransaction();
+        try {
+            SQLiteStatement statement = database.compileStatement(SQL_MOVE_STOCK);
+            try {
+                statement.bindLong(1, quantity);
+                statement.bindLong(2, productId);
+                statement.bindLong(3, quantity);
+                statement.bindLong(4, quantity);
+                if (statement.executeUpdateDelete() != 1) {
+                    throw new IllegalArgumentException("Not enough stock of product " + productId +
+                            " for a movement of " + quantity + ", or no such product");
+                }
+            } finally {
+                statement.close();
+            }
+            ledger.record(productId, type, quantity);
+            ledger.checkpointIfDue();
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            ledger.close();
+        }
+
+        // Listeners to the products hear of the new quantity, and listeners to the ledger of the
+        // new movement
+        mProductCache.remove(productId);
+        notifyChange(ProductChange.buildUri(ProductChange.TYPE_UPDATE, new long[] { productId },
+                QUANTITY_COLUMNS));
+        notifyChange(StockMovementEntry.CONTENT_URI);
+        return StockMovementEntry.buildProductMovementsUri(productId);
+    }
+
+    /**
+     * Insert a batch of new products with the given ContentValues. Return the number of rows
+     * inserted.
      */
     @Override
-    public int update(@NonNull Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PRODUCTS:
-                return updateProduct(uri, contentValues, selection, selectionArgs);
-            case PRODUCT_ID:
-                // For the PRODUCT_ID code, extract out the ID from the URI,
-                // so we know which row to update. Selection will be "_id=?" and selection
-                // arguments will be a String array containing the actual ID.
-                selection = ProductEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updateProduct(uri, contentValues, selection, selectionArgs);
+                long start = ProviderMetrics.start();
+                int rowsInserted = -1;
+                try {
+                    rowsInserted = bulkInsertProducts(uri, values);
+                    return rowsInserted;
+                } finally {
+                    mMetrics.record(ProviderMetrics.BULK_INSERT, start, Math.max(rowsInserted, 0),
+                            rowsInserted >= 0);
+                }
             default:
-                throw new IllegalArgumentException("Update is not supported for " + uri);
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+    }
+
+    /**
+     * Insert all of the given products in a single transaction. Every row is validated before
+     * anything is written, so a bad row rejects the whole batch. The insert statement is compiled
+     * once and rebound for each row, and listeners are notified once at the end instead of once
+     * per row.
+     */
+    private int bulkInsertProducts(Uri uri, ContentValues[] values) {
+        // Validate all of the rows up front, including that no two of them have the same SKU
+        Set<String> skus = new HashSet<>();
+        for (ContentValues value : values) {
+            ProductValidator.validateProduct(value);
+            String sku = value.getAsString(ProductEntry.COLUMN_PRODUCT_SKU);
+            if (sku != null && !skus.add(sku)) {
+                throw new IllegalArgumentException("Product SKU is already in use");
+            }
+        }
+
+        // Get writable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // The IDs of the new rows are passed on to listeners, unless there are too many of them
+        long[] ids = values.length <= ProductChange.MAX_DESCRIBED_IDS ? new long[values.length] : null;
+
+        int rowsInserted = 0;
+        SQLiteStatement statement = database.compileStatement(SQL_INSERT_PRODUCT);
+        SupplierResolver suppliers = new SupplierResolver(database);
+        StockLedger ledger = new StockLedger(database);
+        database.beginTransaction();
+        try {
+            // Fail before writing anything if a product here already has one of the SKUs, as
+            // insert does, rather than part way through the batch with a constraint error
+            if (!skus.isEmpty()) {
+                for (ContentValues value : values) {
+                    if (isSkuTaken(database, value)) {
+                        throw new IllegalArgumentException("Product SKU is already in use");
+                    }
+                }
+            }
+
+            for (ContentValues value : values) {
+                statement.bindString(1, value.getAsString(ProductEntry.COLUMN_PRODUCT_NAME));
+                statement.bindLong(2, value.getAsLong(ProductEntry.COLUMN_PRODUCT_PRICE));
+                statement.bindLong(3, value.getAsInteger(ProductEntry.COLUMN_PRODUCT_QUANTITY));
+                statement.bindLong(4, suppliers.resolve(
+                        value.getAsString(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME),
+                        value.getAsString(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE)));
+                Integer reorderThreshold = value.getAsInteger(ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD);
+                statement.bindLong(5, reorderThreshold != null ? reorderThreshold : 0);
+                String sku = value.getAsString(ProductEntry.COLUMN_PRODUCT_SKU);
+                if (sku != null) {
+                    statement.bindString(6, sku);
+                } else {
+                    statement.bindNull(6);
+                }
+
+                long id = statement.executeInsert();
+                if (id != -1) {
+                    if (ids != null) {
+                        ids[rowsInserted] = id;
+                    }
+                    rowsInserted++;
+
+                    // Record the product's opening stock
+                    int quantity = value.getAsInteger(ProductEntry.COLUMN_PRODUCT_QUANTITY);
+                    if (quantity != 0) {
+                        ledger.record(id, StockMovementEntry.TYPE_RECEIPT, quantity);
+                    }
+                }
+            }
+            ledger.checkpointIfDue();
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            statement.close();
+            suppliers.close();
+            ledger.close();
+        }
+
+        // Notify all listeners once for the whole batch
+        if (rowsInserted != 0) {
+            if (ids != null && rowsInserted < ids.length) {
+                ids = Arrays.copyOf(ids, rowsInserted);
+            }
+            notifyChange(ProductChange.buildUri(ProductChange.TYPE_INSERT, ids, null));
+        }
+
+        return rowsInserted;
+    }
+
+    /**
+     * Apply the given operations in a single transaction. If any operation fails, none of them
+     * are applied. Listeners are notified once after the whole batch has been committed.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        long start = ProviderMetrics.start();
+        ContentProviderResult[] results = null;
+        mApplyingBatch.set(Boolean.TRUE);
+        database.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            mApplyingBatch.set(Boolean.FALSE);
+            mMetrics.record(ProviderMetrics.APPLY_BATCH, start, operations.size(), results != null);
+        }
+
+        // The individual operations didn't notify, so notify once now. Rows they removed from the
+        // cache may have been read back in before the batch was committed, so remove them again.
+        long[] ids = getChangedIds(operations, results);
+        invalidateCache(ids);
+        if (ids != null) {
+            // The products may have been inserted, updated or deleted, which an update of every
+            // column describes, since listeners fetch the products named and drop any that are gone
+            notifyChange(ProductChange.buildUri(ProductChange.TYPE_UPDATE, ids, null));
+        } else {
+            notifyChange(ProductEntry.CONTENT_URI);
+            notifyChange(SupplierEntry.CONTENT_URI);
+        }
+
+        return results;
+    }
+
+    /**
+     * Updates the data at the given selection and selection arguments, with the new ContentValues.
+     */
+    @Override
+    public int update(@NonNull Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+        long start = ProviderMetrics.start();
+        int rowsUpdated = -1;
+        try {
+            final int match = sUriMatcher.match(uri);
+            switch (match) {
+                case PRODUCTS:
+                    rowsUpdated = updateProduct(uri, contentValues, selection, selectionArgs);
+                    return rowsUpdated;
+                case PRODUCT_ID:
+                    // For the PRODUCT_ID code, extract out the ID from the URI,
+                    // so we know which row to update. Selection will be "_id=?" and selection
+                    // arguments will be a String array containing the actual ID.
+                    selection = ProductEntry._ID + "=?";
+                    selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+                    rowsUpdated = updateProduct(uri, contentValues, selection, selectionArgs);
+                    return rowsUpdated;
+                case SUPPLIERS:
+                    rowsUpdated = updateSupplier(contentValues, selection, selectionArgs);
+                    return rowsUpdated;
+                case SUPPLIER_ID:
+                    selection = SupplierEntry._ID + "=?";
+                    selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+                    rowsUpdated = updateSupplier(contentValues, selection, selectionArgs);
+                    return rowsUpdated;
+                default:
+                    throw new IllegalArgumentException("Update is not supported for " + uri);
+            }
+        } finally {
+            mMetrics.record(ProviderMetrics.UPDATE, start, Math.max(rowsUpdated, 0), rowsUpdated >= 0);
         }
     }
 
@@ -231,9 +993,9 @@ public class ProductProvider extends ContentProvider {
         }
 
         // If the {@link ProductEntry#COLUMN_PRODUCT_PRICE} key is present,
-        // check that the price value is valid.
+        // check that the price value is a valid number of cents.
         if (values.containsKey(ProductEntry.COLUMN_PRODUCT_PRICE)) {
-            Float price = values.getAsFloat(ProductEntry.COLUMN_PRODUCT_PRICE);
+            Long price = Prices.getCents(values);
             if (price == null || price < 0) {
                 throw new IllegalArgumentException("Product requires valid price");
             }
@@ -249,6 +1011,24 @@ public class ProductProvider extends ContentProvider {
             }
         }
 
+        // If the {@link ProductEntry#COLUMN_PRODUCT_REORDER_THRESHOLD} key is present,
+        // check that the threshold is greater than or equal to 0.
+        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD)) {
+            Integer reorderThreshold = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD);
+            if (reorderThreshold == null || reorderThreshold < 0) {
+                throw new IllegalArgumentException("Product requires valid reorder threshold");
+            }
+        }
+
+        // If the {@link ProductEntry#COLUMN_PRODUCT_SKU} key is present,
+        // check that the SKU is either null or not blank.
+        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_SKU)) {
+            String sku = values.getAsString(ProductEntry.COLUMN_PRODUCT_SKU);
+            if (sku != null && TextUtils.isEmpty(sku.trim())) {
+                throw new IllegalArgumentException("Product requires valid SKU");
+            }
+        }
+
         // If the {@link ProductEntry#COLUMN_PRODUCT_SUPPLIER_NAME} key is present,
         // check that the supplier name value is not null.
         if (values.containsKey(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME)) {
@@ -272,25 +1052,123 @@ public class ProductProvider extends ContentProvider {
             return 0;
         }
 
-        // Otherwise, get writable database to update the data
+        // Otherwise, get writable database to update the data, finding or adding the new
+        // supplier in the same transaction if there is one
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
-        int rowsUpdated = database.update(ProductEntry.TABLE_NAME, values, selection, selectionArgs);
+        // A new quantity is recorded in the stock ledger as an adjustment of each product's old one
+        int rowsUpdated;
+        SupplierResolver suppliers = new SupplierResolver(database);
+        StockLedger ledger = new StockLedger(database);
+        database.beginTransaction();
+        try {
+            String writableSelection = getWritableSelection(selection);
+            Integer quantity = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_QUANTITY);
+            if (quantity != null) {
+                ledger.recordAdjustments(quantity, writableSelection, selectionArgs);
+            }
+            try {
+                rowsUpdated = database.update(ProductEntry.TABLE_NAME, toProductRow(values, suppliers),
+                        writableSelection, selectionArgs);
+            } catch (SQLiteConstraintException ex) {
+                // Only a SKU collision is the caller's to fix; any other failure is passed on
+                if (isSkuTaken(database, values, writableSelection, selectionArgs)) {
+                    throw new IllegalArgumentException("Product SKU is already in use", ex);
+                }
+                throw ex;
+            }
+            if (quantity != null) {
+                ledger.checkpointIfDue();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            suppliers.close();
+            ledger.close();
+        }
 
-        // If 1 or more rows were updated, then notify all listeners that the data at the
-        // given URI has changed
+        // If 1 or more rows were updated, then notify all listeners which products and
+        // columns have changed
         if (rowsUpdated != 0) {
-            Objects.requireNonNull(getContext()).getContentResolver().notifyChange(uri, null);
+            invalidateCache(getChangedIds(uri));
+            String[] columns = values.keySet().toArray(new String[values.size()]);
+            notifyChange(ProductChange.buildUri(ProductChange.TYPE_UPDATE, getChangedIds(uri), columns));
         }
 
         // Returns the number of database rows affected by the update statement
         return rowsUpdated;
     }
 
+    /**
+     * Update suppliers with the given content values. Every product of a supplier that changes
+     * changes with it, so listeners to the products table are notified too.
+     */
+    private int updateSupplier(ContentValues values, String selection, String[] selectionArgs) {
+        if (values.containsKey(SupplierEntry.COLUMN_SUPPLIER_NAME) &&
+                TextUtils.isEmpty(values.getAsString(SupplierEntry.COLUMN_SUPPLIER_NAME))) {
+            throw new IllegalArgumentException("Supplier requires a name");
+        }
+        if (values.containsKey(SupplierEntry.COLUMN_SUPPLIER_PHONE) &&
+                TextUtils.isEmpty(values.getAsString(SupplierEntry.COLUMN_SUPPLIER_PHONE))) {
+            throw new IllegalArgumentException("Supplier requires a phone");
+        }
+        if (values.size() == 0) {
+            return 0;
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsUpdated = database.update(SupplierEntry.TABLE_NAME, values, selection, selectionArgs);
+
+        // Which products belong to the suppliers isn't known here, so every product may have
+        // changed, but only in its supplier columns and in the version and time the database
+        // gave it for the change
+        if (rowsUpdated != 0) {
+            invalidateCache(null);
+            List<String> columns = new ArrayList<>(4);
+            columns.add(ProductEntry.COLUMN_PRODUCT_VERSION);
+            columns.add(ProductEntry.COLUMN_PRODUCT_UPDATED_AT);
+            if (values.containsKey(SupplierEntry.COLUMN_SUPPLIER_NAME)) {
+                columns.add(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME);
+            }
+            if (values.containsKey(SupplierEntry.COLUMN_SUPPLIER_PHONE)) {
+                columns.add(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE);
+            }
+            notifyChange(SupplierEntry.CONTENT_URI);
+            notifyChange(ProductChange.buildUri(ProductChange.TYPE_UPDATE, null,
+                    columns.toArray(new String[columns.size()])));
+        }
+        return rowsUpdated;
+    }
+
     /**
      * Delete the data at the given selection and selection arguments.
      */
     @Override
     public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        long start = ProviderMetrics.start();
+        int rowsDeleted = -1;
+        try {
+            switch (sUriMatcher.match(uri)) {
+                case SUPPLIERS:
+                case SUPPLIER_ID:
+                    rowsDeleted = deleteSuppliers(uri, selection, selectionArgs);
+                    break;
+                case TOMBSTONES:
+                    rowsDeleted = deleteTombstones(selection, selectionArgs);
+                    break;
+                default:
+                    rowsDeleted = deleteProducts(uri, selection, selectionArgs);
+                    break;
+            }
+            return rowsDeleted;
+        } finally {
+            mMetrics.record(ProviderMetrics.DELETE, start, Math.max(rowsDeleted, 0), rowsDeleted >= 0);
+        }
+    }
+
+    /**
+     * Delete the products the given URI refers to, as {@link #delete} describes.
+     */
+    private int deleteProducts(Uri uri, String selection, String[] selectionArgs) {
         // Get writable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
@@ -299,7 +1177,8 @@ public class ProductProvider extends ContentProvider {
         switch (match) {
             case PRODUCTS:
                 // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(ProductEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = database.delete(ProductEntry.TABLE_NAME, getWritableSelection(selection),
+                        selectionArgs);
                 break;
             case PRODUCT_ID:
                 // Delete a single row given by the ID in the URI
@@ -311,14 +1190,529 @@ public class ProductProvider extends ContentProvider {
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
-        // If 1 or more rows were deleted, then notify all listeners that the data at the
-        // given URI has changed
+        // If 1 or more rows were deleted, then notify all listeners which products have gone
         if (rowsDeleted != 0) {
-            Objects.requireNonNull(getContext()).getContentResolver().notifyChange(uri, null);
+            invalidateCache(getChangedIds(uri));
+            notifyChange(ProductChange.buildUri(ProductChange.TYPE_DELETE, getChangedIds(uri), null));
         }
 
         // Return the number of rows deleted
-        return rowsDeleted;    }
+        return rowsDeleted;
+    }
+
+    /**
+     * Delete the tombstones that match the given selection, once their deletions have been synced.
+     */
+    private int deleteTombstones(String selection, String[] selectionArgs) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsDeleted = database.delete(TombstoneEntry.TABLE_NAME, selection, selectionArgs);
+        if (rowsDeleted != 0) {
+            notifyChange(TombstoneEntry.CONTENT_URI);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Delete the suppliers the given URI refers to. A supplier that still has products can't be
+     * deleted, and throws an {@link IllegalStateException}.
+     */
+    private int deleteSuppliers(Uri uri, String selection, String[] selectionArgs) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        if (sUriMatcher.match(uri) == SUPPLIER_ID) {
+            selection = SupplierEntry._ID + "=?";
+            selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+        }
+
+        int rowsDeleted;
+        try {
+            rowsDeleted = database.delete(SupplierEntry.TABLE_NAME, selection, selectionArgs);
+        } catch (SQLiteConstraintException ex) {
+            throw new IllegalStateException("Supplier still has products: " + uri, ex);
+        }
+
+        if (rowsDeleted != 0) {
+            notifyChange(SupplierEntry.CONTENT_URI);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Run the provider method with the given name. See {@link ProductContract#METHOD_SELL},
+     * {@link ProductContract#METHOD_SELL_BATCH}, {@link ProductContract#METHOD_GET_STOCK_AT},
+     * {@link ProductContract#METHOD_CHECKPOINT_STOCK}, {@link ProductContract#METHOD_GET_VERSION},
+     * {@link ProductContract#METHOD_APPLY_SYNC} and {@link ProductContract#METHOD_GET_METRICS}.
+     */
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        long start = ProviderMetrics.start();
+        Bundle result = null;
+        switch (method) {
+            case ProductContract.METHOD_SELL:
+                try {
+                    int quantity = extras != null ? extras.getInt(ProductContract.EXTRA_SALE_QUANTITY, 1) : 1;
+                    result = sellProduct(parseProductId(arg), quantity);
+                    return result;
+                } finally {
+                    mMetrics.record(ProviderMetrics.SELL, start,
+                            result != null && result.getBoolean(ProductContract.EXTRA_SOLD) ? 1 : 0,
+                            result != null);
+                }
+            case ProductContract.METHOD_SELL_BATCH:
+                try {
+                    if (extras == null) {
+                        throw new IllegalArgumentException("Batch sale requires product IDs and quantities");
+                    }
+                    result = sellProducts(extras.getLongArray(ProductContract.EXTRA_PRODUCT_IDS),
+                            extras.getIntArray(ProductContract.EXTRA_SALE_QUANTITIES));
+                    return result;
+                } finally {
+                    mMetrics.record(ProviderMetrics.SELL_BATCH, start,
+                            result != null ? countSold(result) : 0, result != null);
+                }
+            case ProductContract.METHOD_GET_STOCK_AT:
+                if (extras == null || !extras.containsKey(ProductContract.EXTRA_TIMESTAMP)) {
+                    throw new IllegalArgumentException("Stock query requires a timestamp");
+                }
+                result = new Bundle();
+                result.putInt(ProductContract.EXTRA_STOCK_LEVEL, (int) StockLedger.getStockAt(
+                        mDbHelper.getReadableDatabase(), parseProductId(arg),
+                        extras.getLong(ProductContract.EXTRA_TIMESTAMP)));
+                return result;
+            case ProductContract.METHOD_CHECKPOINT_STOCK:
+                result = new Bundle();
+                result.putInt(ProductContract.EXTRA_SNAPSHOT_COUNT, checkpointStock());
+                return result;
+            case ProductContract.METHOD_APPLY_SYNC:
+                return applySync(extras);
+            case ProductContract.METHOD_GET_VERSION:
+                SQLiteDatabase database = mDbHelper.getReadableDatabase();
+                result = new Bundle();
+                result.putLong(ProductContract.EXTRA_VERSION,
+                        DatabaseUtils.longForQuery(database, SQL_QUERY_VERSION, null));
+                result.putString(ProductContract.EXTRA_DEVICE_ID,
+                        DatabaseUtils.stringForQuery(database, SQL_QUERY_DEVICE_ID, null));
+                return result;
+            case ProductContract.METHOD_GET_METRICS:
+                result = mMetrics.toBundle();
+                result.putInt(ProductContract.EXTRA_CACHE_HITS, mProductCache.getHitCount());
+                result.putInt(ProductContract.EXTRA_CACHE_MISSES, mProductCache.getMissCount());
+                result.putInt(ProductContract.EXTRA_CACHE_EVICTIONS, mProductCache.getEvictionCount());
+                result.putInt(ProductContract.EXTRA_CACHE_SIZE, mProductCache.getSize());
+                return result;
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    /**
+     * Take the given quantity of a product out of stock, if there is enough of it. The stock is
+     * checked and decremented by a single UPDATE statement and the new level is read back in the
+     * same transaction, so there is no read-modify-write race with other sales.
+     */
+    private Bundle sellProduct(long id, int quantity) {
+        if (quantity < 1) {
+            throw new IllegalArgumentException("Sale requires a quantity of at least 1");
+        }
+
+        // Get writable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        boolean sold;
+        long stockLevel;
+        StockLedger ledger = new StockLedger(database);
+        database.beginTransaction();
+        try {
+            SQLiteStatement statement = database.compileStatement(SQL_SELL_PRODUCT);
+            try {
+                statement.bindLong(1, quantity);
+                statement.bindLong(2, id);
+                statement.bindLong(3, quantity);
+                sold = statement.executeUpdateDelete() == 1;
+            } finally {
+                statement.close();
+            }
+            if (sold) {
+                ledger.record(id, StockMovementEntry.TYPE_SALE, -quantity);
+                ledger.checkpointIfDue();
+            }
+
+            stockLevel = DatabaseUtils.longForQuery(database, SQL_QUERY_QUANTITY,
+                    new String[] { String.valueOf(id) });
+            database.setTransactionSuccessful();
+        } catch (SQLiteDoneException ex) {
+            // The stock level query found no row
+            throw new IllegalArgumentException("Unknown product " + id);
+        } finally {
+            database.endTransaction();
+            ledger.close();
+        }
+
+        // Notify all listeners that this product's quantity has changed
+        if (sold) {
+            mProductCache.remove(id);
+            notifyChange(ProductChange.buildUri(ProductChange.TYPE_UPDATE, new long[] { id },
+                    QUANTITY_COLUMNS));
+        }
+
+        Bundle result = new Bundle();
+        result.putBoolean(ProductContract.EXTRA_SOLD, sold);
+        result.putInt(ProductContract.EXTRA_STOCK_LEVEL, (int) stockLevel);
+        return result;
+    }
+
+    /**
+     * Sell up to the given quantity of each of the given products in one transaction, with one
+     * change notification for the whole batch. A product with less stock than asked for sells
+     * what it has. The database write lock is held for the whole transaction, so reading each
+     * stock level before taking from it can't race with another writer.
+     */
+    private Bundle sellProducts(long[] ids, int[] quantities) {
+        if (ids == null || quantities == null || ids.length != quantities.length) {
+            throw new IllegalArgumentException("Batch sale requires a quantity for each product ID");
+        }
+        for (int quantity : quantities) {
+            if (quantity < 1) {
+                throw new IllegalArgumentException("Sale requires a quantity of at least 1");
+            }
+        }
+
+        // Get writable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int[] sold = new int[ids.length];
+        int[] stockLevels = new int[ids.length];
+        long[] soldIds = new long[ids.length];
+        int soldCount = 0;
+        StockLedger ledger = new StockLedger(database);
+        database.beginTransaction();
+        try {
+            SQLiteStatement queryQuantity = database.compileStatement(SQL_QUERY_QUANTITY);
+            SQLiteStatement takeStock = database.compileStatement(SQL_TAKE_STOCK);
+            try {
+                for (int i = 0; i < ids.length; i++) {
+                    long stockLevel;
+                    queryQuantity.bindLong(1, ids[i]);
+                    try {
+                        stockLevel = queryQuantity.simpleQueryForLong();
+                    } catch (SQLiteDoneException ex) {
+                        // The product has been deleted, so there is nothing to sell
+                        continue;
+                    }
+
+                    // Stock merged from other devices can leave the level below 0, in which
+                    // case nothing is sold and the real level is reported
+                    int take = (int) Math.max(0, Math.min(stockLevel, quantities[i]));
+                    if (take > 0) {
+                        takeStock.bindLong(1, take);
+                        takeStock.bindLong(2, ids[i]);
+                        takeStock.executeUpdateDelete();
+                        ledger.record(ids[i], StockMovementEntry.TYPE_SALE, -take);
+                        soldIds[soldCount++] = ids[i];
+                    }
+                    sold[i] = take;
+                    stockLevels[i] = (int) (stockLevel - take);
+                }
+            } finally {
+                queryQuantity.close();
+                takeStock.close();
+            }
+            if (soldCount != 0) {
+                ledger.checkpointIfDue();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            ledger.close();
+        }
+
+        // Notify all listeners once for the whole batch
+        if (soldCount != 0) {
+            soldIds = Arrays.copyOf(soldIds, soldCount);
+            invalidateCache(soldIds);
+            notifyChange(ProductChange.buildUri(ProductChange.TYPE_UPDATE, soldIds, QUANTITY_COLUMNS));
+        }
+
+        Bundle result = new Bundle();
+        result.putIntArray(ProductContract.EXTRA_SOLD_QUANTITIES, sold);
+        result.putIntArray(ProductContract.EXTRA_STOCK_LEVELS, stockLevels);
+        return result;
+    }
+
+    /**
+     * Apply the products and deletions pulled from the sync server, as
+     * {@link ProductContract#METHOD_APPLY_SYNC} describes.
+     */
+    private Bundle applySync(Bundle extras) {
+        Parcelable[] products = extras != null ?
+                extras.getParcelableArray(ProductContract.EXTRA_SYNC_PRODUCTS) : null;
+        Parcelable[] counters = extras != null ?
+                extras.getParcelableArray(ProductContract.EXTRA_SYNC_COUNTERS) : null;
+        String[] deleted = extras != null ? extras.getStringArray(ProductContract.EXTRA_SYNC_DELETED) : null;
+        if (products == null) {
+            products = new Parcelable[0];
+        }
+        if (counters == null) {
+            counters = new Parcelable[0];
+        }
+        if (deleted == null) {
+            deleted = new String[0];
+        }
+
+        // Check every product before writing any of them
+        for (Parcelable product : products) {
+            ContentValues values = (ContentValues) product;
+            if (TextUtils.isEmpty(values.getAsString(ProductEntry.COLUMN_PRODUCT_SYNC_ID))) {
+                throw new IllegalArgumentException("Synced product requires a sync ID");
+            }
+            if (values.containsKey(ProductEntry.COLUMN_PRODUCT_QUANTITY)) {
+                throw new IllegalArgumentException("Synced product quantity comes from its stock counters");
+            }
+            // Check the rest of the product as a new one, which has no stock until its counters
+            // are merged
+            ContentValues newProduct = new ContentValues(values);
+            newProduct.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 0);
+            ProductValidator.validateProduct(newProduct);
+        }
+        for (Parcelable counter : counters) {
+            ContentValues values = (ContentValues) counter;
+            if (TextUtils.isEmpty(values.getAsString(ProductEntry.COLUMN_PRODUCT_SYNC_ID)) ||
+                    values.getAsString(StockCounterEntry.COLUMN_COUNTER_DEVICE_ID) == null) {
+                throw new IllegalArgumentException("Synced stock counter requires a sync ID and device ID");
+            }
+            Long increments = values.getAsLong(StockCounterEntry.COLUMN_COUNTER_INCREMENTS);
+            Long decrements = values.getAsLong(StockCounterEntry.COLUMN_COUNTER_DECREMENTS);
+            if (increments == null || increments < 0 || decrements == null || decrements < 0) {
+                throw new IllegalArgumentException("Synced stock counter requires valid counts");
+            }
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Bundle result = new Bundle();
+        SupplierResolver suppliers = new SupplierResolver(database);
+        StockLedger ledger = new StockLedger(database);
+        database.beginTransaction();
+        try {
+            result.putLong(ProductContract.EXTRA_VERSION_BEFORE,
+                    DatabaseUtils.longForQuery(database, SQL_QUERY_VERSION, null));
+
+            String selection = ProductEntry.COLUMN_PRODUCT_SYNC_ID + "=?";
+            for (Parcelable product : products) {
+                ContentValues values = (ContentValues) product;
+                String[] selectionArgs = new String[] { values.getAsString(ProductEntry.COLUMN_PRODUCT_SYNC_ID) };
+                ContentValues row = new ContentValues(toProductRow(values, suppliers));
+                if (isSkuTaken(database, row, selection, selectionArgs)) {
+                    // Another product here has the SKU, as when two devices register the same
+                    // barcode. The pulled product is kept without it here, rather than failing
+                    // the pull, and the device that already had the SKU keeps it.
+                    Log.w(LOG_TAG, "Synced product " + selectionArgs[0] + " has the SKU of another product");
+                    row.putNull(ProductEntry.COLUMN_PRODUCT_SKU);
+                }
+                if (database.update(ProductEntry.TABLE_NAME, row, selection, selectionArgs) == 0) {
+                    row.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 0);
+                    database.insertOrThrow(ProductEntry.TABLE_NAME, null, row);
+                }
+            }
+
+            // Merging only ever adds the movements a counter hasn't been merged with yet, so
+            // every device ends up with the same quantities whatever order changes arrive in
+            SQLiteStatement mergeStock = database.compileStatement(SQL_MERGE_STOCK);
+            try {
+                for (Parcelable counter : counters) {
+                    ContentValues values = (ContentValues) counter;
+                    Cursor cursor = database.query(ProductEntry.TABLE_NAME, new String[] { ProductEntry._ID },
+                            selection, new String[] { values.getAsString(ProductEntry.COLUMN_PRODUCT_SYNC_ID) },
+                            null, null, null);
+                    long id;
+                    try {
+                        if (!cursor.moveToFirst()) {
+                            // The product has been deleted here
+                            continue;
+                        }
+                        id = cursor.getLong(0);
+                    } finally {
+                        cursor.close();
+                    }
+
+                    long change = ledger.mergeCounter(id,
+                            values.getAsString(StockCounterEntry.COLUMN_COUNTER_DEVICE_ID),
+                            values.getAsLong(StockCounterEntry.COLUMN_COUNTER_INCREMENTS),
+                            values.getAsLong(StockCounterEntry.COLUMN_COUNTER_DECREMENTS));
+                    if (change != 0) {
+                        mergeStock.bindLong(1, change);
+                        mergeStock.bindLong(2, id);
+                        mergeStock.executeUpdateDelete();
+                    }
+                }
+            } finally {
+                mergeStock.close();
+            }
+            for (String syncId : deleted) {
+                database.delete(ProductEntry.TABLE_NAME, selection, new String[] { syncId });
+            }
+            ledger.checkpointIfDue();
+
+            result.putLong(ProductContract.EXTRA_VERSION,
+                    DatabaseUtils.longForQuery(database, SQL_QUERY_VERSION, null));
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            suppliers.close();
+            ledger.close();
+        }
+
+        // Which products changed isn't tracked, so listeners reload everything
+        if (products.length != 0 || counters.length != 0 || deleted.length != 0) {
+            invalidateCache(null);
+            notifyChange(ProductEntry.CONTENT_URI);
+            notifyChange(SupplierEntry.CONTENT_URI);
+        }
+        return result;
+    }
+
+    /**
+     * Snapshot the stock of every product that has moved since the last checkpoint, as
+     * {@link ProductContract#METHOD_CHECKPOINT_STOCK} describes. Return the number of snapshots.
+     */
+    private int checkpointStock() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        StockLedger ledger = new StockLedger(database);
+        database.beginTransaction();
+        try {
+            int snapshots = ledger.checkpoint();
+            database.setTransactionSuccessful();
+            return snapshots;
+        } finally {
+            database.endTransaction();
+            ledger.close();
+        }
+    }
+
+    /**
+     * Return the number of products a {@link ProductContract#METHOD_SELL_BATCH} result sold any of.
+     */
+    private static int countSold(Bundle result) {
+        int count = 0;
+        for (int sold : result.getIntArray(ProductContract.EXTRA_SOLD_QUANTITIES)) {
+            if (sold > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Parse the product ID passed as the argument of a provider method.
+     */
+    private static long parseProductId(String arg) {
+        try {
+            return Long.parseLong(arg);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid product ID " + arg);
+        }
+    }
+
+    /**
+     * Remove the given products from the cache, or every product if the IDs aren't known. Call
+     * this once the change to them has been committed.
+     */
+    private void invalidateCache(long[] ids) {
+        if (ids == null) {
+            mProductCache.clear();
+            return;
+        }
+        for (long id : ids) {
+            mProductCache.remove(id);
+        }
+    }
+
+    /**
+     * Return the given product values as a row of the products table, with the supplier name and
+     * phone replaced by the ID of the supplier they name. The name and phone must be given
+     * together, since they identify the supplier between them. The version can't be given, since
+     * the database sets it.
+     */
+    private static ContentValues toProductRow(ContentValues values, SupplierResolver suppliers) {
+        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_VERSION)) {
+            throw new IllegalArgumentException("Product version is set by the database");
+        }
+
+        boolean hasName = values.containsKey(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME);
+        boolean hasPhone = values.containsKey(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE);
+        if (!hasName && !hasPhone) {
+            return values;
+        }
+        if (hasName != hasPhone) {
+            throw new IllegalArgumentException("Product requires a supplier name and phone together");
+        }
+
+        ContentValues row = new ContentValues(values);
+        row.remove(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME);
+        row.remove(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE);
+        row.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID, suppliers.resolve(
+                values.getAsString(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME),
+                values.getAsString(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE)));
+        return row;
+    }
+
+    /**
+     * Return the ID of the product a single product URI refers to, or null if the URI refers to
+     * the whole table, in which case the rows that change aren't known.
+     */
+    private static long[] getChangedIds(Uri uri) {
+        if (sUriMatcher.match(uri) == PRODUCT_ID) {
+            return new long[] { ContentUris.parseId(uri) };
+        }
+        return null;
+    }
+
+    /**
+     * Return the IDs of the products a batch changed, or null if any operation changed rows that
+     * aren't known, such as an update of the whole table or a change to a supplier.
+     */
+    private static long[] getChangedIds(List<ContentProviderOperation> operations,
+                                        ContentProviderResult[] results) {
+        long[] ids = new long[operations.size()];
+        for (int i = 0; i < ids.length; i++) {
+            // An insert's result holds the URI of the new product
+            Uri uri = results[i].uri != null ? results[i].uri : operations.get(i).getUri();
+            long[] changed = getChangedIds(uri);
+            if (changed == null) {
+                return null;
+            }
+            ids[i] = changed[0];
+        }
+        return ids;
+    }
+
+    /**
+     * Notify all listeners that the data at the given URI has changed, unless a batch is being
+     * applied on this thread, in which case {@link #applyBatch} notifies once when it's done.
+     */
+    private void notifyChange(Uri uri) {
+        if (Boolean.TRUE.equals(mApplyingBatch.get())) {
+            return;
+        }
+        Objects.requireNonNull(getContext()).getContentResolver().notifyChange(uri, null);
+        mMetrics.recordNotification();
+    }
+
+    /**
+     * Print the provider's metrics, for
+     * {@code adb shell dumpsys activity provider com.example.android.inventory}. Pass
+     * {@code --csv} to print them as CSV.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        boolean csv = args != null && Arrays.asList(args).contains("--csv");
+        mMetrics.dump(writer, csv);
+        if (!csv) {
+            writer.println("Product cache: size=" + mProductCache.getSize() +
+                    " hits=" + mProductCache.getHitCount() +
+                    " misses=" + mProductCache.getMissCount() +
+                    " evictions=" + mProductCache.getEvictionCount());
+        }
+    }
 
     /**
      * Returns the MIME type of data for the content URI.
@@ -328,11 +1722,76 @@ public class ProductProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PRODUCTS:
+            case SEARCH:
                 return ProductEntry.CONTENT_LIST_TYPE;
             case PRODUCT_ID:
+            case SKU:
                 return ProductEntry.CONTENT_ITEM_TYPE;
+            case SUPPLIERS:
+                return SupplierEntry.CONTENT_LIST_TYPE;
+            case SUPPLIER_ID:
+                return SupplierEntry.CONTENT_ITEM_TYPE;
+            case SUPPLIER_PRODUCTS:
+                return ProductEntry.CONTENT_LIST_TYPE;
+            case MOVEMENTS:
+            case PRODUCT_MOVEMENTS:
+                return StockMovementEntry.CONTENT_LIST_TYPE;
+            case TOMBSTONES:
+                return TombstoneEntry.CONTENT_LIST_TYPE;
+            case COUNTERS:
+                return StockCounterEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
+
+    /**
+     * Finds the ID of the supplier with a given name and phone, adding the supplier if there
+     * isn't one yet. Suppliers found are remembered, so a batch of products from a few suppliers
+     * looks each one up once. Use it inside a transaction, and close it when done.
+     */
+    private static class SupplierResolver {
+        private final SQLiteDatabase mDatabase;
+        private final Map<String, Long> mIds = new HashMap<>();
+
+        // Compiled the first time a supplier is looked up
+        private SQLiteStatement mFindStatement;
+        private SQLiteStatement mInsertStatement;
+
+        SupplierResolver(SQLiteDatabase database) {
+            mDatabase = database;
+        }
+
+        long resolve(String name, String phone) {
+            // Prefix the name with its length so that no two name and phone pairs share a key
+            String key = name.length() + ":" + name + phone;
+            Long id = mIds.get(key);
+            if (id != null) {
+                return id;
+            }
+
+            if (mFindStatement == null) {
+                mFindStatement = mDatabase.compileStatement(SQL_FIND_SUPPLIER);
+                mInsertStatement = mDatabase.compileStatement(SQL_INSERT_SUPPLIER);
+            }
+            mFindStatement.bindString(1, name);
+            mFindStatement.bindString(2, phone);
+            try {
+                id = mFindStatement.simpleQueryForLong();
+            } catch (SQLiteDoneException ex) {
+                mInsertStatement.bindString(1, name);
+                mInsertStatement.bindString(2, phone);
+                id = mInsertStatement.executeInsert();
+            }
+            mIds.put(key, id);
+            return id;
+        }
+
+        void close() {
+            if (mFindStatement != null) {
+                mFindStatement.close();
+                mInsertStatement.close();
+            }
+        }
+    }
 }
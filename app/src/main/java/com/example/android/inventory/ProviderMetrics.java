@@ -0,0 +1,239 @@
+package com.example.android.inventory;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.example.android.inventory.data.ProductContract;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts calls, failures, rows and latency for each {@link ProductProvider} operation.
+ * <p>
+ * Every figure is a slot in a preallocated atomic array, so recording a call takes no locks and
+ * allocates nothing. The one exception is {@link #countRowsRead}, which wraps each query's cursor
+ * in a small object, next to the cursor and window the query allocates anyway. Latencies go into power-of-two buckets, from under {@link #FIRST_BUCKET_MICROS}
+ * microseconds up to an open-ended last bucket, which is enough to read off rough percentiles.
+ */
+final class ProviderMetrics {
+
+    /** Operations that are measured */
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int BULK_INSERT = 2;
+    static final int UPDATE = 3;
+    static final int DELETE = 4;
+    static final int APPLY_BATCH = 5;
+    static final int SELL = 6;
+    static final int SELL_BATCH = 7;
+
+    /** Names of the operations, by number */
+    private static final String[] OPERATION_NAMES = new String[] {
+            "query", "insert", "bulkInsert", "update", "delete", "applyBatch", "sell", "sellBatch",
+    };
+
+    private static final int OPERATION_COUNT = OPERATION_NAMES.length;
+
+    /** Upper bound of the first latency bucket; each later bucket is twice as wide */
+    static final long FIRST_BUCKET_MICROS = 64;
+
+    /** Number of latency buckets. The last one holds everything over about a second. */
+    static final int BUCKET_COUNT = 16;
+
+    private final AtomicLongArray mCalls = new AtomicLongArray(OPERATION_COUNT);
+    private final AtomicLongArray mFailures = new AtomicLongArray(OPERATION_COUNT);
+    private final AtomicLongArray mRows = new AtomicLongArray(OPERATION_COUNT);
+    private final AtomicLongArray mTotalNanos = new AtomicLongArray(OPERATION_COUNT);
+    private final AtomicLongArray mLatencyCounts = new AtomicLongArray(OPERATION_COUNT * BUCKET_COUNT);
+    private final AtomicLong mNotifications = new AtomicLong();
+
+    /**
+     * Return the time to pass to {@link #record} when the operation ends.
+     */
+    static long start() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Record one call to an operation.
+     *
+     * @param operation  which operation, for example {@link #QUERY}
+     * @param startNanos the time {@link #start} returned when the call began
+     * @param rows       number of rows the call returned or changed
+     * @param succeeded  false if the call threw
+     */
+    void record(int operation, long startNanos, long rows, boolean succeeded) {
+        long nanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+
+        mCalls.incrementAndGet(operation);
+        if (!succeeded) {
+            mFailures.incrementAndGet(operation);
+        }
+        mRows.addAndGet(operation, rows);
+        mTotalNanos.addAndGet(operation, nanos);
+        mLatencyCounts.incrementAndGet(operation * BUCKET_COUNT + bucketFor(nanos));
+    }
+
+    /**
+     * Wrap the cursor a call to an operation returned, so that the rows its caller reads are
+     * added to the operation's rows when the cursor is closed. Counting the rows up front would
+     * run the query to its end, even when the caller only reads the first few.
+     *
+     * @param operation which operation, for example {@link #QUERY}
+     * @param cursor    the cursor the call returned
+     */
+    Cursor countRowsRead(final int operation, Cursor cursor) {
+        return new CursorWrapper(cursor) {
+            private boolean mCounted;
+
+            @Override
+            public void close() {
+                if (!mCounted) {
+                    mCounted = true;
+                    mRows.addAndGet(operation, getRowsRead());
+                }
+                super.close();
+            }
+
+            /**
+             * Return how far the caller moved through the rows. A cursor that was never moved
+             * isn't counted, since that would run the query.
+             */
+            private int getRowsRead() {
+                int position = getPosition();
+                if (position < 0) {
+                    return 0;
+                }
+                return isAfterLast() ? getCount() : position + 1;
+            }
+        };
+    }
+
+    /**
+     * Record one change notification.
+     */
+    void recordNotification() {
+        mNotifications.incrementAndGet();
+    }
+
+    /**
+     * Return the latency bucket a call of the given length falls into.
+     */
+    private static int bucketFor(long nanos) {
+        long micros = nanos / 1000;
+        if (micros < FIRST_BUCKET_MICROS) {
+            return 0;
+        }
+        // Bucket i, after the first, holds FIRST_BUCKET_MICROS << (i - 1) up to twice that
+        int bucket = 64 - Long.numberOfLeadingZeros(micros / FIRST_BUCKET_MICROS);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Return the upper bound, in microseconds, of the given latency bucket.
+     */
+    private static long bucketBound(int bucket) {
+        return FIRST_BUCKET_MICROS << bucket;
+    }
+
+    /**
+     * Return a copy of all of the figures, keyed as described by
+     * {@link ProductContract#METHOD_GET_METRICS}. The figures are read one at a time while calls
+     * may still be recorded, so they can be off from each other by the calls in flight.
+     */
+    Bundle toBundle() {
+        long[] calls = new long[OPERATION_COUNT];
+        long[] failures = new long[OPERATION_COUNT];
+        long[] rows = new long[OPERATION_COUNT];
+        long[] totalNanos = new long[OPERATION_COUNT];
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            calls[i] = mCalls.get(i);
+            failures[i] = mFailures.get(i);
+            rows[i] = mRows.get(i);
+            totalNanos[i] = mTotalNanos.get(i);
+        }
+
+        long[] latencyCounts = new long[mLatencyCounts.length()];
+        for (int i = 0; i < latencyCounts.length; i++) {
+            latencyCounts[i] = mLatencyCounts.get(i);
+        }
+
+        long[] bounds = new long[BUCKET_COUNT - 1];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = bucketBound(i);
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putStringArray(ProductContract.EXTRA_METRIC_OPERATIONS, OPERATION_NAMES.clone());
+        bundle.putLongArray(ProductContract.EXTRA_METRIC_CALLS, calls);
+        bundle.putLongArray(ProductContract.EXTRA_METRIC_FAILURES, failures);
+        bundle.putLongArray(ProductContract.EXTRA_METRIC_ROWS, rows);
+        bundle.putLongArray(ProductContract.EXTRA_METRIC_TOTAL_NANOS, totalNanos);
+        bundle.putLongArray(ProductContract.EXTRA_METRIC_BUCKET_BOUNDS, bounds);
+        bundle.putLongArray(ProductContract.EXTRA_METRIC_LATENCY_COUNTS, latencyCounts);
+        bundle.putLong(ProductContract.EXTRA_METRIC_NOTIFICATIONS, mNotifications.get());
+        return bundle;
+    }
+
+    /**
+     * Print the figures, one line per operation with latency percentiles read off the histogram.
+     * With {@code --csv}, print them as CSV with the full histogram instead, for analysis
+     * elsewhere.
+     */
+    void dump(PrintWriter writer, boolean csv) {
+        if (csv) {
+            writer.print("operation,calls,failures,rows,totalNanos");
+            for (int bucket = 0; bucket < BUCKET_COUNT - 1; bucket++) {
+                writer.print(",le" + bucketBound(bucket) + "us");
+            }
+            writer.println(",inf");
+        } else {
+            writer.println("Notifications: " + mNotifications.get());
+        }
+
+        for (int op = 0; op < OPERATION_COUNT; op++) {
+            long calls = mCalls.get(op);
+            if (csv) {
+                writer.print(OPERATION_NAMES[op] + "," + calls + "," + mFailures.get(op) + "," +
+                        mRows.get(op) + "," + mTotalNanos.get(op));
+                for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                    writer.print("," + mLatencyCounts.get(op * BUCKET_COUNT + bucket));
+                }
+                writer.println();
+            } else if (calls > 0) {
+                writer.println(OPERATION_NAMES[op] + ": calls=" + calls +
+                        " failures=" + mFailures.get(op) +
+                        " rows=" + mRows.get(op) +
+                        " meanUs=" + mTotalNanos.get(op) / calls / 1000 +
+                        " p50Us<=" + percentileBound(op, 0.50) +
+                        " p90Us<=" + percentileBound(op, 0.90) +
+                        " p99Us<=" + percentileBound(op, 0.99));
+            }
+        }
+    }
+
+    /**
+     * Return the upper bound, in microseconds, of the bucket holding the given percentile of an
+     * operation's latencies, or -1 if it falls into the open-ended last bucket.
+     */
+    private long percentileBound(int operation, double percentile) {
+        long total = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            total += mLatencyCounts.get(operation * BUCKET_COUNT + bucket);
+        }
+
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT - 1; bucket++) {
+            seen += mLatencyCounts.get(operation * BUCKET_COUNT + bucket);
+            if (seen >= rank) {
+                return bucketBound(bucket);
+            }
+        }
+        return -1;
+    }
+}
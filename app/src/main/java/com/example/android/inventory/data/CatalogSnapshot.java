@@ -0,0 +1,344 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A copy of the columns of the products table that totals are computed from, held column by
+ * column in primitive arrays: IDs, prices in cents, quantities, reorder thresholds, and suppliers
+ * encoded as indexes into a dictionary of supplier names.
+ * <p>
+ * Totals are tight loops over the arrays, with no cursor and no boxing, so they stay fast over
+ * millions of rows. Rows are kept in {@link ProductEntry#_ID} order. After {@link #load}, the
+ * snapshot follows the products table when each change notification is passed to
+ * {@link #applyChange}, which fetches only the products it names (see {@link ProductChange}).
+ * <p>
+ * A snapshot isn't thread-safe. {@link ProductReports} keeps one and only touches it while
+ * holding its lock.
+ */
+public class CatalogSnapshot {
+
+    /** Number of rows fetched per query by {@link #load} */
+    public static final int LOAD_PAGE_SIZE = 1000;
+
+    /** Columns the snapshot holds, in the order they are queried */
+    private static final String[] COLUMNS = new String[] {
+            ProductEntry._ID,
+            ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME,
+            ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD,
+    };
+
+    private final ContentResolver mContentResolver;
+
+    // The rows, column by column. Only the first mSize entries of each array are used.
+    private int mSize;
+    private long[] mIds = new long[16];
+    private long[] mPrices = new long[16];
+    private int[] mQuantities = new int[16];
+    private int[] mSupplierIds = new int[16];
+    private int[] mThresholds = new int[16];
+
+    // Supplier names, and the index of each in the list
+    private final List<String> mSupplierNames = new ArrayList<>();
+    private final Map<String, Integer> mSupplierIndex = new HashMap<>();
+
+    /**
+     * Constructs a new, empty {@link CatalogSnapshot}.
+     *
+     * @param contentResolver used to read the products
+     */
+    public CatalogSnapshot(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /**
+     * Read the whole products table into the snapshot, replacing what it held.
+     */
+    public void load() {
+        mSize = 0;
+        mSupplierNames.clear();
+        mSupplierIndex.clear();
+        Uri pageUri = ProductEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ProductContract.QUERY_PARAMETER_LIMIT, String.valueOf(LOAD_PAGE_SIZE))
+                .build();
+        String[] selectionArgs = new String[1];
+
+        long lastId = -1;
+        int pageRows = LOAD_PAGE_SIZE;
+        while (pageRows == LOAD_PAGE_SIZE) {
+            selectionArgs[0] = String.valueOf(lastId);
+            Cursor cursor = mContentResolver.query(pageUri, COLUMNS, ProductEntry._ID + " > ?",
+                    selectionArgs, ProductEntry._ID);
+            if (cursor == null) {
+                return;
+            }
+            try {
+                pageRows = cursor.getCount();
+                ensureCapacity(mSize + pageRows);
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    setRow(mSize++, cursor);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Apply a change notification: fetch just the products it names, or load the whole table
+     * again if it doesn't name any.
+     *
+     * @param uri the URI passed to the content observer, which may be null
+     */
+    public void applyChange(Uri uri) {
+        ProductChange change = ProductChange.fromUri(uri);
+        if (change == null || change.getIds() == null) {
+            load();
+            return;
+        }
+        if (!change.affects(COLUMNS)) {
+            return;
+        }
+
+        long[] ids = change.getIds();
+        if (ProductChange.TYPE_DELETE.equals(change.getType())) {
+            for (long id : ids) {
+                removeRow(id);
+            }
+            return;
+        }
+
+        // Fetch the products named. Any the query doesn't return have been deleted since.
+        StringBuilder selection = new StringBuilder(ProductEntry._ID + " IN (");
+        String[] selectionArgs = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+            selectionArgs[i] = String.valueOf(ids[i]);
+        }
+        selection.append(')');
+
+        Cursor cursor = mContentResolver.query(ProductEntry.CONTENT_URI, COLUMNS,
+                selection.toString(), selectionArgs, null);
+        if (cursor == null) {
+            return;
+        }
+        boolean[] found = new boolean[ids.length];
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                for (int i = 0; i < ids.length; i++) {
+                    if (ids[i] == id) {
+                        found[i] = true;
+                    }
+                }
+
+                // Update the row in place, or add it if the snapshot doesn't have it yet
+                int position = Arrays.binarySearch(mIds, 0, mSize, id);
+                if (position < 0) {
+                    position = insertionPoint(id);
+                    insertRow(position);
+                }
+                setRow(position, cursor);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            if (!found[i]) {
+                removeRow(ids[i]);
+            }
+        }
+    }
+
+    /**
+     * Return the number of products in the snapshot.
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Return the value of the inventory, in cents: the sum of price times quantity over every
+     * product.
+     */
+    public long getInventoryValue() {
+        long value = 0;
+        for (int i = 0; i < mSize; i++) {
+            value += mPrices[i] * mQuantities[i];
+        }
+        return value;
+    }
+
+    /**
+     * Return the total number of items in stock.
+     */
+    public long getTotalQuantity() {
+        long total = 0;
+        for (int i = 0; i < mSize; i++) {
+            total += mQuantities[i];
+        }
+        return total;
+    }
+
+    /**
+     * Return the number of products low on stock, that is at or below their
+     * {@link ProductEntry#COLUMN_PRODUCT_REORDER_THRESHOLD}.
+     */
+    public int countLowStock() {
+        int count = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (mQuantities[i] <= mThresholds[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of suppliers seen. Suppliers are numbered from 0, see
+     * {@link #getSupplierName}. A supplier stays numbered after its last product is gone, with
+     * totals of 0.
+     */
+    public int getSupplierCount() {
+        return mSupplierNames.size();
+    }
+
+    /**
+     * Return the name of the supplier with the given number.
+     */
+    public String getSupplierName(int supplier) {
+        return mSupplierNames.get(supplier);
+    }
+
+    /**
+     * Return the inventory value of each supplier's products in cents, indexed by supplier number.
+     */
+    public long[] getValueBySupplier() {
+        long[] values = new long[mSupplierNames.size()];
+        for (int i = 0; i < mSize; i++) {
+            values[mSupplierIds[i]] += mPrices[i] * mQuantities[i];
+        }
+        return values;
+    }
+
+    /**
+     * Return the number of products from each supplier, indexed by supplier number.
+     */
+    public int[] getProductCountBySupplier() {
+        int[] counts = new int[mSupplierNames.size()];
+        for (int i = 0; i < mSize; i++) {
+            counts[mSupplierIds[i]]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Return the number of items in stock from each supplier, indexed by supplier number.
+     */
+    public long[] getQuantityBySupplier() {
+        long[] quantities = new long[mSupplierNames.size()];
+        for (int i = 0; i < mSize; i++) {
+            quantities[mSupplierIds[i]] += mQuantities[i];
+        }
+        return quantities;
+    }
+
+    /**
+     * Copy the current row of a cursor queried with {@link #COLUMNS} into the given position.
+     */
+    private void setRow(int position, Cursor cursor) {
+        mIds[position] = cursor.getLong(0);
+        mPrices[position] = cursor.getLong(1);
+        mQuantities[position] = cursor.getInt(2);
+        mSupplierIds[position] = encodeSupplier(cursor.getString(3));
+        mThresholds[position] = cursor.getInt(4);
+    }
+
+    /**
+     * Return the number of the given supplier, numbering it if it hasn't been seen before.
+     */
+    private int encodeSupplier(String name) {
+        Integer supplier = mSupplierIndex.get(name);
+        if (supplier == null) {
+            supplier = mSupplierNames.size();
+            mSupplierNames.add(name);
+            mSupplierIndex.put(name, supplier);
+        }
+        return supplier;
+    }
+
+    /**
+     * Return the position the given ID belongs at. Rows are in ID order and new products usually
+     * have the highest IDs, so this is normally the end.
+     */
+    private int insertionPoint(long id) {
+        if (mSize == 0 || id > mIds[mSize - 1]) {
+            return mSize;
+        }
+        int index = Arrays.binarySearch(mIds, 0, mSize, id);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Open up a gap for one row at the given position.
+     */
+    private void insertRow(int position) {
+        ensureCapacity(mSize + 1);
+        int moved = mSize - position;
+        if (moved > 0) {
+            System.arraycopy(mIds, position, mIds, position + 1, moved);
+            System.arraycopy(mPrices, position, mPrices, position + 1, moved);
+            System.arraycopy(mQuantities, position, mQuantities, position + 1, moved);
+            System.arraycopy(mSupplierIds, position, mSupplierIds, position + 1, moved);
+            System.arraycopy(mThresholds, position, mThresholds, position + 1, moved);
+        }
+        mSize++;
+    }
+
+    /**
+     * Remove the row with the given ID, if there is one.
+     */
+    private void removeRow(long id) {
+        int position = Arrays.binarySearch(mIds, 0, mSize, id);
+        if (position < 0) {
+            return;
+        }
+        int moved = mSize - position - 1;
+        if (moved > 0) {
+            System.arraycopy(mIds, position + 1, mIds, position, moved);
+            System.arraycopy(mPrices, position + 1, mPrices, position, moved);
+            System.arraycopy(mQuantities, position + 1, mQuantities, position, moved);
+            System.arraycopy(mSupplierIds, position + 1, mSupplierIds, position, moved);
+            System.arraycopy(mThresholds, position + 1, mThresholds, position, moved);
+        }
+        mSize--;
+    }
+
+    /**
+     * Grow the arrays, if needed, to hold at least the given number of rows.
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mIds.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mIds.length * 2);
+        mIds = Arrays.copyOf(mIds, newCapacity);
+        mPrices = Arrays.copyOf(mPrices, newCapacity);
+        mQuantities = Arrays.copyOf(mQuantities, newCapacity);
+        mSupplierIds = Arrays.copyOf(mSupplierIds, newCapacity);
+        mThresholds = Arrays.copyOf(mThresholds, newCapacity);
+    }
+}
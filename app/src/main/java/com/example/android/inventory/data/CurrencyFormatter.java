@@ -0,0 +1,248 @@
+package com.example.android.inventory.data;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.FieldPosition;
+import java.text.NumberFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Formats prices in cents as currency in the default locale, without allocating.
+ * <p>
+ * Looking up a currency format for a locale is slow, and {@link NumberFormat} isn't thread-safe,
+ * so each thread gets its own formatter from {@link #getInstance}, which keeps the formats of the
+ * locales it has seen. The default locale is checked on every call, so a change of locale takes
+ * effect on the next price formatted.
+ * <p>
+ * For the common currency patterns, the prefix, suffix, separators and number of decimal places
+ * are read from the locale's format once, and prices are written digit by digit into a buffer
+ * that is reused from call to call. A locale whose pattern this doesn't reproduce exactly is
+ * formatted by its {@link NumberFormat} instead.
+ */
+public final class CurrencyFormatter {
+
+    private static final ThreadLocal<CurrencyFormatter> sFormatters = new ThreadLocal<CurrencyFormatter>() {
+        @Override
+        protected CurrencyFormatter initialValue() {
+            return new CurrencyFormatter();
+        }
+    };
+
+    /** Prices a locale's format is checked against before it is written digit by digit */
+    private static final long[] SAMPLE_PRICES = new long[] { 0, 5, 1234567850, -1234567850 };
+
+    /** Most decimal places a currency can have to be written digit by digit */
+    private static final int MAX_FRACTION_DIGITS = 4;
+
+    private static final long[] POWERS_OF_TEN = new long[] { 1, 10, 100, 1000, 10000 };
+
+    /**
+     * How prices are written in one locale.
+     */
+    private static class LocaleFormat {
+        // Used when the fields below can't reproduce the locale's pattern
+        NumberFormat mFallback;
+
+        String mPositivePrefix;
+        String mPositiveSuffix;
+        String mNegativePrefix;
+        String mNegativeSuffix;
+        char mZeroDigit;
+        char mDecimalSeparator;
+        char mGroupingSeparator;
+        int mGroupingSize;
+        int mFractionDigits;
+    }
+
+    // Formats of the locales seen on this thread, and the one in use
+    private final Map<Locale, LocaleFormat> mFormats = new HashMap<>();
+    private Locale mLocale;
+    private LocaleFormat mFormat;
+
+    // The last price formatted, and room to build it right to left
+    private char[] mBuffer = new char[32];
+    private final char[] mScratch = new char[64];
+
+    // Reused by fallback formats
+    private final StringBuffer mFallbackBuffer = new StringBuffer();
+    private final FieldPosition mFieldPosition = new FieldPosition(0);
+
+    private CurrencyFormatter() {
+    }
+
+    /**
+     * Return the calling thread's formatter.
+     */
+    public static CurrencyFormatter getInstance() {
+        return sFormatters.get();
+    }
+
+    /**
+     * Format the given price as currency into this formatter's buffer. The characters are valid
+     * until the next price is formatted on this thread.
+     *
+     * @param cents the price, in cents
+     * @return the number of characters written to the start of {@link #getBuffer}
+     */
+    public int format(long cents) {
+        LocaleFormat format = getLocaleFormat();
+        if (format.mFallback != null) {
+            return formatWithFallback(format.mFallback, cents);
+        }
+        return formatDigits(format, cents);
+    }
+
+    /**
+     * Return the buffer {@link #format} writes to. The next call overwrites it, so copy the
+     * characters out before passing them to something that keeps them, like
+     * {@link android.widget.TextView#setText(char[], int, int)}.
+     */
+    public char[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Format the given price as currency into a new string.
+     *
+     * @param cents the price, in cents
+     */
+    public String formatToString(long cents) {
+        return new String(mBuffer, 0, format(cents));
+    }
+
+    /**
+     * Return the format of the default locale, looking it up if the locale has changed.
+     */
+    private LocaleFormat getLocaleFormat() {
+        Locale locale = Locale.getDefault();
+        if (locale != mLocale) {
+            LocaleFormat format = mFormats.get(locale);
+            if (format == null) {
+                format = createLocaleFormat(locale);
+                mFormats.put(locale, format);
+            }
+            mLocale = locale;
+            mFormat = format;
+        }
+        return mFormat;
+    }
+
+    /**
+     * Read how prices are written in the given locale from its currency format, and check the
+     * result against the format itself.
+     */
+    private LocaleFormat createLocaleFormat(Locale locale) {
+        NumberFormat numberFormat = NumberFormat.getCurrencyInstance(locale);
+        LocaleFormat format = new LocaleFormat();
+        format.mFallback = numberFormat;
+        if (!(numberFormat instanceof DecimalFormat)) {
+            return format;
+        }
+
+        DecimalFormat decimalFormat = (DecimalFormat) numberFormat;
+        int fractionDigits = decimalFormat.getMaximumFractionDigits();
+        if (fractionDigits != decimalFormat.getMinimumFractionDigits()
+                || fractionDigits > MAX_FRACTION_DIGITS
+                || decimalFormat.getMinimumIntegerDigits() != 1) {
+            return format;
+        }
+
+        DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
+        LocaleFormat digitFormat = new LocaleFormat();
+        digitFormat.mPositivePrefix = decimalFormat.getPositivePrefix();
+        digitFormat.mPositiveSuffix = decimalFormat.getPositiveSuffix();
+        digitFormat.mNegativePrefix = decimalFormat.getNegativePrefix();
+        digitFormat.mNegativeSuffix = decimalFormat.getNegativeSuffix();
+        digitFormat.mZeroDigit = symbols.getZeroDigit();
+        digitFormat.mDecimalSeparator = symbols.getMonetaryDecimalSeparator();
+        digitFormat.mGroupingSeparator = symbols.getGroupingSeparator();
+        digitFormat.mGroupingSize = decimalFormat.isGroupingUsed() ? decimalFormat.getGroupingSize() : 0;
+        digitFormat.mFractionDigits = fractionDigits;
+
+        // Patterns with features the fields don't capture, like a second grouping size, won't
+        // match
+        for (long cents : SAMPLE_PRICES) {
+            String expected = numberFormat.format(Prices.toUnits(cents));
+            int length = formatDigits(digitFormat, cents);
+            if (!expected.contentEquals(new StringBuilder(length).append(mBuffer, 0, length))) {
+                return format;
+            }
+        }
+        return digitFormat;
+    }
+
+    /**
+     * Write the given price into the buffer digit by digit, as the given format describes.
+     */
+    private int formatDigits(LocaleFormat format, long cents) {
+        boolean negative = cents < 0;
+        long value = toFractionDigits(Math.abs(cents), format.mFractionDigits);
+
+        // Write the number right to left, starting with the decimal places
+        int end = mScratch.length;
+        int position = end;
+        for (int i = 0; i < format.mFractionDigits; i++) {
+            mScratch[--position] = (char) (format.mZeroDigit + value % 10);
+            value /= 10;
+        }
+        if (format.mFractionDigits > 0) {
+            mScratch[--position] = format.mDecimalSeparator;
+        }
+        int integerDigits = 0;
+        do {
+            if (format.mGroupingSize > 0 && integerDigits > 0 && integerDigits % format.mGroupingSize == 0) {
+                mScratch[--position] = format.mGroupingSeparator;
+            }
+            mScratch[--position] = (char) (format.mZeroDigit + value % 10);
+            value /= 10;
+            integerDigits++;
+        } while (value > 0);
+
+        String prefix = negative ? format.mNegativePrefix : format.mPositivePrefix;
+        String suffix = negative ? format.mNegativeSuffix : format.mPositiveSuffix;
+        int numberLength = end - position;
+        int length = prefix.length() + numberLength + suffix.length();
+        ensureCapacity(length);
+        prefix.getChars(0, prefix.length(), mBuffer, 0);
+        System.arraycopy(mScratch, position, mBuffer, prefix.length(), numberLength);
+        suffix.getChars(0, suffix.length(), mBuffer, prefix.length() + numberLength);
+        return length;
+    }
+
+    /**
+     * Convert a number of cents to the given number of decimal places, rounding half to even as
+     * {@link DecimalFormat} does.
+     */
+    private static long toFractionDigits(long cents, int fractionDigits) {
+        if (fractionDigits >= 2) {
+            return cents * POWERS_OF_TEN[fractionDigits - 2];
+        }
+        long divisor = POWERS_OF_TEN[2 - fractionDigits];
+        long quotient = cents / divisor;
+        long remainder = cents % divisor;
+        if (remainder * 2 > divisor || (remainder * 2 == divisor && (quotient & 1) == 1)) {
+            quotient++;
+        }
+        return quotient;
+    }
+
+    /**
+     * Format the given price with the locale's own number format, into the buffer.
+     */
+    private int formatWithFallback(NumberFormat numberFormat, long cents) {
+        mFallbackBuffer.setLength(0);
+        numberFormat.format(Prices.toUnits(cents), mFallbackBuffer, mFieldPosition);
+        int length = mFallbackBuffer.length();
+        ensureCapacity(length);
+        mFallbackBuffer.getChars(0, length, mBuffer, 0);
+        return length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mBuffer.length) {
+            mBuffer = new char[Math.max(capacity, mBuffer.length * 2)];
+        }
+    }
+}
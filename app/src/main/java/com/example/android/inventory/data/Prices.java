@@ -0,0 +1,97 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentValues;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import java.math.BigDecimal;
+
+/**
+ * Conversions between prices as they are stored, in whole cents, and prices as people type and
+ * read them, as decimal amounts like {@code 12.50}.
+ * <p>
+ * Keeping prices in cents means sums and products of prices are exact integer arithmetic, in
+ * Java and in SQLite, with no rounding error building up over a large catalog.
+ */
+public final class Prices {
+
+    /** Number of cents in one unit of currency */
+    public static final int CENTS_PER_UNIT = 100;
+
+    // To prevent someone from accidentally instantiating the prices class,
+    // give it an empty constructor.
+    private Prices() {}
+
+    /**
+     * Parse a decimal amount with at most two decimal places, like {@code 12}, {@code 12.5} or
+     * {@code 12.50}, into cents.
+     *
+     * @throws NumberFormatException if the text isn't such an amount
+     */
+    public static long parse(String amount) {
+        try {
+            return new BigDecimal(amount.trim()).movePointRight(2).longValueExact();
+        } catch (ArithmeticException ex) {
+            throw new NumberFormatException("Invalid price " + amount);
+        }
+    }
+
+    /**
+     * Return the given number of cents as a plain decimal amount, like {@code 12.50}, which
+     * {@link #parse} reads back.
+     */
+    public static String toString(long cents) {
+        StringBuilder builder = new StringBuilder(24);
+        if (cents < 0) {
+            builder.append('-');
+        }
+        long units = Math.abs(cents / CENTS_PER_UNIT);
+        long fraction = Math.abs(cents % CENTS_PER_UNIT);
+        builder.append(units).append('.');
+        if (fraction < 10) {
+            builder.append('0');
+        }
+        return builder.append(fraction).toString();
+    }
+
+    /**
+     * Return the given number of cents in units of currency, for formatting.
+     */
+    public static double toUnits(long cents) {
+        return cents / (double) CENTS_PER_UNIT;
+    }
+
+    /**
+     * Return the price in the given product values, in cents, or null if there is none or it
+     * isn't a whole number of cents. Unlike {@link ContentValues#getAsLong}, a fractional price
+     * is rejected instead of being truncated.
+     */
+    public static Long getCents(ContentValues values) {
+        Object price = values.get(ProductEntry.COLUMN_PRODUCT_PRICE);
+        if (price instanceof Long || price instanceof Integer || price instanceof Short
+                || price instanceof Byte) {
+            return ((Number) price).longValue();
+        }
+        if (price instanceof String) {
+            try {
+                return Long.valueOf((String) price);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Put a price typed as a decimal amount into the given product values, in cents. Text that
+     * isn't an amount is put as it is, so that validating the values rejects it with the usual
+     * message.
+     */
+    public static void putAmount(ContentValues values, String amount) {
+        try {
+            values.put(ProductEntry.COLUMN_PRODUCT_PRICE, parse(amount));
+        } catch (NumberFormatException ex) {
+            values.put(ProductEntry.COLUMN_PRODUCT_PRICE, amount);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.example.android.inventory.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+/**
+ * Keeps the most recently read product rows in memory, keyed by {@link ProductEntry#_ID}, so
+ * that opening the same product again doesn't go back to the database. Cached rows can also be
+ * found by {@link ProductEntry#COLUMN_PRODUCT_SKU}, so that scanning the same barcode again
+ * doesn't either.
+ * <p>
+ * Rows are read through the cache: on a miss the caller reads the row and offers it back with
+ * {@link #put}. Whoever writes a product must {@link #remove} it, or {@link #clear} the cache if
+ * it doesn't know which products it wrote, after the write has been committed. A row read before
+ * a removal is refused by {@link #put}, so a slow reader can't put back a row that has since
+ * changed.
+ */
+public class ProductCache {
+
+    /** Columns of a cached row, in order */
+    public static final String[] COLUMNS = new String[] {
+            ProductEntry._ID,
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE,
+            ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD,
+            ProductEntry.COLUMN_PRODUCT_SKU,
+    };
+
+    private static final int SKU_INDEX = COLUMNS.length - 1;
+
+    private final LruCache<Long, Object[]> mRows;
+
+    // IDs of the products with each SKU. An entry can outlive its row, or the product's SKU can
+    // change, so a row found through it is only used if it still has the SKU.
+    private final LruCache<String, Long> mSkus;
+
+    // Incremented by every removal, so rows read before it can be told apart
+    private long mGeneration;
+
+    /**
+     * Constructs a new {@link ProductCache}.
+     *
+     * @param maxSize most rows kept; the least recently used rows are evicted past this
+     */
+    public ProductCache(int maxSize) {
+        mRows = new LruCache<>(maxSize);
+        mSkus = new LruCache<>(maxSize);
+    }
+
+    /**
+     * Return whether a cached row has all of the given columns. A null projection asks for every
+     * column of the products view, which a cached row doesn't have, so it isn't covered.
+     *
+     * @param projection the columns wanted
+     */
+    public static boolean covers(String[] projection) {
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (indexOf(column) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the cached row of the given product, or null if it isn't cached.
+     */
+    public Object[] get(long id) {
+        return mRows.get(id);
+    }
+
+    /**
+     * Return the cached row of the product with the given SKU, or null if it isn't cached.
+     */
+    public synchronized Object[] getBySku(String sku) {
+        Long id = mSkus.get(sku);
+        if (id == null) {
+            return null;
+        }
+        Object[] row = mRows.get(id);
+        if (row == null || !sku.equals(row[SKU_INDEX])) {
+            mSkus.remove(sku);
+            return null;
+        }
+        return row;
+    }
+
+    /**
+     * Return the current generation. Read it before reading a row from the database, and pass it
+     * to {@link #put} with the row.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache a row read from the database, unless a product has been removed since the row was
+     * read, in which case the row may be out of date.
+     *
+     * @param id         the product's ID
+     * @param row        the row, as returned by {@link #readRow}
+     * @param generation what {@link #getGeneration} returned before the row was read
+     */
+    public synchronized void put(long id, Object[] row, long generation) {
+        if (generation == mGeneration) {
+            mRows.put(id, row);
+            if (row[SKU_INDEX] instanceof String) {
+                mSkus.put((String) row[SKU_INDEX], id);
+            }
+        }
+    }
+
+    /**
+     * Forget the cached row of the given product.
+     */
+    public synchronized void remove(long id) {
+        mGeneration++;
+        mRows.remove(id);
+    }
+
+    /**
+     * Forget every cached row.
+     */
+    public synchronized void clear() {
+        mGeneration++;
+        mRows.evictAll();
+        mSkus.evictAll();
+    }
+
+    /** Number of lookups that found their row */
+    public int getHitCount() {
+        return mRows.hitCount();
+    }
+
+    /** Number of lookups that didn't */
+    public int getMissCount() {
+        return mRows.missCount();
+    }
+
+    /** Number of rows evicted to make room for others */
+    public int getEvictionCount() {
+        return mRows.evictionCount();
+    }
+
+    /** Number of rows cached */
+    public int getSize() {
+        return mRows.size();
+    }
+
+    /**
+     * Read the current row of a cursor that was queried with {@link #COLUMNS}.
+     */
+    public static Object[] readRow(Cursor cursor) {
+        Object[] row = new Object[COLUMNS.length];
+        for (int i = 0; i < COLUMNS.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    row[i] = cursor.getString(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = cursor.getBlob(i);
+                    break;
+                default:
+                    row[i] = null;
+                    break;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Return a cursor over the given columns of a cached row.
+     *
+     * @param projection the columns, which {@link #covers} must accept
+     * @param row        the row, or null for an empty cursor
+     */
+    public static Cursor toCursor(String[] projection, Object[] row) {
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        if (row != null) {
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                values[i] = row[indexOf(projection[i])];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    /**
+     * Return the position of a column in a cached row, or -1 if it isn't one.
+     */
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentUris;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import java.util.List;
+
+/**
+ * Describes a change to the products table: what kind of change it was, which products it touched
+ * and which columns it changed.
+ * <p>
+ * {@link com.example.android.inventory.ProductProvider} sends this description as the URI of its
+ * change notifications. A change to one product is sent on that product's URI, for example
+ * content://com.example.android.inventory/products/3?change=update&columns=quantity, and a change
+ * to several is sent on the products URI with their IDs listed. Observers can use
+ * {@link #fromUri} to read it back and update only what changed instead of reloading everything.
+ */
+public final class ProductChange {
+
+    /** Products were inserted */
+    public static final String TYPE_INSERT = "insert";
+
+    /** Products were updated */
+    public static final String TYPE_UPDATE = "update";
+
+    /** Products were deleted */
+    public static final String TYPE_DELETE = "delete";
+
+    /**
+     * Most IDs described in one notification. A change to more products than this is described
+     * without its IDs, which observers treat as a change to the whole table.
+     */
+    public static final int MAX_DESCRIBED_IDS = 100;
+
+    private final String mType;
+    private final long[] mIds;
+    private final String[] mColumns;
+
+    private ProductChange(String type, long[] ids, String[] columns) {
+        mType = type;
+        mIds = ids;
+        mColumns = columns;
+    }
+
+    /**
+     * Return the kind of change: {@link #TYPE_INSERT}, {@link #TYPE_UPDATE} or {@link #TYPE_DELETE}.
+     */
+    public String getType() {
+        return mType;
+    }
+
+    /**
+     * Return the IDs of the products that changed, or null if they aren't known, in which case
+     * any product may have changed.
+     */
+    public long[] getIds() {
+        return mIds;
+    }
+
+    /**
+     * Return the columns that changed, or null if they aren't known, in which case any column
+     * may have changed.
+     */
+    public String[] getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * Return whether the change may have touched any of the given columns.
+     *
+     * @param projection the columns an observer is interested in, or null for all of them
+     */
+    public boolean affects(String[] projection) {
+        if (mColumns == null || projection == null || !TYPE_UPDATE.equals(mType)) {
+            return true;
+        }
+        for (String changed : mColumns) {
+            for (String column : projection) {
+                if (changed.equals(column)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the notification URI that describes a change.
+     *
+     * @param type    the kind of change
+     * @param ids     the products that changed, or null if they aren't known
+     * @param columns the columns that changed, or null if they aren't known
+     */
+    public static Uri buildUri(String type, long[] ids, String[] columns) {
+        Uri.Builder builder;
+        if (ids != null && ids.length == 1) {
+            builder = ContentUris.withAppendedId(ProductEntry.CONTENT_URI, ids[0]).buildUpon();
+        } else {
+            builder = ProductEntry.CONTENT_URI.buildUpon();
+            if (ids != null && ids.length <= MAX_DESCRIBED_IDS) {
+                StringBuilder list = new StringBuilder();
+                for (long id : ids) {
+                    if (list.length() > 0) {
+                        list.append(',');
+                    }
+                    list.append(id);
+                }
+                builder.appendQueryParameter(ProductContract.QUERY_PARAMETER_CHANGED_IDS, list.toString());
+            }
+        }
+
+        builder.appendQueryParameter(ProductContract.QUERY_PARAMETER_CHANGE, type);
+        if (columns != null) {
+            builder.appendQueryParameter(ProductContract.QUERY_PARAMETER_CHANGED_COLUMNS,
+                    TextUtils.join(",", columns));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Read the change described by a notification URI.
+     *
+     * @param uri the URI passed to a content observer, which may be null
+     * @return the change, or null if the URI doesn't describe one, in which case anything in the
+     * products table may have changed
+     */
+    public static ProductChange fromUri(Uri uri) {
+        if (uri == null) {
+            return null;
+        }
+        String type = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_CHANGE);
+        if (type == null) {
+            return null;
+        }
+
+        long[] ids = null;
+        List<String> segments = uri.getPathSegments();
+        String idList = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_CHANGED_IDS);
+        try {
+            if (segments.size() == 2) {
+                ids = new long[] { ContentUris.parseId(uri) };
+            } else if (!TextUtils.isEmpty(idList)) {
+                String[] parts = idList.split(",");
+                ids = new long[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    ids[i] = Long.parseLong(parts[i]);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            ids = null;
+        }
+
+        String columnList = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_CHANGED_COLUMNS);
+        String[] columns = TextUtils.isEmpty(columnList) ? null : columnList.split(",");
+
+        return new ProductChange(type, ids, columns);
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.android.inventory.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -27,6 +28,245 @@ public class ProductContract {
      */
     public static final String PATH_PRODUCTS = "products";
 
+    /**
+     * Path appended to the products content URI for full-text search. The search text is appended
+     * as one more path segment, for example
+     * content://com.example.android.inventory/products/search/harley
+     */
+    public static final String PATH_SEARCH = "search";
+
+    /**
+     * Path appended to the products content URI to look a product up by its SKU. The SKU is
+     * appended as one more path segment, for example
+     * content://com.example.android.inventory/products/sku/4006381333931
+     */
+    public static final String PATH_SKU = "sku";
+
+    /**
+     * Path appended to base content URI for the tombstones of deleted products, for example
+     * content://com.example.android.inventory/tombstones/
+     */
+    public static final String PATH_TOMBSTONES = "tombstones";
+
+    /**
+     * Path appended to base content URI for supplier data, for example
+     * content://com.example.android.inventory/suppliers/
+     */
+    public static final String PATH_SUPPLIERS = "suppliers";
+
+    /**
+     * Path appended to base content URI for the stock movement ledger, for example
+     * content://com.example.android.inventory/movements/
+     */
+    public static final String PATH_MOVEMENTS = "movements";
+
+    /**
+     * Path appended to base content URI for the stock counters, for example
+     * content://com.example.android.inventory/counters/
+     */
+    public static final String PATH_COUNTERS = "counters";
+
+    /**
+     * Query parameter that limits the number of rows a query returns, for example
+     * content://com.example.android.inventory/products?limit=100. Combined with a selection on
+     * {@link ProductEntry#_ID} and a sort order of {@link ProductEntry#_ID} it lets callers page
+     * through the table without loading all of it at once.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * Query parameter of a products query that groups the rows by the given product column, for
+     * example content://com.example.android.inventory/products?groupBy=supplierId. The projection
+     * can then use aggregates such as {@code SUM(quantity)}, which are computed per group.
+     */
+    public static final String QUERY_PARAMETER_GROUP_BY = "groupBy";
+
+    /**
+     * Query parameter of a change notification URI giving the kind of change: insert, update or
+     * delete. See {@link ProductChange}.
+     */
+    public static final String QUERY_PARAMETER_CHANGE = "change";
+
+    /**
+     * Query parameter of a change notification URI listing the IDs of the products that changed,
+     * separated by commas. A change to a single product is sent on that product's URI instead.
+     */
+    public static final String QUERY_PARAMETER_CHANGED_IDS = "ids";
+
+    /**
+     * Query parameter of a change notification URI listing the columns that changed, separated by
+     * commas.
+     */
+    public static final String QUERY_PARAMETER_CHANGED_COLUMNS = "columns";
+
+    /**
+     * Provider method, passed to {@link ContentResolver#call}, that sells some of a product's stock
+     * in one atomic step. The argument is the product's {@link ProductEntry#_ID} and the extras may
+     * hold the number to sell in {@link #EXTRA_SALE_QUANTITY} (1 if absent).
+     * <p>
+     * Stock is only taken if there is enough of it. The result holds {@link #EXTRA_SOLD}, saying
+     * whether the sale went through, and {@link #EXTRA_STOCK_LEVEL}, the quantity left afterwards.
+     */
+    public static final String METHOD_SELL = "sell";
+
+    /** Number of items to sell with {@link #METHOD_SELL}. Type: int */
+    public static final String EXTRA_SALE_QUANTITY = "saleQuantity";
+
+    /** Whether a {@link #METHOD_SELL} call took the stock. Type: boolean */
+    public static final String EXTRA_SOLD = "sold";
+
+    /** Quantity of the product in stock after a {@link #METHOD_SELL} call. Type: int */
+    public static final String EXTRA_STOCK_LEVEL = "stockLevel";
+
+    /**
+     * Provider method, passed to {@link ContentResolver#call}, that sells several products in one
+     * transaction. The extras hold the products' IDs in {@link #EXTRA_PRODUCT_IDS} and the number
+     * of each to sell in {@link #EXTRA_SALE_QUANTITIES}.
+     * <p>
+     * Unlike {@link #METHOD_SELL}, each product sells as many as it can, up to the number asked
+     * for. The result holds the number actually sold of each in {@link #EXTRA_SOLD_QUANTITIES} and
+     * the quantities left in {@link #EXTRA_STOCK_LEVELS}, in the same order as the IDs.
+     */
+    public static final String METHOD_SELL_BATCH = "sellBatch";
+
+    /** IDs of the products to sell with {@link #METHOD_SELL_BATCH}. Type: long[] */
+    public static final String EXTRA_PRODUCT_IDS = "productIds";
+
+    /** Number of each product to sell with {@link #METHOD_SELL_BATCH}. Type: int[] */
+    public static final String EXTRA_SALE_QUANTITIES = "saleQuantities";
+
+    /** Number of each product a {@link #METHOD_SELL_BATCH} call sold. Type: int[] */
+    public static final String EXTRA_SOLD_QUANTITIES = "soldQuantities";
+
+    /** Quantity of each product left after a {@link #METHOD_SELL_BATCH} call. Type: int[] */
+    public static final String EXTRA_STOCK_LEVELS = "stockLevels";
+
+    /**
+     * Provider method, passed to {@link ContentResolver#call}, that returns the latest
+     * {@link ProductEntry#COLUMN_PRODUCT_VERSION} handed out in {@link #EXTRA_VERSION}. Every
+     * product changed after the call has a higher version, so the result can be kept as a
+     * watermark and later changes found with a {@code version > ?} selection.
+     */
+    public static final String METHOD_GET_VERSION = "getVersion";
+
+    /** Latest product version returned by {@link #METHOD_GET_VERSION}. Type: long */
+    public static final String EXTRA_VERSION = "version";
+
+    /**
+     * {@link StockCounterEntry#COLUMN_COUNTER_DEVICE_ID} of this device, also returned by
+     * {@link #METHOD_GET_VERSION}. Type: String
+     */
+    public static final String EXTRA_DEVICE_ID = "deviceId";
+
+    /**
+     * Provider method, passed to {@link ContentResolver#call}, that applies products and
+     * deletions pulled from the sync server, in one transaction. Each product in
+     * {@link #EXTRA_SYNC_PRODUCTS} replaces the product with the same
+     * {@link ProductEntry#COLUMN_PRODUCT_SYNC_ID}, or is inserted if there is none, each stock
+     * counter in {@link #EXTRA_SYNC_COUNTERS} is merged into the product's counters, and each
+     * product named in {@link #EXTRA_SYNC_DELETED} is deleted. Synced products have no quantity,
+     * since their quantities follow from the merged counters. A synced product whose SKU another
+     * product here already has is kept without the SKU. The result holds the latest
+     * version before the changes in {@link #EXTRA_VERSION_BEFORE} and after them in
+     * {@link #EXTRA_VERSION}. No other writes happen in between, so the versions in that range
+     * are exactly the pulled changes.
+     */
+    public static final String METHOD_APPLY_SYNC = "applySync";
+
+    /** Complete products to apply with {@link #METHOD_APPLY_SYNC}. Type: ContentValues[] */
+    public static final String EXTRA_SYNC_PRODUCTS = "syncProducts";
+
+    /**
+     * Stock counters to merge with {@link #METHOD_APPLY_SYNC}, each holding the
+     * {@link ProductEntry#COLUMN_PRODUCT_SYNC_ID} of its product and the device ID, increments
+     * and decrements of a {@link StockCounterEntry}. Type: ContentValues[]
+     */
+    public static final String EXTRA_SYNC_COUNTERS = "syncCounters";
+
+    /** Sync IDs of the products to delete with {@link #METHOD_APPLY_SYNC}. Type: String[] */
+    public static final String EXTRA_SYNC_DELETED = "syncDeleted";
+
+    /** Latest product version before a {@link #METHOD_APPLY_SYNC} call. Type: long */
+    public static final String EXTRA_VERSION_BEFORE = "versionBefore";
+
+    /**
+     * Provider method, passed to {@link ContentResolver#call}, that returns a snapshot of the
+     * provider's metrics: for each operation in {@link #EXTRA_METRIC_OPERATIONS}, the number of
+     * calls, failures and rows touched and a latency histogram. The same figures are printed by
+     * {@code adb shell dumpsys activity provider com.example.android.inventory}.
+     */
+    public static final String METHOD_GET_METRICS = "getMetrics";
+
+    /** Names of the operations measured, in the order of the other metric arrays. Type: String[] */
+    public static final String EXTRA_METRIC_OPERATIONS = "metricOperations";
+
+    /** Number of calls to each operation. Type: long[] */
+    public static final String EXTRA_METRIC_CALLS = "metricCalls";
+
+    /** Number of calls to each operation that threw. Type: long[] */
+    public static final String EXTRA_METRIC_FAILURES = "metricFailures";
+
+    /**
+     * Number of rows each operation changed, or for queries the number of rows read from the
+     * cursors that have been closed, in total. Type: long[]
+     */
+    public static final String EXTRA_METRIC_ROWS = "metricRows";
+
+    /** Time spent in each operation, in total, in nanoseconds. Type: long[] */
+    public static final String EXTRA_METRIC_TOTAL_NANOS = "metricTotalNanos";
+
+    /**
+     * Upper bound, in microseconds, of each latency histogram bucket but the last, which has no
+     * upper bound. Type: long[]
+     */
+    public static final String EXTRA_METRIC_BUCKET_BOUNDS = "metricBucketBounds";
+
+    /**
+     * Number of calls to each operation that fell into each latency bucket, operation by
+     * operation. Type: long[]
+     */
+    public static final String EXTRA_METRIC_LATENCY_COUNTS = "metricLatencyCounts";
+
+    /** Number of change notifications sent. Type: long */
+    public static final String EXTRA_METRIC_NOTIFICATIONS = "metricNotifications";
+
+    /** Number of single product queries answered from the provider's cache. Type: int */
+    public static final String EXTRA_CACHE_HITS = "cacheHits";
+
+    /** Number of single product queries that had to read the database. Type: int */
+    public static final String EXTRA_CACHE_MISSES = "cacheMisses";
+
+    /** Number of products evicted from the provider's cache to make room. Type: int */
+    public static final String EXTRA_CACHE_EVICTIONS = "cacheEvictions";
+
+    /** Number of products in the provider's cache. Type: int */
+    public static final String EXTRA_CACHE_SIZE = "cacheSize";
+
+    /**
+     * Provider method, passed to {@link ContentResolver#call}, that returns how much of a product
+     * was in stock at a given time. The argument is the product's {@link ProductEntry#_ID} and
+     * the extras hold the time in {@link #EXTRA_TIMESTAMP}. The result holds the quantity in
+     * {@link #EXTRA_STOCK_LEVEL}.
+     * <p>
+     * The quantity is replayed from the product's last stock snapshot before that time, so it
+     * costs at most the movements recorded between two checkpoints.
+     */
+    public static final String METHOD_GET_STOCK_AT = "getStockAt";
+
+    /** Time to read the stock level at, in milliseconds since the epoch. Type: long */
+    public static final String EXTRA_TIMESTAMP = "timestamp";
+
+    /**
+     * Provider method, passed to {@link ContentResolver#call}, that takes a stock snapshot of
+     * every product that has moved since the last checkpoint. The provider also does this on its
+     * own every {@link StockMovementEntry#CHECKPOINT_INTERVAL} movements. The result holds the
+     * number of snapshots taken in {@link #EXTRA_SNAPSHOT_COUNT}.
+     */
+    public static final String METHOD_CHECKPOINT_STOCK = "checkpointStock";
+
+    /** Number of snapshots a {@link #METHOD_CHECKPOINT_STOCK} call took. Type: int */
+    public static final String EXTRA_SNAPSHOT_COUNT = "snapshotCount";
+
     // To prevent someone from accidentally instantiating the contract class,
     // give it an empty constructor.
     private ProductContract() {}
@@ -42,11 +282,44 @@ public class ProductContract {
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PRODUCTS);
 
+        /**
+         * The content URI to search products by name and supplier name. Each word of the search
+         * text matches as a prefix, and all of the words must match. Results are ranked with
+         * name matches before supplier-only matches, then shorter names first.
+         * Use {@link #buildSearchUri} to add the search text.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /**
+         * The content URI to look up the product with a given SKU, such as a scanned barcode. It
+         * returns the product's row, or no rows if no product has the SKU. Use
+         * {@link #buildSkuUri} to add the SKU.
+         */
+        public static final Uri CONTENT_SKU_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SKU);
+
         /**
          * Name of database table for products
          */
         public final static String TABLE_NAME = "products";
 
+        /**
+         * Name of the view that joins each product with its supplier. Queries that need the
+         * supplier's name or phone read from this view instead of {@link #TABLE_NAME}.
+         */
+        public final static String VIEW_NAME = "products_view";
+
+        /**
+         * Name of the full-text index over the product and supplier names. It is kept in sync with
+         * {@link #TABLE_NAME} by triggers, and its docid is the product {@link #_ID}.
+         */
+        public final static String FTS_TABLE_NAME = "products_fts";
+
+        /**
+         * Name of the single-row table that holds the last {@link #COLUMN_PRODUCT_VERSION} handed
+         * out. It only ever rises, even when the latest changed product is deleted.
+         */
+        public final static String VERSION_TABLE_NAME = "product_version";
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of products.
          */
@@ -74,9 +347,9 @@ public class ProductContract {
         public final static String COLUMN_PRODUCT_NAME = "name";
 
         /**
-         * Price of the product.
+         * Price of the product, in cents. See {@link Prices}.
          * <p>
-         * Type: REAL
+         * Type: INTEGER
          */
         public final static String COLUMN_PRODUCT_PRICE = "price";
 
@@ -88,17 +361,437 @@ public class ProductContract {
         public final static String COLUMN_PRODUCT_QUANTITY = "quantity";
 
         /**
-         * Name of the supplier of the product.
+         * {@link SupplierEntry#_ID} of the supplier of the product.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_SUPPLIER_ID = "supplierId";
+
+        /**
+         * Name of the supplier of the product. It is read from the product's supplier, and
+         * writing it together with {@link #COLUMN_PRODUCT_SUPPLIER_PHONE} points the product at
+         * the supplier with that name and phone, which is created if there is none.
          * <p>
          * Type: TEXT
          */
         public final static String COLUMN_PRODUCT_SUPPLIER_NAME = "supplierName";
 
         /**
-         * Phone number of the supplier of the product.
+         * Phone number of the supplier of the product. See {@link #COLUMN_PRODUCT_SUPPLIER_NAME}.
          * <p>
          * Type: TEXT
          */
         public final static String COLUMN_PRODUCT_SUPPLIER_PHONE = "supplierPhone";
+
+        /**
+         * Stock keeping unit of the product, usually its barcode. Products don't need one, but no
+         * two products can have the same SKU.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_PRODUCT_SKU = "sku";
+
+        /**
+         * Quantity at or below which the product is low on stock and should be reordered. The
+         * default of 0 flags the product once it is out of stock.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_REORDER_THRESHOLD = "reorderThreshold";
+
+        /**
+         * Version of the product, set by the database whenever the product is inserted or
+         * changed. Each change gets a higher version than any change before it, so the
+         * products changed since a {@link ProductContract#METHOD_GET_VERSION} watermark are those
+         * with a higher version. It can't be written.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_VERSION = "version";
+
+        /**
+         * Time the product was last changed, in milliseconds since the epoch. The database sets it
+         * on every insert and update that doesn't set it, so a change synced from another device
+         * keeps the time it was made there.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_UPDATED_AT = "updatedAt";
+
+        /**
+         * Identifier of the product that is the same on every device it is synced to. The database
+         * makes one up for a product inserted without one.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_PRODUCT_SYNC_ID = "syncId";
+
+        /**
+         * Return the content URI that searches products for the given text.
+         *
+         * @param query the text the user typed
+         */
+        public static Uri buildSearchUri(String query) {
+            return CONTENT_SEARCH_URI.buildUpon().appendPath(query).build();
+        }
+
+        /**
+         * Return the content URI that looks up the product with the given SKU.
+         *
+         * @param sku the SKU, for example a scanned barcode
+         */
+        public static Uri buildSkuUri(String sku) {
+            return CONTENT_SKU_URI.buildUpon().appendPath(sku).build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the suppliers database table.
+     * Each entry in the table represents a single supplier, which any number of products can
+     * refer to through {@link ProductEntry#COLUMN_PRODUCT_SUPPLIER_ID}.
+     */
+    public static final class SupplierEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the supplier data in the provider
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SUPPLIERS);
+
+        /**
+         * Name of database table for suppliers
+         */
+        public final static String TABLE_NAME = "suppliers";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of suppliers.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUPPLIERS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single supplier.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUPPLIERS;
+
+        /**
+         * Unique ID number for the supplier (only for use in the database table).
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * Name of the supplier. No two suppliers have the same name and phone.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_SUPPLIER_NAME = "name";
+
+        /**
+         * Phone number of the supplier.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_SUPPLIER_PHONE = "phone";
+
+        /**
+         * Return the content URI of the given supplier's products, each joined with the supplier
+         * like the rows of {@link ProductEntry#CONTENT_URI}, for example
+         * content://com.example.android.inventory/suppliers/2/products
+         *
+         * @param supplierId the {@link #_ID} of the supplier
+         */
+        public static Uri buildProductsUri(long supplierId) {
+            return ContentUris.withAppendedId(CONTENT_URI, supplierId).buildUpon()
+                    .appendPath(PATH_PRODUCTS).build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the stock movements database table.
+     * Each entry is one change to a product's stock: a sale, a receipt of new stock, or an
+     * adjustment such as a stock count. The table is only ever added to, and the provider keeps
+     * {@link ProductEntry#COLUMN_PRODUCT_QUANTITY} equal to the sum of a product's movements.
+     */
+    public static final class StockMovementEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the stock movements in the provider. Inserting a movement
+         * here applies it to the product's quantity in the same transaction.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_MOVEMENTS);
+
+        /**
+         * Name of database table for stock movements
+         */
+        public final static String TABLE_NAME = "stock_movements";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of stock movements.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_MOVEMENTS;
+
+        /**
+         * Number of movements recorded between two automatic checkpoints, which bounds the
+         * replay behind {@link ProductContract#METHOD_GET_STOCK_AT}.
+         */
+        public static final int CHECKPOINT_INTERVAL = 1000;
+
+        /**
+         * Unique ID number for the movement (only for use in the database table). Movements are
+         * numbered in the order they were recorded.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * {@link ProductEntry#_ID} of the product whose stock moved.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_MOVEMENT_PRODUCT_ID = "productId";
+
+        /**
+         * Kind of movement.
+         * <p>
+         * The only possible values are {@link #TYPE_SALE}, {@link #TYPE_RECEIPT},
+         * {@link #TYPE_ADJUSTMENT} or {@link #TYPE_MERGE}.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_MOVEMENT_TYPE = "type";
+
+        /**
+         * Change in the product's quantity: negative for stock that left, positive for stock
+         * that arrived.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_MOVEMENT_QUANTITY = "quantity";
+
+        /**
+         * When the movement was recorded, in milliseconds since the epoch.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_MOVEMENT_TIMESTAMP = "timestamp";
+
+        /**
+         * Possible values for the type of a movement.
+         */
+        public static final int TYPE_SALE = 1;
+        public static final int TYPE_RECEIPT = 2;
+        public static final int TYPE_ADJUSTMENT = 3;
+
+        /**
+         * Movement made on other devices, which arrived when their stock counters were merged.
+         * Only the provider records these, and they don't count towards this device's counter.
+         */
+        public static final int TYPE_MERGE = 4;
+
+        /**
+         * Returns whether or not the given type is {@link #TYPE_SALE}, {@link #TYPE_RECEIPT}
+         * or {@link #TYPE_ADJUSTMENT}.
+         */
+        public static boolean isValidType(int type) {
+            return type == TYPE_SALE || type == TYPE_RECEIPT || type == TYPE_ADJUSTMENT;
+        }
+
+        /**
+         * Return the content URI of the given product's stock movements, for example
+         * content://com.example.android.inventory/products/3/movements
+         *
+         * @param productId the {@link ProductEntry#_ID} of the product
+         */
+        public static Uri buildProductMovementsUri(long productId) {
+            return ContentUris.withAppendedId(ProductEntry.CONTENT_URI, productId).buildUpon()
+                    .appendPath(PATH_MOVEMENTS).build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the stock snapshots database table.
+     * Each entry records a product's quantity as of one of its movements, so that the stock at
+     * a past time can be replayed from the nearest snapshot instead of from the first movement.
+     * Snapshots are internal to the provider.
+     */
+    public static final class StockSnapshotEntry implements BaseColumns {
+
+        /**
+         * Name of database table for stock snapshots
+         */
+        public final static String TABLE_NAME = "stock_snapshots";
+
+        /**
+         * Unique ID number for the snapshot (only for use in the database table).
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * {@link ProductEntry#_ID} of the product.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SNAPSHOT_PRODUCT_ID = "productId";
+
+        /**
+         * {@link StockMovementEntry#_ID} of the product's last movement counted in the snapshot.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SNAPSHOT_MOVEMENT_ID = "movementId";
+
+        /**
+         * Time of the movement the snapshot counts up to, in milliseconds since the epoch.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SNAPSHOT_TIMESTAMP = "timestamp";
+
+        /**
+         * Quantity of the product in stock after the movement the snapshot counts up to.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SNAPSHOT_QUANTITY = "quantity";
+    }
+
+    /**
+     * Inner class that defines constant values for the tombstones database table.
+     * Each entry records a deleted product, so that the deletion can be synced to other devices.
+     * The database adds a tombstone whenever a product is deleted, versioned like the products.
+     * Tombstones can be queried, and deleted once they have been synced.
+     */
+    public static final class TombstoneEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the tombstones in the provider
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_TOMBSTONES);
+
+        /**
+         * Name of database table for tombstones
+         */
+        public final static String TABLE_NAME = "product_tombstones";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of tombstones.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_TOMBSTONES;
+
+        /**
+         * Unique ID number for the tombstone (only for use in the database table).
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * {@link ProductEntry#COLUMN_PRODUCT_SYNC_ID} of the deleted product.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_TOMBSTONE_SYNC_ID = "syncId";
+
+        /**
+         * Version of the deletion, from the same sequence as {@link ProductEntry#COLUMN_PRODUCT_VERSION}.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TOMBSTONE_VERSION = "version";
+
+        /**
+         * Time the product was deleted, in milliseconds since the epoch.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TOMBSTONE_DELETED_AT = "deletedAt";
+    }
+
+    /**
+     * Inner class that defines constant values for the stock counters database table.
+     * Each entry counts the stock one device has added to and taken from one product, so that
+     * several devices can sell from the same stock without losing each other's sales. Counts
+     * only ever rise, and two copies of a counter are merged by taking the larger of each count,
+     * so counters merge the same way in any order and any number of times. A product's
+     * {@link ProductEntry#COLUMN_PRODUCT_QUANTITY} is the sum of its counters' increments less
+     * their decrements.
+     * <p>
+     * The database keeps this device's counters in step with its stock movements. Counters from
+     * other devices arrive with {@link ProductContract#METHOD_APPLY_SYNC}. Counters can be
+     * queried, but not written directly.
+     */
+    public static final class StockCounterEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the stock counters in the provider
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_COUNTERS);
+
+        /**
+         * Name of database table for stock counters
+         */
+        public final static String TABLE_NAME = "stock_counters";
+
+        /**
+         * Name of the single-row table that holds the {@link #COLUMN_COUNTER_DEVICE_ID} of this
+         * device, which the database makes up when it is created.
+         */
+        public final static String DEVICE_TABLE_NAME = "stock_device";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of stock counters.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_COUNTERS;
+
+        /**
+         * Device ID of the counter that holds the stock products had before counters were kept.
+         * Synced devices upgrade with the same quantities, so their opening counters merge into
+         * one rather than adding up.
+         */
+        public static final String DEVICE_OPENING = "";
+
+        /**
+         * Unique ID number for the counter (only for use in the database table).
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * {@link ProductEntry#_ID} of the product counted.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_COUNTER_PRODUCT_ID = "productId";
+
+        /**
+         * ID of the device whose movements are counted. Each product has at most one counter per
+         * device.
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_COUNTER_DEVICE_ID = "deviceId";
+
+        /**
+         * Total stock the device has added to the product.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_COUNTER_INCREMENTS = "increments";
+
+        /**
+         * Total stock the device has taken from the product.
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_COUNTER_DECREMENTS = "decrements";
     }
 }
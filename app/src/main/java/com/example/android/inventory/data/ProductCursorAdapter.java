@@ -1,153 +1,372 @@
 package com.example.android.inventory.data;
 
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.util.LongSparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
-import android.widget.CursorAdapter;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.example.android.inventory.R;
 import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductPageLoader.PagedCursor;
 
-import java.text.NumberFormat;
-import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
-public class ProductCursorAdapter extends CursorAdapter {
+/**
+ * {@link RecyclerView.Adapter} that shows the products in a cursor.
+ * <p>
+ * When a new cursor from {@link ProductPageLoader} is swapped in, the rows are compared with the
+ * current ones on a background thread and only the rows that were added, removed or changed are
+ * rebound, so a single stock change repaints a single row.
+ */
+public class ProductCursorAdapter extends RecyclerView.Adapter<ProductCursorAdapter.ViewHolder>
+        implements SaleBatcher.Listener {
+
+    /**
+     * Receives clicks on a product in the list.
+     */
+    public interface OnProductClickListener {
+        /**
+         * Called when a product row is clicked.
+         *
+         * @param id the {@link ProductEntry#_ID} of the product
+         */
+        void onProductClick(long id);
+    }
+
+    // Compares old and new cursors off the UI thread, one swap at a time
+    private static final Executor sDiffExecutor = Executors.newSingleThreadExecutor();
+
+    private final Context mContext;
+    private final OnProductClickListener mOnProductClickListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Collects Sale taps and writes them in batches
+    private final SaleBatcher mSaleBatcher;
+
+    // Stock levels reported by flushed sales, until a new cursor includes them
+    private final LongSparseArray<Integer> mStockLevels = new LongSparseArray<>();
+
+    // The cursor being shown and its column indices, which are looked up once per cursor
+    private Cursor mCursor;
+    private int mIdColumn;
+    private int mNameColumn;
+    private int mPriceColumn;
+    private int mQuantityColumn;
+
+    // Incremented on every swap, so a diff that finishes after a newer swap is thrown away
+    private int mSwapGeneration;
+
+    // The cursor passed to the latest swap, which may still be being compared
+    private Cursor mSwappedCursor;
+
+    /** One listener shared by every row, which finds the product through the row's view holder */
+    private final View.OnClickListener mItemClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            ViewHolder viewHolder = (ViewHolder) v.getTag();
+            if (mOnProductClickListener != null) {
+                mOnProductClickListener.onProductClick(viewHolder.id);
+            }
+        }
+    };
+
+    /** One Sale button listener shared by every row */
+    private final View.OnClickListener mSaleClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            ViewHolder viewHolder = (ViewHolder) v.getTag();
+            long id = viewHolder.id;
+
+            // If there is no more of this product in inventory, display message and leave
+            int available = viewHolder.quantity - mSaleBatcher.getPending(id);
+            if (available <= 0) {
+                Toast.makeText(v.getContext(), v.getContext().getString(R.string.product_not_available), Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            // Record the sale. It is written together with any other sales tapped shortly
+            // before or after it, so show the new quantity straight away.
+            mSaleBatcher.sell(id);
+            viewHolder.quantityView.setText(String.valueOf(available - 1));
+        }
+    };
 
     /**
      * Constructs a new {@link ProductCursorAdapter}.
      *
-     * @param context The context
-     * @param c       The cursor from which to get the data.
+     * @param context  The context
+     * @param listener Notified when a product is clicked, or null
      */
-    public ProductCursorAdapter(Context context, Cursor c) {
-        super(context, c, 0 /* flags */);
+    public ProductCursorAdapter(Context context, OnProductClickListener listener) {
+        mContext = context;
+        mOnProductClickListener = listener;
+        mSaleBatcher = new SaleBatcher(context.getContentResolver(), this);
+        setHasStableIds(true);
     }
 
     /**
      * Makes a new blank list item view. No data is set (or bound) to the views yet.
      *
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already
-     *                moved to the correct position.
-     * @param parent  The parent to which the new view is attached to
-     * @return the newly created list item view.
+     * @param parent   The parent to which the new view is attached to
+     * @param viewType The view type of the new view
+     * @return the view holder for the newly created list item view.
      */
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        View view = LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
-
-        ViewHolder holder = new ViewHolder(view);
-        view.setTag(holder);
-
-        return view;
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(mContext).inflate(R.layout.list_item, parent, false);
+        return new ViewHolder(view, mItemClickListener, mSaleClickListener);
     }
 
     /**
-     * This method binds the product data (in the current row pointed to by cursor) to the given
+     * This method binds the product data (in the given row of the cursor) to the given
      * list item layout. For example, the name for the current product can be set on the name TextView
      * in the list item layout.
      *
-     * @param view    Existing view, returned earlier by newView() method
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already moved to the
-     *                correct row.
+     * @param viewHolder Holder of the list item view to bind
+     * @param position   The row of the cursor to bind
      */
     @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        // Get the view holder which has references to the list_item resource identifiers
-        ViewHolder viewHolder = (ViewHolder) view.getTag();
+    public void onBindViewHolder(ViewHolder viewHolder, int position) {
+        mCursor.moveToPosition(position);
 
         // Extract properties from cursor
-        int id = cursor.getInt(cursor.getColumnIndexOrThrow(ProductEntry._ID));
-        String name = cursor.getString(cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_NAME));
-        Float price = cursor.getFloat(cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_PRICE));
-        int quantity = cursor.getInt(cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_QUANTITY));
+        long id = mCursor.getLong(mIdColumn);
+        String name = mCursor.getString(mNameColumn);
+        long price = mCursor.getLong(mPriceColumn);
+        int quantity = mCursor.getInt(mQuantityColumn);
 
-        // Populate fields with extracted properties
+        // Populate fields with extracted properties. The quantity shown allows for sales that
+        // have been tapped but not written yet.
+        viewHolder.id = id;
+        viewHolder.quantity = getStockLevel(id, quantity);
         viewHolder.nameView.setText(name);
-        viewHolder.priceView.setText(displayCurrency(price));
-        viewHolder.quantityView.setText(String.valueOf(quantity));
-        viewHolder.saleView.setTag(id);
+        displayCurrency(viewHolder, price);
+        viewHolder.quantityView.setText(String.valueOf(viewHolder.quantity - mSaleBatcher.getPending(id)));
+    }
 
-        viewHolder.saleView.setOnClickListener(new View.OnClickListener() {
+    @Override
+    public int getItemCount() {
+        return mCursor != null ? mCursor.getCount() : 0;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        if (mCursor instanceof PagedCursor) {
+            return ((PagedCursor) mCursor).getRowId(position);
+        }
+        mCursor.moveToPosition(position);
+        return mCursor.getLong(mIdColumn);
+    }
+
+    /**
+     * Show the given cursor in place of the current one, which is closed once it's no longer
+     * shown. If both cursors came from {@link ProductPageLoader}, they are compared in the
+     * background and only the rows that differ are updated; otherwise the whole list is redrawn.
+     *
+     * @param newCursor the cursor to show, or null to show nothing
+     */
+    public void swapCursor(final Cursor newCursor) {
+        if (newCursor == mSwappedCursor) {
+            return;
+        }
+        mSwappedCursor = newCursor;
+
+        final int generation = ++mSwapGeneration;
+        final Cursor oldCursor = mCursor;
+        if (!(oldCursor instanceof PagedCursor) || !(newCursor instanceof PagedCursor)
+                || oldCursor.getCount() == 0 || newCursor.getCount() == 0) {
+            applyCursor(newCursor);
+            notifyDataSetChanged();
+            return;
+        }
+
+        final PagedCursor oldRows = (PagedCursor) oldCursor;
+        final PagedCursor newRows = (PagedCursor) newCursor;
+        sDiffExecutor.execute(new Runnable() {
             @Override
-            public void onClick(View v) {
-                // Get the current quantity from the sibling text view
-                View parent = (View) v.getParent();
-                ViewHolder viewHolder = (ViewHolder) parent.getTag();
-                int quantity = Integer.parseInt(viewHolder.quantityView.getText().toString());
-
-                // If there is no more of this product in inventory, display message and leave
-                if (quantity == 0) {
-                    Toast.makeText(v.getContext(), v.getContext().getString(R.string.product_not_available), Toast.LENGTH_SHORT).show();
-                    return;
-                }
-
-                // Get the product's unique row identifier stored in the button's tag
-                int id = (int)v.getTag();
-
-                // Form the content URI that represents the specific product that was clicked on,
-                // by appending the id onto the {@link ProductEntry#CONTENT_URI}
-                Uri currentProductUri = ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id);
-
-                // Decrement quantity
-                ContentValues values = new ContentValues();
-                values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, --quantity);
-
-                // Make the update
-                try {
-                    v.getContext().getContentResolver().update(
-                            currentProductUri,
-                            values,
-                            null,
-                            null
-                    );
-                }
-                catch (IllegalArgumentException ex) {
-                    Toast.makeText(v.getContext(), ex.getMessage(), Toast.LENGTH_SHORT).show();
-                }
+            public void run() {
+                final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new RowDiff(oldRows, newRows), false);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mSwapGeneration) {
+                            // A newer cursor was swapped in while this one was compared
+                            if (newCursor != mSwappedCursor && newCursor != mCursor) {
+                                newCursor.close();
+                            }
+                            return;
+                        }
+                        applyCursor(newCursor);
+                        diff.dispatchUpdatesTo(ProductCursorAdapter.this);
+                    }
+                });
             }
         });
     }
 
+    /**
+     * Start showing the given cursor, close the one it replaces, and look up the column indices.
+     */
+    private void applyCursor(Cursor cursor) {
+        if (mCursor != null) {
+            mCursor.close();
+        }
+        mCursor = cursor;
+        mStockLevels.clear();
+
+        if (cursor != null) {
+            mIdColumn = cursor.getColumnIndexOrThrow(ProductEntry._ID);
+            mNameColumn = cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_NAME);
+            mPriceColumn = cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_PRICE);
+            mQuantityColumn = cursor.getColumnIndexOrThrow(ProductEntry.COLUMN_PRODUCT_QUANTITY);
+        }
+    }
+
+    /**
+     * Start writing any sales that have been tapped but not written yet. Call this when the list
+     * is paused, so that they don't wait for a screen that may not come back.
+     */
+    public void flushSales() {
+        mSaleBatcher.flush();
+    }
+
+    @Override
+    public void onSalesFlushed(long[] ids, int[] requested, int[] sold, int[] stockLevels) {
+        boolean soldOut = false;
+        for (int i = 0; i < ids.length; i++) {
+            mStockLevels.put(ids[i], stockLevels[i]);
+            soldOut |= sold[i] < requested[i];
+
+            // Repaint just the rows whose stock level changed
+            int position = findPosition(ids[i]);
+            if (position >= 0) {
+                notifyItemChanged(position);
+            }
+        }
+
+        // Stock ran out before all of the taps could be sold
+        if (soldOut) {
+            Toast.makeText(mContext, mContext.getString(R.string.product_not_available), Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Return the position of the product with the given ID in the current cursor, or -1.
+     */
+    private int findPosition(long id) {
+        if (mCursor instanceof PagedCursor) {
+            return ((PagedCursor) mCursor).findPosition(id);
+        }
+        for (int position = 0; mCursor != null && position < mCursor.getCount(); position++) {
+            if (getItemId(position) == id) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the stock level of the given product: the level reported by the last flush if the
+     * cursor hasn't caught up with it yet, otherwise the cursor's quantity.
+     */
+    private int getStockLevel(long id, int cursorQuantity) {
+        return mStockLevels.get(id, cursorQuantity);
+    }
+
+    /**
+     * Compares the rows of two cursors by product ID and content hash, without moving either.
+     */
+    private static class RowDiff extends DiffUtil.Callback {
+        private final PagedCursor mOldRows;
+        private final PagedCursor mNewRows;
+
+        RowDiff(PagedCursor oldRows, PagedCursor newRows) {
+            mOldRows = oldRows;
+            mNewRows = newRows;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldRows.getCount();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewRows.getCount();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows.getRowId(oldItemPosition) == mNewRows.getRowId(newItemPosition);
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows.getRowHash(oldItemPosition) == mNewRows.getRowHash(newItemPosition);
+        }
+    }
+
     /**
      *  Nested class that provides implementation of the view holder pattern.
      *  It is used to persist the list_item resource identifiers so that they are only
      *  found {@link View#findViewById} once.
      */
-    static class ViewHolder {
+    static class ViewHolder extends RecyclerView.ViewHolder {
         private final TextView nameView;
         private final TextView priceView;
         private final TextView quantityView;
         private final Button saleView;
 
-        private ViewHolder(View view)
+        // The bound product, and its stock level not counting unwritten sales
+        private long id;
+        private int quantity;
+
+        // The characters the price view shows. The view keeps a reference to the array it is
+        // given, so each holder has its own and only overwrites it when it binds a new price.
+        private char[] priceChars = new char[32];
+
+        private ViewHolder(View view, View.OnClickListener itemClickListener,
+                           View.OnClickListener saleClickListener)
         {
+            super(view);
             nameView = view.findViewById(R.id.name);
             priceView = view.findViewById(R.id.price);
             quantityView = view.findViewById(R.id.quantity);
             saleView = view.findViewById(R.id.sale);
+
+            // The shared listeners find this holder through the view tags
+            view.setTag(this);
+            view.setOnClickListener(itemClickListener);
+            saleView.setTag(this);
+            saleView.setOnClickListener(saleClickListener);
         }
     }
 
     /**
-     * Use the device's locale to format the given amount as currency
+     * Use the device's locale to show the given price as currency. The price is formatted into
+     * the formatter's reused buffer and copied into the holder's own, so binding a row doesn't
+     * allocate a string for it.
      *
-     * @param amount the value to be formatted as currency
-     * @return the string representation of the given value formatted as currency
+     * @param viewHolder holder of the row to show the price in
+     * @param cents      the price to be formatted as currency, in cents
      */
-    private static String displayCurrency(Float amount) {
-        NumberFormat currencyFormatter =
-                NumberFormat.getCurrencyInstance(Locale.getDefault());
-
-        return currencyFormatter.format(amount);
+    private static void displayCurrency(ViewHolder viewHolder, long cents) {
+        CurrencyFormatter currencyFormatter = CurrencyFormatter.getInstance();
+        int length = currencyFormatter.format(cents);
+        if (length > viewHolder.priceChars.length) {
+            viewHolder.priceChars = new char[length];
+        }
+        System.arraycopy(currencyFormatter.getBuffer(), 0, viewHolder.priceChars, 0, length);
+        viewHolder.priceView.setText(viewHolder.priceChars, 0, length);
     }
 }
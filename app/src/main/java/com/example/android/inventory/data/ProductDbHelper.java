@@ -1,14 +1,23 @@
 package com.example.android.inventory.data;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.VisibleForTesting;
+
+import com.example.android.inventory.R;
 import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.StockCounterEntry;
+import com.example.android.inventory.data.ProductContract.StockMovementEntry;
+import com.example.android.inventory.data.ProductContract.StockSnapshotEntry;
+import com.example.android.inventory.data.ProductContract.SupplierEntry;
+import com.example.android.inventory.data.ProductContract.TombstoneEntry;
 
 public class ProductDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 11;
     private static final String DATABASE_NAME = "inventory.db";
 
     private static final String SQL_CREATE_ENTRIES =
@@ -20,8 +29,445 @@ public class ProductDbHelper extends SQLiteOpenHelper {
                     ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME + " TEXT NOT NULL," +
                     ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE + " TEXT NOT NULL)";
 
-    private static final String SQL_DELETE_ENTRIES =
-            "DROP TABLE IF EXISTS " + ProductEntry.TABLE_NAME;
+    // Version 2: indexes for lookups by name and supplier and for low stock queries. The name
+    // index uses NOCASE so that it can also serve case-insensitive LIKE 'prefix%' filters.
+    private static final String SQL_CREATE_NAME_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + ProductEntry.TABLE_NAME + "_name_index ON " +
+                    ProductEntry.TABLE_NAME + " (" + ProductEntry.COLUMN_PRODUCT_NAME + " COLLATE NOCASE)";
+
+    private static final String SQL_CREATE_SUPPLIER_NAME_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + ProductEntry.TABLE_NAME + "_supplier_name_index ON " +
+                    ProductEntry.TABLE_NAME + " (" + ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME + ")";
+
+    private static final String SQL_CREATE_QUANTITY_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + ProductEntry.TABLE_NAME + "_quantity_index ON " +
+                    ProductEntry.TABLE_NAME + " (" + ProductEntry.COLUMN_PRODUCT_QUANTITY + ")";
+
+    // Version 3: full-text index over product and supplier names for search. The docid of each
+    // row is the _ID of its product, and triggers keep it in step with the products table.
+    private static final String SQL_CREATE_FTS =
+            "CREATE VIRTUAL TABLE " + ProductEntry.FTS_TABLE_NAME + " USING fts4(" +
+                    ProductEntry.COLUMN_PRODUCT_NAME + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME + ")";
+
+    private static final String SQL_POPULATE_FTS =
+            "INSERT INTO " + ProductEntry.FTS_TABLE_NAME + " (docid, " +
+                    ProductEntry.COLUMN_PRODUCT_NAME + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME + ") SELECT " +
+                    ProductEntry._ID + ", " +
+                    ProductEntry.COLUMN_PRODUCT_NAME + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME + " FROM " + ProductEntry.TABLE_NAME;
+
+    private static final String SQL_CREATE_FTS_INSERT_TRIGGER =
+            "CREATE TRIGGER " + ProductEntry.FTS_TABLE_NAME + "_insert AFTER INSERT ON " +
+                    ProductEntry.TABLE_NAME + " BEGIN " +
+                    "INSERT INTO " + ProductEntry.FTS_TABLE_NAME + " (docid, " +
+                    ProductEntry.COLUMN_PRODUCT_NAME + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME + ") VALUES (new." +
+                    ProductEntry._ID + ", new." +
+                    ProductEntry.COLUMN_PRODUCT_NAME + ", new." +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME + "); END";
+
+    private static final String SQL_CREATE_FTS_UPDATE_TRIGGER =
+            "CREATE TRIGGER " + ProductEntry.FTS_TABLE_NAME + "_update AFTER UPDATE OF " +
+                    ProductEntry.COLUMN_PRODUCT_NAME + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME + " ON " +
+                    ProductEntry.TABLE_NAME + " BEGIN " +
+                    "UPDATE " + ProductEntry.FTS_TABLE_NAME + " SET " +
+                    ProductEntry.COLUMN_PRODUCT_NAME + " = new." + ProductEntry.COLUMN_PRODUCT_NAME + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME + " = new." +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME +
+                    " WHERE docid = old." + ProductEntry._ID + "; END";
+
+    private static final String SQL_CREATE_FTS_DELETE_TRIGGER =
+            "CREATE TRIGGER " + ProductEntry.FTS_TABLE_NAME + "_delete AFTER DELETE ON " +
+                    ProductEntry.TABLE_NAME + " BEGIN " +
+                    "DELETE FROM " + ProductEntry.FTS_TABLE_NAME +
+                    " WHERE docid = old." + ProductEntry._ID + "; END";
+
+    // Version 4: suppliers move into their own table, and each product refers to its supplier by
+    // ID instead of repeating the supplier's name and phone. Existing suppliers are de-duplicated
+    // by name and phone, and the products table is rebuilt without the supplier columns.
+    private static final String SQL_CREATE_SUPPLIERS =
+            "CREATE TABLE " + SupplierEntry.TABLE_NAME + " (" +
+                    SupplierEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    SupplierEntry.COLUMN_SUPPLIER_NAME + " TEXT NOT NULL," +
+                    SupplierEntry.COLUMN_SUPPLIER_PHONE + " TEXT NOT NULL," +
+                    "UNIQUE (" + SupplierEntry.COLUMN_SUPPLIER_NAME + ", " +
+                    SupplierEntry.COLUMN_SUPPLIER_PHONE + "))";
+
+    private static final String SQL_POPULATE_SUPPLIERS =
+            "INSERT INTO " + SupplierEntry.TABLE_NAME + " (" +
+                    SupplierEntry.COLUMN_SUPPLIER_NAME + ", " +
+                    SupplierEntry.COLUMN_SUPPLIER_PHONE + ") SELECT " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE + " FROM " + ProductEntry.TABLE_NAME +
+                    " GROUP BY " + ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE +
+                    " ORDER BY MIN(" + ProductEntry._ID + ")";
+
+    private static final String NEW_TABLE_NAME = ProductEntry.TABLE_NAME + "_new";
+
+    private static final String SQL_CREATE_NORMALIZED_ENTRIES =
+            "CREATE TABLE " + NEW_TABLE_NAME + " (" +
+                    ProductEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    ProductEntry.COLUMN_PRODUCT_NAME + " TEXT NOT NULL," +
+                    ProductEntry.COLUMN_PRODUCT_PRICE + " REAL NOT NULL," +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + " INTEGER NOT NULL," +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID + " INTEGER NOT NULL REFERENCES " +
+                    SupplierEntry.TABLE_NAME + " (" + SupplierEntry._ID + "))";
+
+    private static final String SQL_POPULATE_NORMALIZED_ENTRIES =
+            "INSERT INTO " + NEW_TABLE_NAME + " (" +
+                    ProductEntry._ID + ", " +
+                    ProductEntry.COLUMN_PRODUCT_NAME + ", " +
+                    ProductEntry.COLUMN_PRODUCT_PRICE + ", " +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID + ") SELECT p." +
+                    ProductEntry._ID + ", p." +
+                    ProductEntry.COLUMN_PRODUCT_NAME + ", p." +
+                    ProductEntry.COLUMN_PRODUCT_PRICE + ", p." +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + ", s." +
+                    SupplierEntry._ID + " FROM " + ProductEntry.TABLE_NAME + " p JOIN " +
+                    SupplierEntry.TABLE_NAME + " s ON s." +
+                    SupplierEntry.COLUMN_SUPPLIER_NAME + " = p." + ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME +
+                    " AND s." + SupplierEntry.COLUMN_SUPPLIER_PHONE + " = p." +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE;
+
+    // Carry the ID sequence over, so the IDs of deleted products are never handed out again. The
+    // new table has no sequence row yet if no products were copied, and sqlite_sequence has no
+    // key on the name, so the row is replaced by its rowid, or inserted when there isn't one.
+    private static final String SQL_COPY_SEQUENCE =
+            "INSERT OR REPLACE INTO sqlite_sequence (rowid, name, seq) SELECT (SELECT rowid FROM " +
+                    "sqlite_sequence WHERE name = '" + NEW_TABLE_NAME + "'), '" + NEW_TABLE_NAME +
+                    "', seq FROM (SELECT MAX(seq) AS seq FROM sqlite_sequence WHERE name IN ('" +
+                    ProductEntry.TABLE_NAME + "', '" + NEW_TABLE_NAME + "')) WHERE seq IS NOT NULL";
+
+    private static final String SQL_CREATE_SUPPLIER_ID_INDEX =
+            "CREATE INDEX " + ProductEntry.TABLE_NAME + "_supplier_id_index ON " +
+                    ProductEntry.TABLE_NAME + " (" + ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID + ")";
+
+    // The view takes every column of the products table, so columns added later show up in it
+    private static final String SQL_CREATE_VIEW =
+            "CREATE VIEW " + ProductEntry.VIEW_NAME + " AS SELECT p.*, s." +
+                    SupplierEntry.COLUMN_SUPPLIER_NAME + " AS " + ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME + ", s." +
+                    SupplierEntry.COLUMN_SUPPLIER_PHONE + " AS " + ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE +
+                    " FROM " + ProductEntry.TABLE_NAME + " p JOIN " + SupplierEntry.TABLE_NAME + " s ON s." +
+                    SupplierEntry._ID + " = p." + ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID;
+
+    // The full-text index still holds the supplier name, which the triggers now look up
+    private static final String SQL_SELECT_SUPPLIER_NAME =
+            "(SELECT " + SupplierEntry.COLUMN_SUPPLIER_NAME + " FROM " + SupplierEntry.TABLE_NAME +
+                    " WHERE " + SupplierEntry._ID + " = new." + ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID + ")";
+
+    private static final String SQL_CREATE_NORMALIZED_FTS_INSERT_TRIGGER =
+            "CREATE TRIGGER " + ProductEntry.FTS_TABLE_NAME + "_insert AFTER INSERT ON " +
+                    ProductEntry.TABLE_NAME + " BEGIN " +
+                    "INSERT INTO " + ProductEntry.FTS_TABLE_NAME + " (docid, " +
+                    ProductEntry.COLUMN_PRODUCT_NAME + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME + ") VALUES (new." +
+                    ProductEntry._ID + ", new." +
+                    ProductEntry.COLUMN_PRODUCT_NAME + ", " + SQL_SELECT_SUPPLIER_NAME + "); END";
+
+    private static final String SQL_CREATE_NORMALIZED_FTS_UPDATE_TRIGGER =
+            "CREATE TRIGGER " + ProductEntry.FTS_TABLE_NAME + "_update AFTER UPDATE OF " +
+                    ProductEntry.COLUMN_PRODUCT_NAME + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID + " ON " +
+                    ProductEntry.TABLE_NAME + " BEGIN " +
+                    "UPDATE " + ProductEntry.FTS_TABLE_NAME + " SET " +
+                    ProductEntry.COLUMN_PRODUCT_NAME + " = new." + ProductEntry.COLUMN_PRODUCT_NAME + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME + " = " + SQL_SELECT_SUPPLIER_NAME +
+                    " WHERE docid = old." + ProductEntry._ID + "; END";
+
+    // A supplier's new name reaches the index entries of all of its products
+    private static final String SQL_CREATE_SUPPLIER_FTS_UPDATE_TRIGGER =
+            "CREATE TRIGGER " + SupplierEntry.TABLE_NAME + "_fts_update AFTER UPDATE OF " +
+                    SupplierEntry.COLUMN_SUPPLIER_NAME + " ON " + SupplierEntry.TABLE_NAME + " BEGIN " +
+                    "UPDATE " + ProductEntry.FTS_TABLE_NAME + " SET " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME + " = new." + SupplierEntry.COLUMN_SUPPLIER_NAME +
+                    " WHERE docid IN (SELECT " + ProductEntry._ID + " FROM " + ProductEntry.TABLE_NAME +
+                    " WHERE " + ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID + " = new." + SupplierEntry._ID + "); END";
+
+    // Version 5: prices are stored as whole cents instead of REAL amounts, so that sums of prices
+    // are exact. The products table is rebuilt with an INTEGER price column, since SQLite can't
+    // change the type of a column.
+    private static final String SQL_CREATE_CENTS_ENTRIES =
+            "CREATE TABLE " + NEW_TABLE_NAME + " (" +
+                    ProductEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    ProductEntry.COLUMN_PRODUCT_NAME + " TEXT NOT NULL," +
+                    ProductEntry.COLUMN_PRODUCT_PRICE + " INTEGER NOT NULL," +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + " INTEGER NOT NULL," +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID + " INTEGER NOT NULL REFERENCES " +
+                    SupplierEntry.TABLE_NAME + " (" + SupplierEntry._ID + "))";
+
+    private static final String SQL_POPULATE_CENTS_ENTRIES =
+            "INSERT INTO " + NEW_TABLE_NAME + " (" +
+                    ProductEntry._ID + ", " +
+                    ProductEntry.COLUMN_PRODUCT_NAME + ", " +
+                    ProductEntry.COLUMN_PRODUCT_PRICE + ", " +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID + ") SELECT " +
+                    ProductEntry._ID + ", " +
+                    ProductEntry.COLUMN_PRODUCT_NAME + ", CAST(ROUND(" +
+                    ProductEntry.COLUMN_PRODUCT_PRICE + " * 100) AS INTEGER), " +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID + " FROM " + ProductEntry.TABLE_NAME;
+
+    // Version 6: an append-only ledger of stock movements, which product quantities are the sum
+    // of, and snapshots that checkpoint it. Each product's current quantity is carried over as
+    // an opening adjustment.
+    private static final String SQL_CREATE_MOVEMENTS =
+            "CREATE TABLE " + StockMovementEntry.TABLE_NAME + " (" +
+                    StockMovementEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID + " INTEGER NOT NULL REFERENCES " +
+                    ProductEntry.TABLE_NAME + " (" + ProductEntry._ID + ") ON DELETE CASCADE," +
+                    StockMovementEntry.COLUMN_MOVEMENT_TYPE + " INTEGER NOT NULL," +
+                    StockMovementEntry.COLUMN_MOVEMENT_QUANTITY + " INTEGER NOT NULL," +
+                    StockMovementEntry.COLUMN_MOVEMENT_TIMESTAMP + " INTEGER NOT NULL)";
+
+    private static final String SQL_CREATE_MOVEMENTS_PRODUCT_INDEX =
+            "CREATE INDEX " + StockMovementEntry.TABLE_NAME + "_product_index ON " +
+                    StockMovementEntry.TABLE_NAME + " (" + StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID +
+                    ", " + StockMovementEntry._ID + ")";
+
+    private static final String SQL_CREATE_SNAPSHOTS =
+            "CREATE TABLE " + StockSnapshotEntry.TABLE_NAME + " (" +
+                    StockSnapshotEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    StockSnapshotEntry.COLUMN_SNAPSHOT_PRODUCT_ID + " INTEGER NOT NULL REFERENCES " +
+                    ProductEntry.TABLE_NAME + " (" + ProductEntry._ID + ") ON DELETE CASCADE," +
+                    StockSnapshotEntry.COLUMN_SNAPSHOT_MOVEMENT_ID + " INTEGER NOT NULL," +
+                    StockSnapshotEntry.COLUMN_SNAPSHOT_TIMESTAMP + " INTEGER NOT NULL," +
+                    StockSnapshotEntry.COLUMN_SNAPSHOT_QUANTITY + " INTEGER NOT NULL)";
+
+    private static final String SQL_CREATE_SNAPSHOTS_PRODUCT_INDEX =
+            "CREATE INDEX " + StockSnapshotEntry.TABLE_NAME + "_product_index ON " +
+                    StockSnapshotEntry.TABLE_NAME + " (" + StockSnapshotEntry.COLUMN_SNAPSHOT_PRODUCT_ID +
+                    ", " + StockSnapshotEntry.COLUMN_SNAPSHOT_TIMESTAMP + ")";
+
+    private static final String SQL_CREATE_SNAPSHOTS_MOVEMENT_INDEX =
+            "CREATE INDEX " + StockSnapshotEntry.TABLE_NAME + "_movement_index ON " +
+                    StockSnapshotEntry.TABLE_NAME + " (" + StockSnapshotEntry.COLUMN_SNAPSHOT_MOVEMENT_ID + ")";
+
+    private static final String SQL_POPULATE_MOVEMENTS =
+            "INSERT INTO " + StockMovementEntry.TABLE_NAME + " (" +
+                    StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID + ", " +
+                    StockMovementEntry.COLUMN_MOVEMENT_TYPE + ", " +
+                    StockMovementEntry.COLUMN_MOVEMENT_QUANTITY + ", " +
+                    StockMovementEntry.COLUMN_MOVEMENT_TIMESTAMP + ") SELECT " +
+                    ProductEntry._ID + ", " + StockMovementEntry.TYPE_ADJUSTMENT + ", " +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + ", CAST(strftime('%s', 'now') AS INTEGER) * 1000 FROM " +
+                    ProductEntry.TABLE_NAME + " WHERE " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " != 0 ORDER BY " +
+                    ProductEntry._ID;
+
+    // Version 7: reorder thresholds, and versions that record the order products were changed in.
+    // Existing products are versioned in ID order before the triggers take over, and the version
+    // table starts from the last of them.
+    private static final String SQL_ADD_REORDER_THRESHOLD =
+            "ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN " +
+                    ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD + " INTEGER NOT NULL DEFAULT 0";
+
+    private static final String SQL_ADD_VERSION =
+            "ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN " +
+                    ProductEntry.COLUMN_PRODUCT_VERSION + " INTEGER NOT NULL DEFAULT 0";
+
+    private static final String SQL_POPULATE_VERSIONS =
+            "UPDATE " + ProductEntry.TABLE_NAME + " SET " + ProductEntry.COLUMN_PRODUCT_VERSION + " = " +
+                    ProductEntry._ID;
+
+    // Serves the low stock check, which scans the products changed since a version and compares
+    // their quantities with their thresholds without reading the table rows
+    private static final String SQL_CREATE_VERSION_INDEX =
+            "CREATE INDEX " + ProductEntry.TABLE_NAME + "_version_index ON " +
+                    ProductEntry.TABLE_NAME + " (" + ProductEntry.COLUMN_PRODUCT_VERSION + ", " +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + ", " +
+                    ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD + ")";
+
+    private static final String SQL_CREATE_VERSION_TABLE =
+            "CREATE TABLE " + ProductEntry.VERSION_TABLE_NAME + " (" +
+                    ProductEntry.COLUMN_PRODUCT_VERSION + " INTEGER NOT NULL)";
+
+    private static final String SQL_POPULATE_VERSION_TABLE =
+            "INSERT INTO " + ProductEntry.VERSION_TABLE_NAME + " SELECT IFNULL(MAX(" +
+                    ProductEntry.COLUMN_PRODUCT_VERSION + "), 0) FROM " + ProductEntry.TABLE_NAME;
+
+    // SQLite allows one writer at a time, so versions are handed out in the order the changes
+    // commit
+    private static final String SQL_SET_NEXT_VERSION =
+            "UPDATE " + ProductEntry.VERSION_TABLE_NAME + " SET " + ProductEntry.COLUMN_PRODUCT_VERSION + " = " +
+                    ProductEntry.COLUMN_PRODUCT_VERSION + " + 1; " +
+                    "UPDATE " + ProductEntry.TABLE_NAME + " SET " + ProductEntry.COLUMN_PRODUCT_VERSION + " = (SELECT " +
+                    ProductEntry.COLUMN_PRODUCT_VERSION + " FROM " + ProductEntry.VERSION_TABLE_NAME + ") WHERE " +
+                    ProductEntry._ID + " = new." + ProductEntry._ID + "; ";
+
+    private static final String SQL_CREATE_VERSION_INSERT_TRIGGER =
+            "CREATE TRIGGER " + ProductEntry.TABLE_NAME + "_version_insert AFTER INSERT ON " +
+                    ProductEntry.TABLE_NAME + " BEGIN " + SQL_SET_NEXT_VERSION + "END";
+
+    // The trigger's own update changes the version, so it doesn't set off the trigger again
+    private static final String SQL_CREATE_VERSION_UPDATE_TRIGGER =
+            "CREATE TRIGGER " + ProductEntry.TABLE_NAME + "_version_update AFTER UPDATE ON " +
+                    ProductEntry.TABLE_NAME + " WHEN new." + ProductEntry.COLUMN_PRODUCT_VERSION + " = old." +
+                    ProductEntry.COLUMN_PRODUCT_VERSION + " BEGIN " + SQL_SET_NEXT_VERSION + "END";
+
+    // Version 8: SKUs, such as barcodes. The unique index makes a lookup by SKU a single index
+    // search, and allows any number of products without one.
+    private static final String SQL_ADD_SKU =
+            "ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN " + ProductEntry.COLUMN_PRODUCT_SKU + " TEXT";
+
+    private static final String SQL_CREATE_SKU_INDEX =
+            "CREATE UNIQUE INDEX " + ProductEntry.TABLE_NAME + "_sku_index ON " +
+                    ProductEntry.TABLE_NAME + " (" + ProductEntry.COLUMN_PRODUCT_SKU + ")";
+
+    // Version 9: change tracking for sync. Products get the time of their last change and an ID
+    // that is the same on every device, and deleted products leave a tombstone. The version
+    // triggers are replaced by ones that also keep the time and the tombstones.
+    private static final String SQL_ADD_UPDATED_AT =
+            "ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN " +
+                    ProductEntry.COLUMN_PRODUCT_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0";
+
+    private static final String SQL_ADD_SYNC_ID =
+            "ALTER TABLE " + ProductEntry.TABLE_NAME + " ADD COLUMN " + ProductEntry.COLUMN_PRODUCT_SYNC_ID + " TEXT";
+
+    // The current time in milliseconds, since strftime only has seconds
+    private static final String SQL_NOW_MILLIS = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    private static final String SQL_NEW_SYNC_ID = "lower(hex(randomblob(16)))";
+
+    private static final String SQL_POPULATE_SYNC_COLUMNS =
+            "UPDATE " + ProductEntry.TABLE_NAME + " SET " +
+                    ProductEntry.COLUMN_PRODUCT_UPDATED_AT + " = " + SQL_NOW_MILLIS + ", " +
+                    ProductEntry.COLUMN_PRODUCT_SYNC_ID + " = " + SQL_NEW_SYNC_ID;
+
+    private static final String SQL_CREATE_SYNC_ID_INDEX =
+            "CREATE UNIQUE INDEX " + ProductEntry.TABLE_NAME + "_sync_id_index ON " +
+                    ProductEntry.TABLE_NAME + " (" + ProductEntry.COLUMN_PRODUCT_SYNC_ID + ")";
+
+    private static final String SQL_CREATE_TOMBSTONES =
+            "CREATE TABLE " + TombstoneEntry.TABLE_NAME + " (" +
+                    TombstoneEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    TombstoneEntry.COLUMN_TOMBSTONE_SYNC_ID + " TEXT NOT NULL UNIQUE," +
+                    TombstoneEntry.COLUMN_TOMBSTONE_VERSION + " INTEGER NOT NULL," +
+                    TombstoneEntry.COLUMN_TOMBSTONE_DELETED_AT + " INTEGER NOT NULL)";
+
+    private static final String SQL_CREATE_TOMBSTONES_VERSION_INDEX =
+            "CREATE INDEX " + TombstoneEntry.TABLE_NAME + "_version_index ON " +
+                    TombstoneEntry.TABLE_NAME + " (" + TombstoneEntry.COLUMN_TOMBSTONE_VERSION + ")";
+
+    private static final String SQL_INCREMENT_VERSION =
+            "UPDATE " + ProductEntry.VERSION_TABLE_NAME + " SET " + ProductEntry.COLUMN_PRODUCT_VERSION + " = " +
+                    ProductEntry.COLUMN_PRODUCT_VERSION + " + 1; ";
+
+    private static final String SQL_SELECT_VERSION =
+            "(SELECT " + ProductEntry.COLUMN_PRODUCT_VERSION + " FROM " + ProductEntry.VERSION_TABLE_NAME + ")";
+
+    // A product inserted by sync keeps its ID and time, and replaces the tombstone of the
+    // product it once was
+    private static final String SQL_CREATE_SYNC_INSERT_TRIGGER =
+            "CREATE TRIGGER " + ProductEntry.TABLE_NAME + "_sync_insert AFTER INSERT ON " +
+                    ProductEntry.TABLE_NAME + " BEGIN " + SQL_INCREMENT_VERSION +
+                    "UPDATE " + ProductEntry.TABLE_NAME + " SET " +
+                    ProductEntry.COLUMN_PRODUCT_VERSION + " = " + SQL_SELECT_VERSION + ", " +
+                    ProductEntry.COLUMN_PRODUCT_UPDATED_AT + " = CASE WHEN new." +
+                    ProductEntry.COLUMN_PRODUCT_UPDATED_AT + " = 0 THEN " + SQL_NOW_MILLIS + " ELSE new." +
+                    ProductEntry.COLUMN_PRODUCT_UPDATED_AT + " END, " +
+                    ProductEntry.COLUMN_PRODUCT_SYNC_ID + " = IFNULL(new." +
+                    ProductEntry.COLUMN_PRODUCT_SYNC_ID + ", " + SQL_NEW_SYNC_ID + ") WHERE " +
+                    ProductEntry._ID + " = new." + ProductEntry._ID + "; " +
+                    "DELETE FROM " + TombstoneEntry.TABLE_NAME + " WHERE " +
+                    TombstoneEntry.COLUMN_TOMBSTONE_SYNC_ID + " = new." + ProductEntry.COLUMN_PRODUCT_SYNC_ID + "; END";
+
+    // An update that sets the time, as sync does, keeps it
+    private static final String SQL_CREATE_SYNC_UPDATE_TRIGGER =
+            "CREATE TRIGGER " + ProductEntry.TABLE_NAME + "_sync_update AFTER UPDATE ON " +
+                    ProductEntry.TABLE_NAME + " WHEN new." + ProductEntry.COLUMN_PRODUCT_VERSION + " = old." +
+                    ProductEntry.COLUMN_PRODUCT_VERSION + " BEGIN " + SQL_INCREMENT_VERSION +
+                    "UPDATE " + ProductEntry.TABLE_NAME + " SET " +
+                    ProductEntry.COLUMN_PRODUCT_VERSION + " = " + SQL_SELECT_VERSION + ", " +
+                    ProductEntry.COLUMN_PRODUCT_UPDATED_AT + " = CASE WHEN new." +
+                    ProductEntry.COLUMN_PRODUCT_UPDATED_AT + " = old." + ProductEntry.COLUMN_PRODUCT_UPDATED_AT +
+                    " THEN " + SQL_NOW_MILLIS + " ELSE new." + ProductEntry.COLUMN_PRODUCT_UPDATED_AT + " END WHERE " +
+                    ProductEntry._ID + " = new." + ProductEntry._ID + "; END";
+
+    private static final String SQL_CREATE_TOMBSTONE_TRIGGER =
+            "CREATE TRIGGER " + ProductEntry.TABLE_NAME + "_tombstone AFTER DELETE ON " +
+                    ProductEntry.TABLE_NAME + " BEGIN " + SQL_INCREMENT_VERSION +
+                    "INSERT OR REPLACE INTO " + TombstoneEntry.TABLE_NAME + " (" +
+                    TombstoneEntry.COLUMN_TOMBSTONE_SYNC_ID + ", " +
+                    TombstoneEntry.COLUMN_TOMBSTONE_VERSION + ", " +
+                    TombstoneEntry.COLUMN_TOMBSTONE_DELETED_AT + ") VALUES (old." +
+                    ProductEntry.COLUMN_PRODUCT_SYNC_ID + ", " + SQL_SELECT_VERSION + ", " + SQL_NOW_MILLIS + "); END";
+
+    // Version 10: stock counters, so that quantities changed on several devices merge instead of
+    // overwriting each other. The quantities products already have become their opening
+    // counters, and this device gets an ID for the counters of its own movements.
+    private static final String SQL_CREATE_COUNTERS =
+            "CREATE TABLE " + StockCounterEntry.TABLE_NAME + " (" +
+                    StockCounterEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    StockCounterEntry.COLUMN_COUNTER_PRODUCT_ID + " INTEGER NOT NULL REFERENCES " +
+                    ProductEntry.TABLE_NAME + " (" + ProductEntry._ID + ") ON DELETE CASCADE," +
+                    StockCounterEntry.COLUMN_COUNTER_DEVICE_ID + " TEXT NOT NULL," +
+                    StockCounterEntry.COLUMN_COUNTER_INCREMENTS + " INTEGER NOT NULL DEFAULT 0," +
+                    StockCounterEntry.COLUMN_COUNTER_DECREMENTS + " INTEGER NOT NULL DEFAULT 0," +
+                    "UNIQUE (" + StockCounterEntry.COLUMN_COUNTER_PRODUCT_ID + ", " +
+                    StockCounterEntry.COLUMN_COUNTER_DEVICE_ID + "))";
+
+    private static final String SQL_POPULATE_COUNTERS =
+            "INSERT INTO " + StockCounterEntry.TABLE_NAME + " (" +
+                    StockCounterEntry.COLUMN_COUNTER_PRODUCT_ID + ", " +
+                    StockCounterEntry.COLUMN_COUNTER_DEVICE_ID + ", " +
+                    StockCounterEntry.COLUMN_COUNTER_INCREMENTS + ") SELECT " +
+                    ProductEntry._ID + ", '" + StockCounterEntry.DEVICE_OPENING + "', " +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + " FROM " + ProductEntry.TABLE_NAME +
+                    " WHERE " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " != 0";
+
+    private static final String SQL_CREATE_DEVICE_TABLE =
+            "CREATE TABLE " + StockCounterEntry.DEVICE_TABLE_NAME + " (" +
+                    StockCounterEntry.COLUMN_COUNTER_DEVICE_ID + " TEXT NOT NULL)";
+
+    private static final String SQL_POPULATE_DEVICE_TABLE =
+            "INSERT INTO " + StockCounterEntry.DEVICE_TABLE_NAME + " VALUES (" + SQL_NEW_SYNC_ID + ")";
+
+    private static final String SQL_SELECT_DEVICE_ID =
+            "(SELECT " + StockCounterEntry.COLUMN_COUNTER_DEVICE_ID + " FROM " +
+                    StockCounterEntry.DEVICE_TABLE_NAME + ")";
+
+    // Every movement made on this device is added to its counter, which is created on the
+    // product's first movement. Merged movements are already in the other devices' counters.
+    private static final String SQL_CREATE_COUNTER_TRIGGER =
+            "CREATE TRIGGER " + StockMovementEntry.TABLE_NAME + "_counter AFTER INSERT ON " +
+                    StockMovementEntry.TABLE_NAME + " WHEN new." + StockMovementEntry.COLUMN_MOVEMENT_TYPE +
+                    " != " + StockMovementEntry.TYPE_MERGE + " BEGIN " +
+                    "INSERT OR IGNORE INTO " + StockCounterEntry.TABLE_NAME + " (" +
+                    StockCounterEntry.COLUMN_COUNTER_PRODUCT_ID + ", " +
+                    StockCounterEntry.COLUMN_COUNTER_DEVICE_ID + ") VALUES (new." +
+                    StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID + ", " + SQL_SELECT_DEVICE_ID + "); " +
+                    "UPDATE " + StockCounterEntry.TABLE_NAME + " SET " +
+                    StockCounterEntry.COLUMN_COUNTER_INCREMENTS + " = " +
+                    StockCounterEntry.COLUMN_COUNTER_INCREMENTS + " + MAX(new." +
+                    StockMovementEntry.COLUMN_MOVEMENT_QUANTITY + ", 0), " +
+                    StockCounterEntry.COLUMN_COUNTER_DECREMENTS + " = " +
+                    StockCounterEntry.COLUMN_COUNTER_DECREMENTS + " + MAX(-new." +
+                    StockMovementEntry.COLUMN_MOVEMENT_QUANTITY + ", 0) WHERE " +
+                    StockCounterEntry.COLUMN_COUNTER_PRODUCT_ID + " = new." +
+                    StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID + " AND " +
+                    StockCounterEntry.COLUMN_COUNTER_DEVICE_ID + " = " + SQL_SELECT_DEVICE_ID + "; END";
+
+    // Version 11: a product's supplier columns come from its supplier, so a change to the supplier
+    // is a change to each of its products. Touching the products gives each a new version, and
+    // sync and the low stock check pick them up.
+    private static final String SQL_CREATE_SUPPLIER_VERSION_TRIGGER =
+            "CREATE TRIGGER " + SupplierEntry.TABLE_NAME + "_version AFTER UPDATE OF " +
+                    SupplierEntry.COLUMN_SUPPLIER_NAME + ", " + SupplierEntry.COLUMN_SUPPLIER_PHONE + " ON " +
+                    SupplierEntry.TABLE_NAME + " BEGIN " +
+                    "UPDATE " + ProductEntry.TABLE_NAME + " SET " +
+                    ProductEntry.COLUMN_PRODUCT_UPDATED_AT + " = " + SQL_NOW_MILLIS + " WHERE " +
+                    ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID + " = new." + SupplierEntry._ID + "; END";
+
+    // Connection settings, read from res/values/database.xml
+    private final boolean mWriteAheadLogging;
+    private final String mSynchronous;
+    private final int mPageSize;
+    private final int mCacheSizeKib;
 
     /**
      * Create a helper object to create, open, and/or manage a database.
@@ -32,18 +478,74 @@ public class ProductDbHelper extends SQLiteOpenHelper {
      * @param context to use to open or create the database
      */
     public ProductDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, context.getResources().getBoolean(R.bool.database_write_ahead_logging));
+    }
+
+    /**
+     * Create a helper for the database with the given name, with or without write-ahead logging,
+     * so that tests can compare the two. The other connection settings come from the resources.
+     */
+    @VisibleForTesting
+    ProductDbHelper(Context context, String name, boolean writeAheadLogging) {
+        super(context, name, null, DATABASE_VERSION);
+
+        Resources resources = context.getResources();
+        mWriteAheadLogging = writeAheadLogging;
+        mSynchronous = resources.getString(R.string.database_synchronous);
+        mPageSize = resources.getInteger(R.integer.database_page_size);
+        mCacheSizeKib = resources.getInteger(R.integer.database_cache_size_kib);
+    }
+
+    /**
+     * Called when the database connection is being configured, before the schema is created or
+     * upgraded.
+     * <p>
+     * With write-ahead logging, writes go to a separate log, so readers keep reading the last
+     * committed data instead of waiting for a write to finish, and the database opens a pool of
+     * connections so that several threads can read at once. The page size has to be set before
+     * the first table is created and before the log is enabled, so it only applies to new
+     * databases. The synchronous level and cache size apply to the connection that writes.
+     * Foreign keys are enforced, so a product can't refer to a supplier that doesn't exist.
+     *
+     * @param db The database.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.setForeignKeyConstraintsEnabled(true);
+
+        if (db.getVersion() == 0) {
+            db.setPageSize(mPageSize);
+        }
+        if (mWriteAheadLogging) {
+            db.enableWriteAheadLogging();
+        }
+        switch (mSynchronous) {
+            case "OFF":
+            case "NORMAL":
+            case "FULL":
+                db.execSQL("PRAGMA synchronous = " + mSynchronous);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown synchronous level " + mSynchronous);
+        }
+        // A negative cache size is in KiB rather than pages
+        db.execSQL("PRAGMA cache_size = -" + mCacheSizeKib);
     }
 
     /**
      * Called when the database is created for the first time. This is where the
      * creation of tables and the initial population of the tables should happen.
+     * <p>
+     * The version 1 table is created and then brought up to date by the same steps
+     * {@link #onUpgrade} runs, so new and upgraded databases always end up with the same schema.
      *
      * @param db The database.
      */
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
 
     /**
@@ -68,9 +570,110 @@ public class ProductDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        // Each step upgrades the schema by one version and keeps the existing rows, so a
+        // database at any older version is brought up to date by running the steps in turn.
+        if (oldVersion < 2) {
+            db.execSQL(SQL_CREATE_NAME_INDEX);
+            db.execSQL(SQL_CREATE_SUPPLIER_NAME_INDEX);
+            db.execSQL(SQL_CREATE_QUANTITY_INDEX);
+        }
+        if (oldVersion < 3) {
+            db.execSQL(SQL_CREATE_FTS);
+            db.execSQL(SQL_POPULATE_FTS);
+            db.execSQL(SQL_CREATE_FTS_INSERT_TRIGGER);
+            db.execSQL(SQL_CREATE_FTS_UPDATE_TRIGGER);
+            db.execSQL(SQL_CREATE_FTS_DELETE_TRIGGER);
+        }
+        if (oldVersion < 4) {
+            db.execSQL(SQL_CREATE_SUPPLIERS);
+            db.execSQL(SQL_POPULATE_SUPPLIERS);
+
+            // Rebuild the products table, since SQLite can't drop columns. Dropping the old
+            // table drops its indexes and triggers too.
+            db.execSQL(SQL_CREATE_NORMALIZED_ENTRIES);
+            db.execSQL(SQL_POPULATE_NORMALIZED_ENTRIES);
+            db.execSQL(SQL_COPY_SEQUENCE);
+            db.execSQL("DROP TABLE " + ProductEntry.TABLE_NAME);
+            db.execSQL("ALTER TABLE " + NEW_TABLE_NAME + " RENAME TO " + ProductEntry.TABLE_NAME);
+
+            db.execSQL(SQL_CREATE_NAME_INDEX);
+            db.execSQL(SQL_CREATE_QUANTITY_INDEX);
+            db.execSQL(SQL_CREATE_SUPPLIER_ID_INDEX);
+            db.execSQL(SQL_CREATE_VIEW);
+            db.execSQL(SQL_CREATE_NORMALIZED_FTS_INSERT_TRIGGER);
+            db.execSQL(SQL_CREATE_NORMALIZED_FTS_UPDATE_TRIGGER);
+            db.execSQL(SQL_CREATE_FTS_DELETE_TRIGGER);
+            db.execSQL(SQL_CREATE_SUPPLIER_FTS_UPDATE_TRIGGER);
+        }
+        if (oldVersion < 5) {
+            // The view and the supplier trigger refer to the products table, so they go while
+            // it is rebuilt
+            db.execSQL("DROP VIEW " + ProductEntry.VIEW_NAME);
+            db.execSQL("DROP TRIGGER " + SupplierEntry.TABLE_NAME + "_fts_update");
+
+            db.execSQL(SQL_CREATE_CENTS_ENTRIES);
+            db.execSQL(SQL_POPULATE_CENTS_ENTRIES);
+            db.execSQL(SQL_COPY_SEQUENCE);
+            db.execSQL("DROP TABLE " + ProductEntry.TABLE_NAME);
+            db.execSQL("ALTER TABLE " + NEW_TABLE_NAME + " RENAME TO " + ProductEntry.TABLE_NAME);
+
+            db.execSQL(SQL_CREATE_NAME_INDEX);
+            db.execSQL(SQL_CREATE_QUANTITY_INDEX);
+            db.execSQL(SQL_CREATE_SUPPLIER_ID_INDEX);
+            db.execSQL(SQL_CREATE_VIEW);
+            db.execSQL(SQL_CREATE_NORMALIZED_FTS_INSERT_TRIGGER);
+            db.execSQL(SQL_CREATE_NORMALIZED_FTS_UPDATE_TRIGGER);
+            db.execSQL(SQL_CREATE_FTS_DELETE_TRIGGER);
+            db.execSQL(SQL_CREATE_SUPPLIER_FTS_UPDATE_TRIGGER);
+        }
+        if (oldVersion < 6) {
+            db.execSQL(SQL_CREATE_MOVEMENTS);
+            db.execSQL(SQL_CREATE_MOVEMENTS_PRODUCT_INDEX);
+            db.execSQL(SQL_CREATE_SNAPSHOTS);
+            db.execSQL(SQL_CREATE_SNAPSHOTS_PRODUCT_INDEX);
+            db.execSQL(SQL_CREATE_SNAPSHOTS_MOVEMENT_INDEX);
+            db.execSQL(SQL_POPULATE_MOVEMENTS);
+        }
+        if (oldVersion < 7) {
+            // Columns are added in place, since rebuilding the products table would cascade to
+            // the stock ledger. The view is recreated to pick them up.
+            db.execSQL(SQL_ADD_REORDER_THRESHOLD);
+            db.execSQL(SQL_ADD_VERSION);
+            db.execSQL(SQL_POPULATE_VERSIONS);
+            db.execSQL(SQL_CREATE_VERSION_TABLE);
+            db.execSQL(SQL_POPULATE_VERSION_TABLE);
+            db.execSQL(SQL_CREATE_VERSION_INDEX);
+            db.execSQL(SQL_CREATE_VERSION_INSERT_TRIGGER);
+            db.execSQL(SQL_CREATE_VERSION_UPDATE_TRIGGER);
+            db.execSQL("DROP VIEW " + ProductEntry.VIEW_NAME);
+            db.execSQL(SQL_CREATE_VIEW);
+        }
+        if (oldVersion < 8) {
+            db.execSQL(SQL_ADD_SKU);
+            db.execSQL(SQL_CREATE_SKU_INDEX);
+        }
+        if (oldVersion < 9) {
+            db.execSQL("DROP TRIGGER " + ProductEntry.TABLE_NAME + "_version_insert");
+            db.execSQL("DROP TRIGGER " + ProductEntry.TABLE_NAME + "_version_update");
+            db.execSQL(SQL_ADD_UPDATED_AT);
+            db.execSQL(SQL_ADD_SYNC_ID);
+            db.execSQL(SQL_POPULATE_SYNC_COLUMNS);
+            db.execSQL(SQL_CREATE_SYNC_ID_INDEX);
+            db.execSQL(SQL_CREATE_TOMBSTONES);
+            db.execSQL(SQL_CREATE_TOMBSTONES_VERSION_INDEX);
+            db.execSQL(SQL_CREATE_SYNC_INSERT_TRIGGER);
+            db.execSQL(SQL_CREATE_SYNC_UPDATE_TRIGGER);
+            db.execSQL(SQL_CREATE_TOMBSTONE_TRIGGER);
+        }
+        if (oldVersion < 10) {
+            db.execSQL(SQL_CREATE_COUNTERS);
+            db.execSQL(SQL_POPULATE_COUNTERS);
+            db.execSQL(SQL_CREATE_DEVICE_TABLE);
+            db.execSQL(SQL_POPULATE_DEVICE_TABLE);
+            db.execSQL(SQL_CREATE_COUNTER_TRIGGER);
+        }
+        if (oldVersion < 11) {
+            db.execSQL(SQL_CREATE_SUPPLIER_VERSION_TRIGGER);
+        }
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,204 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the products table out as CSV.
+ * <p>
+ * Rows are read a page at a time using ranges of {@link ProductEntry#_ID} (each page picks up
+ * after the last ID of the previous one) and written straight to the output channel, so at most
+ * one page of rows and one write buffer are held in memory no matter how large the catalog is.
+ * The file has the same header row that {@link ProductImporter#importCsv} reads.
+ */
+public class ProductExporter {
+
+    /** Number of rows read per query when no page size is given */
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    /** Size of the write buffer, in chars, when none is given */
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    /** Columns written to the file, in order */
+    private static final String[] EXPORT_COLUMNS = new String[] {
+            ProductEntry._ID,
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE,
+            ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD,
+            ProductEntry.COLUMN_PRODUCT_SKU,
+    };
+
+    /**
+     * Receives progress updates while an export runs.
+     */
+    public interface ProgressListener {
+        /**
+         * Called after each page of rows has been written.
+         *
+         * @param rowsWritten total number of rows written so far
+         */
+        void onProgress(int rowsWritten);
+    }
+
+    private final ContentResolver mContentResolver;
+    private final int mPageSize;
+    private final int mBufferSize;
+
+    /**
+     * Constructs a new {@link ProductExporter} with the default page and buffer sizes.
+     *
+     * @param contentResolver used to read the products
+     */
+    public ProductExporter(ContentResolver contentResolver) {
+        this(contentResolver, DEFAULT_PAGE_SIZE, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructs a new {@link ProductExporter}. Peak memory use is bounded by one page of rows
+     * plus the write buffer.
+     *
+     * @param contentResolver used to read the products
+     * @param pageSize        number of rows read per query
+     * @param bufferSize      size of the write buffer, in chars
+     */
+    public ProductExporter(ContentResolver contentResolver, int pageSize, int bufferSize) {
+        if (pageSize < 1 || bufferSize < 1) {
+            throw new IllegalArgumentException("Page and buffer sizes must be at least 1");
+        }
+        mContentResolver = contentResolver;
+        mPageSize = pageSize;
+        mBufferSize = bufferSize;
+    }
+
+    /**
+     * Write every product to the given channel as UTF-8 CSV. The channel is flushed but not closed.
+     *
+     * @param channel  where to write the CSV, typically a {@link java.io.FileOutputStream} channel
+     * @param listener notified after each page, or null
+     * @param signal   cancels the export, or null. If it is canceled, an
+     *                 {@link android.os.OperationCanceledException} is thrown and the channel
+     *                 holds a partial file.
+     * @return the number of rows written
+     * @throws IOException if the channel can't be written
+     */
+    public int exportCsv(WritableByteChannel channel, ProgressListener listener, CancellationSignal signal)
+            throws IOException {
+        Writer writer = new BufferedWriter(
+                Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), mBufferSize), mBufferSize);
+
+        // Header row
+        for (int i = 0; i < EXPORT_COLUMNS.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(EXPORT_COLUMNS[i]);
+        }
+        writer.write('\n');
+
+        Uri pageUri = ProductEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ProductContract.QUERY_PARAMETER_LIMIT, String.valueOf(mPageSize))
+                .build();
+        String selection = ProductEntry._ID + " > ?";
+        String[] selectionArgs = new String[1];
+
+        int rowsWritten = 0;
+        long lastId = -1;
+        while (true) {
+            // Each page starts right after the last ID of the previous page
+            selectionArgs[0] = String.valueOf(lastId);
+            Cursor cursor = mContentResolver.query(pageUri, EXPORT_COLUMNS, selection, selectionArgs,
+                    ProductEntry._ID, signal);
+            if (cursor == null) {
+                break;
+            }
+
+            int pageRows;
+            try {
+                pageRows = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    if (signal != null) {
+                        signal.throwIfCanceled();
+                    }
+                    lastId = cursor.getLong(0);
+                    writeRow(writer, cursor);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            rowsWritten += pageRows;
+            if (listener != null && pageRows > 0) {
+                listener.onProgress(rowsWritten);
+            }
+
+            // A short page means the end of the table was reached
+            if (pageRows < mPageSize) {
+                break;
+            }
+        }
+
+        writer.flush();
+        return rowsWritten;
+    }
+
+    /**
+     * Write the current row of the cursor as one CSV record.
+     */
+    private static void writeRow(Writer writer, Cursor cursor) throws IOException {
+        for (int i = 0; i < EXPORT_COLUMNS.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            // Prices are written as decimal amounts, as the importer reads them
+            if (EXPORT_COLUMNS[i].equals(ProductEntry.COLUMN_PRODUCT_PRICE)) {
+                writeField(writer, Prices.toString(cursor.getLong(i)));
+            } else {
+                writeField(writer, cursor.getString(i));
+            }
+        }
+        writer.write('\n');
+    }
+
+    /**
+     * Write a single field, quoting it if it contains a separator, quote or line break.
+     */
+    private static void writeField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,412 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streams products from a CSV or JSON file into the products table.
+ * <p>
+ * The input is parsed one record at a time and rows are committed through
+ * {@link ContentResolver#bulkInsert} in fixed-size chunks, so memory use depends on the chunk size
+ * and not on the size of the file. Each row is checked with {@link ProductValidator} before it is
+ * added to a chunk; a bad row is recorded with its location and skipped, and the rest of the file
+ * is still loaded.
+ * <p>
+ * CSV files must start with a header row naming the product columns, for example
+ * {@code name,price,quantity,supplierName,supplierPhone}, with prices as decimal amounts like
+ * {@code 12.50}. The {@code reorderThreshold} and {@code sku} columns are optional, and an empty
+ * field leaves its column unset. Fields may be quoted with {@code "}, and
+ * a quote inside a quoted field is written as {@code ""}. JSON files must contain a single array of
+ * objects whose keys are the product column names.
+ */
+public class ProductImporter {
+
+    private static final String LOG_TAG = ProductImporter.class.getSimpleName();
+
+    /** Number of rows committed per transaction when no chunk size is given */
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    /** Most row errors kept in a {@link Result}; any beyond this are only counted */
+    public static final int MAX_REPORTED_ERRORS = 100;
+
+    /** Product columns that an imported row may set */
+    private static final String[] IMPORT_COLUMNS = new String[] {
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE,
+            ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD,
+            ProductEntry.COLUMN_PRODUCT_SKU,
+    };
+
+    private final ContentResolver mContentResolver;
+
+    // Rows of the chunk being filled. The ContentValues are reused from chunk to chunk.
+    private final ContentValues[] mChunk;
+    private int mChunkCount;
+
+    // Location (line or record number) of the first row in the chunk being filled
+    private long mChunkStart;
+
+    private Result mResult;
+
+    /**
+     * Constructs a new {@link ProductImporter} that commits {@link #DEFAULT_CHUNK_SIZE} rows at a time.
+     *
+     * @param contentResolver used to insert the products
+     */
+    public ProductImporter(ContentResolver contentResolver) {
+        this(contentResolver, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructs a new {@link ProductImporter}.
+     *
+     * @param contentResolver used to insert the products
+     * @param chunkSize       number of rows to commit in each transaction
+     */
+    public ProductImporter(ContentResolver contentResolver, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        }
+        mContentResolver = contentResolver;
+        mChunk = new ContentValues[chunkSize];
+        for (int i = 0; i < chunkSize; i++) {
+            mChunk[i] = new ContentValues();
+        }
+    }
+
+    /**
+     * Import products from CSV text. Row errors are reported by line number.
+     *
+     * @param reader the CSV text. It is read to the end but not closed.
+     * @return the number of rows imported and the rows that were rejected
+     * @throws IOException if the text can't be read or has no header row
+     */
+    public Result importCsv(Reader reader) throws IOException {
+        begin();
+
+        CsvReader csv = new CsvReader(reader);
+        List<String> fields = new ArrayList<>();
+
+        // The header row says which product column each field maps to
+        if (!csv.readRecord(fields)) {
+            throw new IOException("CSV file has no header row");
+        }
+        String[] columns = new String[fields.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = importColumn(fields.get(i).trim());
+        }
+
+        while (csv.readRecord(fields)) {
+            long line = csv.getRecordLine();
+            // Skip blank lines
+            if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                continue;
+            }
+            if (fields.size() != columns.length) {
+                mResult.addError(line, "Expected " + columns.length + " fields but found " + fields.size());
+                continue;
+            }
+
+            ContentValues values = nextRow(line);
+            for (int i = 0; i < columns.length; i++) {
+                // An empty field leaves the column unset, as the exporter writes a missing SKU
+                String field = fields.get(i).trim();
+                if (columns[i] != null && !field.isEmpty()) {
+                    values.put(columns[i], field);
+                }
+            }
+            addRow(line);
+        }
+
+        return end();
+    }
+
+    /**
+     * Import products from JSON text. Row errors are reported by record number, counting from 1.
+     *
+     * @param reader the JSON text. It is read to the end but not closed.
+     * @return the number of rows imported and the rows that were rejected
+     * @throws IOException if the text can't be read or isn't an array of objects
+     */
+    public Result importJson(Reader reader) throws IOException {
+        begin();
+
+        JsonReader json = new JsonReader(reader);
+        long record = 0;
+
+        json.beginArray();
+        while (json.hasNext()) {
+            record++;
+            if (json.peek() != JsonToken.BEGIN_OBJECT) {
+                json.skipValue();
+                mResult.addError(record, "Expected an object");
+                continue;
+            }
+
+            ContentValues values = nextRow(record);
+            json.beginObject();
+            while (json.hasNext()) {
+                String column = importColumn(json.nextName());
+                JsonToken token = json.peek();
+                if (column == null || token == JsonToken.BEGIN_ARRAY
+                        || token == JsonToken.BEGIN_OBJECT || token == JsonToken.NULL) {
+                    json.skipValue();
+                } else {
+                    // Numbers and booleans are read as strings and checked by the validator
+                    values.put(column, json.nextString().trim());
+                }
+            }
+            json.endObject();
+            addRow(record);
+        }
+        json.endArray();
+
+        return end();
+    }
+
+    /**
+     * Return the product column for the given file column name, or null if the column is not
+     * one that can be imported.
+     */
+    private static String importColumn(String name) {
+        for (String column : IMPORT_COLUMNS) {
+            if (column.equalsIgnoreCase(name)) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    private void begin() {
+        mResult = new Result();
+        mChunkCount = 0;
+    }
+
+    /**
+     * Return the next free, empty row in the current chunk.
+     */
+    private ContentValues nextRow(long location) {
+        if (mChunkCount == 0) {
+            mChunkStart = location;
+        }
+        ContentValues values = mChunk[mChunkCount];
+        values.clear();
+        return values;
+    }
+
+    /**
+     * Validate the row returned by the last call to {@link #nextRow} and keep it in the chunk if
+     * it's valid. Commit the chunk once it is full.
+     */
+    private void addRow(long location) {
+        // Files hold prices as decimal amounts, which are stored in cents
+        ContentValues values = mChunk[mChunkCount];
+        String amount = values.getAsString(ProductEntry.COLUMN_PRODUCT_PRICE);
+        if (amount != null) {
+            Prices.putAmount(values, amount);
+        }
+
+        try {
+            ProductValidator.validateProduct(values);
+        } catch (IllegalArgumentException ex) {
+            mResult.addError(location, ex.getMessage());
+            return;
+        }
+
+        if (++mChunkCount == mChunk.length) {
+            commitChunk(location);
+        }
+    }
+
+    /**
+     * Insert the rows of the current chunk in one transaction.
+     */
+    private void commitChunk(long lastLocation) {
+        if (mChunkCount == 0) {
+            return;
+        }
+
+        ContentValues[] rows = mChunkCount == mChunk.length ? mChunk : Arrays.copyOf(mChunk, mChunkCount);
+        try {
+            mResult.mRowsImported += mContentResolver.bulkInsert(ProductEntry.CONTENT_URI, rows);
+        } catch (RuntimeException ex) {
+            // The whole chunk was rolled back
+            Log.e(LOG_TAG, "Failed to import rows " + mChunkStart + " to " + lastLocation, ex);
+            mResult.addError(mChunkStart, "Rows " + mChunkStart + " to " + lastLocation
+                    + " were not imported: " + ex.getMessage());
+        }
+        mChunkCount = 0;
+    }
+
+    private Result end() {
+        commitChunk(Long.MAX_VALUE);
+        Result result = mResult;
+        mResult = null;
+        return result;
+    }
+
+    /**
+     * Outcome of an import: how many rows were inserted and which rows were rejected.
+     */
+    public static class Result {
+        private int mRowsImported;
+        private int mErrorCount;
+        private final List<RowError> mErrors = new ArrayList<>();
+
+        /** Number of rows inserted into the products table */
+        public int getRowsImported() {
+            return mRowsImported;
+        }
+
+        /** Number of rows that were rejected, including those not kept in {@link #getErrors} */
+        public int getErrorCount() {
+            return mErrorCount;
+        }
+
+        /** The first {@link #MAX_REPORTED_ERRORS} rejected rows */
+        public List<RowError> getErrors() {
+            return mErrors;
+        }
+
+        private void addError(long location, String message) {
+            mErrorCount++;
+            if (mErrors.size() < MAX_REPORTED_ERRORS) {
+                mErrors.add(new RowError(location, message));
+            }
+        }
+    }
+
+    /**
+     * A row that could not be imported.
+     */
+    public static class RowError {
+        private final long mLocation;
+        private final String mMessage;
+
+        private RowError(long location, String message) {
+            mLocation = location;
+            mMessage = message;
+        }
+
+        /** Line number (CSV) or record number (JSON) of the row, counting from 1 */
+        public long getLocation() {
+            return mLocation;
+        }
+
+        /** Why the row was rejected */
+        public String getMessage() {
+            return mMessage;
+        }
+
+        @Override
+        public String toString() {
+            return mLocation + ": " + mMessage;
+        }
+    }
+
+    /**
+     * Minimal streaming CSV parser. It reads one record at a time, keeping only the fields of
+     * the current record in memory, and tracks the line each record starts on.
+     */
+    private static class CsvReader {
+        private final BufferedReader mReader;
+        private final StringBuilder mField = new StringBuilder();
+        private long mLine = 1;
+        private long mRecordLine;
+        private boolean mEof;
+
+        CsvReader(Reader reader) {
+            mReader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        }
+
+        /** Line number the last record read started on */
+        long getRecordLine() {
+            return mRecordLine;
+        }
+
+        /**
+         * Read the next record into the given list, replacing its contents.
+         *
+         * @return false if there are no more records
+         */
+        boolean readRecord(List<String> fields) throws IOException {
+            fields.clear();
+            if (mEof) {
+                return false;
+            }
+
+            mRecordLine = mLine;
+            mField.setLength(0);
+            boolean quoted = false;
+            boolean fieldStarted = false;
+
+            while (true) {
+                int c = mReader.read();
+                if (c == -1) {
+                    mEof = true;
+                    if (!fieldStarted && fields.isEmpty() && mField.length() == 0) {
+                        return false;
+                    }
+                    fields.add(mField.toString());
+                    return true;
+                }
+
+                if (quoted) {
+                    if (c == '"') {
+                        mReader.mark(1);
+                        if (mReader.read() == '"') {
+                            mField.append('"');
+                        } else {
+                            mReader.reset();
+                            quoted = false;
+                        }
+                    } else {
+                        if (c == '\n') {
+                            mLine++;
+                        }
+                        mField.append((char) c);
+                    }
+                    continue;
+                }
+
+                switch (c) {
+                    case '"':
+                        quoted = true;
+                        fieldStarted = true;
+                        break;
+                    case ',':
+                        fields.add(mField.toString());
+                        mField.setLength(0);
+                        fieldStarted = true;
+                        break;
+                    case '\r':
+                        // Line endings may be \r\n; the \n ends the record
+                        break;
+                    case '\n':
+                        mLine++;
+                        fields.add(mField.toString());
+                        return true;
+                    default:
+                        mField.append((char) c);
+                        fieldStarted = true;
+                        break;
+                }
+            }
+        }
+    }
+}
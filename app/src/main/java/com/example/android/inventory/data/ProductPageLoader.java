@@ -0,0 +1,602 @@
+package com.example.android.inventory.data;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.AbstractCursor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LongSparseArray;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the products table a page at a time, in {@link ProductEntry#_ID} order.
+ * <p>
+ * Pages are fetched with keyset pagination: each query asks for the rows after the last ID of the
+ * previous page ({@code WHERE _id > ? ORDER BY _id LIMIT n}), so every page costs the same no
+ * matter how deep into the table it is, and the first rows show up after one page has loaded
+ * rather than after the whole table has. Call {@link #loadMore} as the list nears its end to
+ * fetch the next page; the pages already loaded are kept and delivered together as one cursor.
+ * <p>
+ * When the products change, only the pages holding the products named in the change notification
+ * (see {@link ProductChange}) are fetched again, and changes to columns this loader doesn't load
+ * are ignored. A change that doesn't say which products it touched reloads every page.
+ * <p>
+ * Pages are shared between the cursors this loader delivers and are closed once no cursor uses
+ * them. Unlike a {@link android.content.CursorLoader}, a delivered cursor belongs to whoever it
+ * was delivered to, who must close it when it is no longer shown.
+ */
+public class ProductPageLoader extends AsyncTaskLoader<Cursor> {
+
+    /** Number of rows per page when no page size is given */
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    private final String[] mProjection;
+    private final int mPageSize;
+    private final Uri mPageUri;
+    private final ChangeObserver mObserver = new ChangeObserver();
+    private boolean mObserverRegistered;
+
+    // The cursor delivered last, whether it has been handed out yet, and its pages
+    private PagedCursor mCursor;
+    private boolean mCursorDelivered;
+    private List<Page> mPages = Collections.emptyList();
+
+    // Number of pages the list wants
+    private int mPageCount = 1;
+
+    // Every change notification gets the next sequence number. Changes are remembered until a
+    // cursor loaded after them has been delivered, so a canceled load doesn't lose any.
+    private int mChangeSequence;
+
+    // Products that have changed, with the sequence number of their latest change
+    private final LongSparseArray<Integer> mChangedIds = new LongSparseArray<>();
+
+    // Sequence number of the latest change that didn't say which products it touched, or 0
+    private int mReloadSequence;
+
+    // What the next load starts from, which of those pages it fetches again, how many pages it
+    // should end up with, and the changes it includes. Set on the main thread just before the
+    // load runs.
+    private List<Page> mLoadBase = Collections.emptyList();
+    private boolean[] mLoadStale = new boolean[0];
+    private int mLoadTarget;
+    private int mLoadSequence;
+
+    /**
+     * Constructs a new {@link ProductPageLoader}.
+     *
+     * @param context    the context
+     * @param projection the columns to load, which must include {@link ProductEntry#_ID}
+     * @param pageSize   number of rows per page
+     */
+    public ProductPageLoader(Context context, String[] projection, int pageSize) {
+        super(context);
+        mProjection = projection;
+        mPageSize = pageSize;
+        mPageUri = ProductEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ProductContract.QUERY_PARAMETER_LIMIT, String.valueOf(pageSize))
+                .build();
+    }
+
+    /**
+     * Load the next page, unless the last page has been loaded or a page is already on its way.
+     * Must be called on the main thread.
+     */
+    public void loadMore() {
+        if (mCursor == null || mCursor.mEndReached || mPageCount > mPages.size()) {
+            return;
+        }
+        mPageCount++;
+        forceLoad();
+    }
+
+    /**
+     * Note a change notification and, unless it didn't touch anything this loader shows, load
+     * again. Called on the main thread.
+     */
+    private void onProductsChanged(Uri uri) {
+        ProductChange change = ProductChange.fromUri(uri);
+        if (change != null && !change.affects(mProjection)) {
+            // None of the loaded columns changed
+            return;
+        }
+
+        int sequence = ++mChangeSequence;
+        long[] ids = change != null ? change.getIds() : null;
+        if (ids == null) {
+            mReloadSequence = sequence;
+        } else {
+            for (long id : ids) {
+                mChangedIds.put(id, sequence);
+            }
+        }
+        onContentChanged();
+    }
+
+    @Override
+    protected void onForceLoad() {
+        // Keep the pages already loaded, except those holding products that have changed since.
+        // If it isn't known which products changed, start from the first page again.
+        boolean reload = mReloadSequence != 0;
+        mLoadBase = reload ? Collections.<Page>emptyList() : mPages;
+        mLoadStale = reload ? new boolean[0] : findStalePages(mPages);
+        mLoadTarget = mPageCount;
+        mLoadSequence = mChangeSequence;
+        super.onForceLoad();
+    }
+
+    /**
+     * Return which of the given pages hold products that have changed. A product past the last
+     * page belongs to the last page if it is the end of the table, since that is where new
+     * products show up.
+     */
+    private boolean[] findStalePages(List<Page> pages) {
+        boolean[] stale = new boolean[pages.size()];
+        if (pages.isEmpty()) {
+            return stale;
+        }
+
+        boolean endReached = mCursor != null && mCursor.mEndReached;
+        for (int i = 0; i < mChangedIds.size(); i++) {
+            long id = mChangedIds.keyAt(i);
+            int page = 0;
+            while (page < pages.size() && id > pages.get(page).getLastId()) {
+                page++;
+            }
+            if (page < pages.size()) {
+                stale[page] = true;
+            } else if (endReached) {
+                stale[pages.size() - 1] = true;
+            }
+        }
+        return stale;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        List<Page> base = mLoadBase;
+        boolean[] stale = mLoadStale;
+        int target = mLoadTarget;
+        int sequence = mLoadSequence;
+
+        List<Page> pages = new ArrayList<>(Math.max(base.size(), target));
+        long lastId = -1;
+        boolean endReached = false;
+        for (int i = 0; i < base.size() && !isLoadInBackgroundCanceled(); i++) {
+            Page page = base.get(i);
+            boolean last = i == base.size() - 1;
+            if (stale[i]) {
+                // Fetch the page again over the same range of IDs. The last page is fetched the
+                // way it was first loaded, so it also picks up products added after it.
+                Page fresh = last ? loadPage(lastId) : loadPage(lastId, page.getLastId());
+                if (fresh != null) {
+                    page = fresh;
+                }
+            }
+            if (page.mCount > 0) {
+                pages.add(page);
+                lastId = page.getLastId();
+            } else {
+                page.mCursor.close();
+            }
+            if (last) {
+                // A short page means the end of the table was reached
+                endReached = page.mCount < mPageSize;
+            }
+        }
+
+        while (!endReached && pages.size() < target && !isLoadInBackgroundCanceled()) {
+            Page page = loadPage(lastId);
+            if (page == null) {
+                break;
+            }
+            if (page.mCount > 0) {
+                pages.add(page);
+                lastId = page.getLastId();
+            } else {
+                page.mCursor.close();
+            }
+            // A short page means the end of the table was reached
+            endReached = page.mCount < mPageSize;
+        }
+
+        PagedCursor cursor = new PagedCursor(pages, mProjection, endReached);
+        cursor.mChangeSequence = sequence;
+        return cursor;
+    }
+
+    /**
+     * Query the page of rows that comes after the given ID.
+     */
+    private Page loadPage(long afterId) {
+        return loadPage(mPageUri, ProductEntry._ID + " > ?",
+                new String[] { String.valueOf(afterId) });
+    }
+
+    /**
+     * Query the rows with IDs after the first given ID, up to and including the second.
+     */
+    private Page loadPage(long afterId, long throughId) {
+        return loadPage(ProductEntry.CONTENT_URI, ProductEntry._ID + " > ? AND " + ProductEntry._ID + " <= ?",
+                new String[] { String.valueOf(afterId), String.valueOf(throughId) });
+    }
+
+    /**
+     * Query a page of rows in ID order.
+     */
+    private Page loadPage(Uri uri, String selection, String[] selectionArgs) {
+        Cursor cursor = getContext().getContentResolver().query(
+                uri,
+                mProjection,
+                selection,
+                selectionArgs,
+                ProductEntry._ID);
+        if (cursor == null) {
+            return null;
+        }
+
+        // Fill the page now, on the loader thread, and note the ID and a hash of the contents
+        // of each row. The cursors this loader delivers answer row ID and content questions from
+        // these arrays, so they can be asked from any thread without moving the cursor.
+        int count = cursor.getCount();
+        long[] ids = new long[count];
+        int[] hashes = new int[count];
+        int idColumn = cursor.getColumnIndexOrThrow(ProductEntry._ID);
+        int columnCount = cursor.getColumnCount();
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(idColumn);
+            int hash = 0;
+            for (int column = 0; column < columnCount; column++) {
+                hash = 31 * hash + hashColumn(cursor, column);
+            }
+            hashes[i] = hash;
+        }
+        return new Page(cursor, ids, hashes);
+    }
+
+    /**
+     * Return a hash of the value in the given column of the cursor's current row.
+     */
+    private static int hashColumn(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                long longValue = cursor.getLong(column);
+                return (int) (longValue ^ (longValue >>> 32));
+            case Cursor.FIELD_TYPE_FLOAT:
+                long bits = Double.doubleToLongBits(cursor.getDouble(column));
+                return (int) (bits ^ (bits >>> 32));
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(column).hashCode();
+            case Cursor.FIELD_TYPE_BLOB:
+                return Arrays.hashCode(cursor.getBlob(column));
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        PagedCursor paged = (PagedCursor) cursor;
+        if (isReset()) {
+            // An async query came in while the loader is stopped
+            paged.close();
+            return;
+        }
+
+        // Forget the changes this cursor has caught up with
+        if (mReloadSequence <= paged.mChangeSequence) {
+            mReloadSequence = 0;
+        }
+        for (int i = mChangedIds.size() - 1; i >= 0; i--) {
+            if (mChangedIds.valueAt(i) <= paged.mChangeSequence) {
+                mChangedIds.removeAt(i);
+            }
+        }
+
+        // Keep the new pages for the next load to build on, and let go of the old ones
+        for (Page page : paged.mPages) {
+            page.acquire();
+        }
+        for (Page page : mPages) {
+            page.release();
+        }
+        mPages = paged.mPages;
+
+        // A cursor that was replaced before it was ever handed out has no one else to close it
+        if (mCursor != null && mCursor != paged && !mCursorDelivered) {
+            mCursor.close();
+        }
+        mCursor = paged;
+        mCursorDelivered = false;
+
+        if (isStarted()) {
+            mCursorDelivered = true;
+            super.deliverResult(paged);
+        }
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        if (cursor != null) {
+            cursor.close();
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        // Watch the whole products table, including changes to single products
+        if (!mObserverRegistered) {
+            getContext().getContentResolver().registerContentObserver(
+                    ProductEntry.CONTENT_URI, true, mObserver);
+            mObserverRegistered = true;
+        }
+
+        if (mCursor != null) {
+            deliverResult(mCursor);
+        }
+        if (takeContentChanged() || mCursor == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        // Attempt to cancel the current load task if possible.
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+
+        // Ensure the loader is stopped
+        onStopLoading();
+
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        for (Page page : mPages) {
+            page.release();
+        }
+        if (mCursor != null && !mCursorDelivered) {
+            mCursor.close();
+        }
+        mPages = Collections.emptyList();
+        mCursor = null;
+        mPageCount = 1;
+        mChangedIds.clear();
+        mReloadSequence = 0;
+    }
+
+    /**
+     * Passes change notifications, with the URI that describes the change, to
+     * {@link #onProductsChanged} on the main thread.
+     */
+    private final class ChangeObserver extends ContentObserver {
+        private ChangeObserver() {
+            super(new Handler(Looper.getMainLooper()));
+        }
+
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            onProductsChanged(uri);
+        }
+    }
+
+    /**
+     * One page of rows, with the ID and a hash of the contents of each. The page's cursor is
+     * closed when the last cursor or loader using the page releases it.
+     */
+    private static class Page {
+        private final Cursor mCursor;
+        private final int mCount;
+        private final long[] mIds;
+        private final int[] mHashes;
+        private final AtomicInteger mReferences = new AtomicInteger();
+
+        private Page(Cursor cursor, long[] ids, int[] hashes) {
+            mCursor = cursor;
+            mCount = ids.length;
+            mIds = ids;
+            mHashes = hashes;
+        }
+
+        private long getLastId() {
+            return mIds[mCount - 1];
+        }
+
+        private void acquire() {
+            mReferences.incrementAndGet();
+        }
+
+        private void release() {
+            if (mReferences.decrementAndGet() == 0) {
+                mCursor.close();
+            }
+        }
+    }
+
+    /**
+     * Presents a list of pages as a single cursor. Unlike a MergeCursor it doesn't register with
+     * its pages, and closing it only closes the pages no other cursor is using.
+     * <p>
+     * The row ID and content hash methods don't move the cursor, so they may be called from any
+     * thread, for example to compare two cursors in the background.
+     */
+    public static class PagedCursor extends AbstractCursor {
+        private final List<Page> mPages;
+        private final String[] mColumns;
+        private final boolean mEndReached;
+
+        // Position in this cursor of the first row of each page
+        private final int[] mPageStarts;
+        private final int mCount;
+
+        private Cursor mCurrent;
+        private boolean mReleased;
+
+        // The latest change notification this cursor includes
+        private int mChangeSequence;
+
+        PagedCursor(List<Page> pages, String[] columns, boolean endReached) {
+            mPages = pages;
+            mColumns = columns;
+            mEndReached = endReached;
+
+            mPageStarts = new int[pages.size()];
+            int count = 0;
+            for (int i = 0; i < pages.size(); i++) {
+                mPageStarts[i] = count;
+                count += pages.get(i).mCount;
+                pages.get(i).acquire();
+            }
+            mCount = count;
+        }
+
+        /**
+         * Return the {@link ProductEntry#_ID} of the row at the given position.
+         */
+        public long getRowId(int position) {
+            int page = findPage(position);
+            return mPages.get(page).mIds[position - mPageStarts[page]];
+        }
+
+        /**
+         * Return a hash of the contents of the row at the given position. Rows with different
+         * hashes have different contents.
+         */
+        public int getRowHash(int position) {
+            int page = findPage(position);
+            return mPages.get(page).mHashes[position - mPageStarts[page]];
+        }
+
+        /**
+         * Return the position of the row with the given {@link ProductEntry#_ID}, or -1 if there is
+         * no such row. Rows are in ID order, so this is a binary search.
+         */
+        public int findPosition(long id) {
+            for (int i = 0; i < mPages.size(); i++) {
+                Page page = mPages.get(i);
+                if (id <= page.getLastId()) {
+                    int index = Arrays.binarySearch(page.mIds, id);
+                    return index >= 0 ? mPageStarts[i] + index : -1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Return the index of the page holding the given position.
+         */
+        private int findPage(int position) {
+            // Find the last page that starts at or before the position
+            int low = 0;
+            int high = mPageStarts.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (mPageStarts[mid] <= position) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            int page = findPage(newPosition);
+            mCurrent = mPages.get(page).mCursor;
+            return mCurrent.moveToPosition(newPosition - mPageStarts[page]);
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            synchronized (this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+            }
+            for (Page page : mPages) {
+                page.release();
+            }
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+        @Override
+        public String[] getColumnNames() {
+            return mColumns;
+        }
+
+        @Override
+        public int getType(int column) {
+            return mCurrent.getType(column);
+        }
+
+        @Override
+        public String getString(int column) {
+            return mCurrent.getString(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return mCurrent.getShort(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return mCurrent.getInt(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            return mCurrent.getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return mCurrent.getFloat(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return mCurrent.getDouble(column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return mCurrent.getBlob(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return mCurrent.isNull(column);
+        }
+    }
+}
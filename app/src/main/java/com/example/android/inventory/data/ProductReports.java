@@ -0,0 +1,462 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes reports over the products table: total stock value, value by supplier, the number of
+ * products low on stock, the products with the most stock, and the products that are out of stock.
+ * <p>
+ * The first totals are computed in SQL, as aggregate queries that return only the answer, which
+ * scan the table once without copying it. If the products change and totals are asked for again,
+ * a {@link CatalogSnapshot} is loaded, and from then on change notifications are queued and
+ * applied to it before the next total is read, so each change only fetches the products it
+ * names. Lists of products are ordered queries the provider answers with only the rows asked for.
+ * <p>
+ * Each report is cached until the next change notification for the products table. The methods
+ * block while a report is computed, so call them off the main thread, and {@link #close} the
+ * reports when they are no longer needed.
+ */
+public class ProductReports {
+
+    /**
+     * Number of queued changes past which the snapshot is loaded again instead, since one query
+     * for the whole table is cheaper than a query for each of that many changes
+     */
+    public static final int MAX_PENDING_CHANGES = 50;
+
+    /** Value of one row, computed by SQLite */
+    private static final String VALUE =
+            ProductEntry.COLUMN_PRODUCT_PRICE + " * " + ProductEntry.COLUMN_PRODUCT_QUANTITY;
+
+    /** Columns of the rows the supplier breakdown query returns, one per supplier */
+    private static final String[] SUPPLIER_TOTAL_COLUMNS = new String[] {
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME,
+            "COUNT(*)",
+            "SUM(" + ProductEntry.COLUMN_PRODUCT_QUANTITY + ")",
+            "SUM(" + VALUE + ")",
+    };
+
+    /** Columns of the rows the product lists hold */
+    private static final String[] PRODUCT_COLUMNS = new String[] {
+            ProductEntry._ID,
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+    };
+
+    /**
+     * A product in a report.
+     */
+    public static class ProductTotal {
+        private final long mId;
+        private final String mName;
+        private final int mQuantity;
+
+        private ProductTotal(long id, String name, int quantity) {
+            mId = id;
+            mName = name;
+            mQuantity = quantity;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getQuantity() {
+            return mQuantity;
+        }
+    }
+
+    /**
+     * The totals of one supplier's products.
+     */
+    public static class SupplierTotal {
+        private final String mName;
+        private final int mProductCount;
+        private final long mQuantity;
+        private final long mValue;
+
+        private SupplierTotal(String name, int productCount, long quantity, long value) {
+            mName = name;
+            mProductCount = productCount;
+            mQuantity = quantity;
+            mValue = value;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getProductCount() {
+            return mProductCount;
+        }
+
+        public long getQuantity() {
+            return mQuantity;
+        }
+
+        /** Value of the supplier's stock, in cents */
+        public long getValue() {
+            return mValue;
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+
+    // Reports computed since the last change, and a generation that changes with every change so
+    // that a report computed across a change isn't cached
+    private final Map<String, Object> mCache = new HashMap<>();
+    private long mGeneration;
+
+    // The snapshot totals are read from once the products have changed, which is only touched
+    // while holding its lock, and the generation the first totals were computed in
+    private final CatalogSnapshot mSnapshot;
+    private long mFirstGeneration = -1;
+
+    // Whether the snapshot has been loaded, and the changes that haven't been applied to it yet.
+    // Nothing is queued before the load, which reads every change made until then. A null change
+    // means the whole table.
+    private boolean mSnapshotLoaded;
+    private final List<Uri> mPendingChanges = new ArrayList<>();
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            // Fetching the products changed is left to the next report, off this thread
+            invalidate(uri);
+        }
+    };
+
+    /**
+     * Constructs a new {@link ProductReports}, which watches the products table until
+     * {@link #close} is called.
+     *
+     * @param contentResolver used to read the products
+     */
+    public ProductReports(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+        mSnapshot = new CatalogSnapshot(contentResolver);
+        mContentResolver.registerContentObserver(ProductEntry.CONTENT_URI, true, mObserver);
+    }
+
+    /**
+     * Stop watching the products table.
+     */
+    public void close() {
+        mContentResolver.unregisterContentObserver(mObserver);
+        invalidate(null);
+    }
+
+    /**
+     * Return the value of all the stock in cents: the sum of price times quantity.
+     */
+    public long getTotalValue() {
+        String key = "totalValue";
+        Object cached = getCached(key);
+        if (cached != null) {
+            return (Long) cached;
+        }
+
+        long generation = getGeneration();
+        long value;
+        synchronized (mSnapshot) {
+            CatalogSnapshot snapshot = getSnapshot(generation);
+            value = snapshot != null ? snapshot.getInventoryValue() :
+                    queryLong("SUM(" + VALUE + ")", null);
+        }
+        putCached(key, value, generation);
+        return value;
+    }
+
+    /**
+     * Return the number of products low on stock, that is at or below their
+     * {@link ProductEntry#COLUMN_PRODUCT_REORDER_THRESHOLD}.
+     */
+    public int getLowStockCount() {
+        String key = "lowStockCount";
+        Object cached = getCached(key);
+        if (cached != null) {
+            return (Integer) cached;
+        }
+
+        long generation = getGeneration();
+        int count;
+        synchronized (mSnapshot) {
+            CatalogSnapshot snapshot = getSnapshot(generation);
+            count = snapshot != null ? snapshot.countLowStock() : (int) queryLong("COUNT(*)",
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + " <= " + ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD);
+        }
+        putCached(key, count, generation);
+        return count;
+    }
+
+    /**
+     * Return the given number of products with the most stock, most first. Computed in SQL using
+     * the quantity index.
+     */
+    @SuppressWarnings("unchecked")
+    public List<ProductTotal> getTopByQuantity(int count) {
+        String key = "topByQuantity:" + count;
+        Object cached = getCached(key);
+        if (cached != null) {
+            return (List<ProductTotal>) cached;
+        }
+
+        long generation = getGeneration();
+        Uri uri = ProductEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ProductContract.QUERY_PARAMETER_LIMIT, String.valueOf(count))
+                .build();
+        List<ProductTotal> products = queryProducts(uri, null, null,
+                ProductEntry.COLUMN_PRODUCT_QUANTITY + " DESC");
+        putCached(key, products, generation);
+        return products;
+    }
+
+    /**
+     * Return the products with no stock, in name order. Computed in SQL using the quantity index.
+     */
+    @SuppressWarnings("unchecked")
+    public List<ProductTotal> getOutOfStock() {
+        String key = "outOfStock";
+        Object cached = getCached(key);
+        if (cached != null) {
+            return (List<ProductTotal>) cached;
+        }
+
+        long generation = getGeneration();
+        List<ProductTotal> products = queryProducts(ProductEntry.CONTENT_URI,
+                ProductEntry.COLUMN_PRODUCT_QUANTITY + " <= 0", null,
+                ProductEntry.COLUMN_PRODUCT_NAME + " COLLATE NOCASE");
+        putCached(key, products, generation);
+        return products;
+    }
+
+    /**
+     * Return the totals of each supplier's products, highest value first. Suppliers with no
+     * products are left out.
+     */
+    @SuppressWarnings("unchecked")
+    public List<SupplierTotal> getValueBySupplier() {
+        String key = "valueBySupplier";
+        Object cached = getCached(key);
+        if (cached != null) {
+            return (List<SupplierTotal>) cached;
+        }
+
+        long generation = getGeneration();
+        List<SupplierTotal> suppliers;
+        synchronized (mSnapshot) {
+            CatalogSnapshot snapshot = getSnapshot(generation);
+            suppliers = snapshot != null ? sumSuppliers(snapshot) : querySupplierTotals();
+        }
+
+        Collections.sort(suppliers, new Comparator<SupplierTotal>() {
+            @Override
+            public int compare(SupplierTotal a, SupplierTotal b) {
+                int order = Long.compare(b.mValue, a.mValue);
+                return order != 0 ? order : a.mName.compareTo(b.mName);
+            }
+        });
+        suppliers = Collections.unmodifiableList(suppliers);
+        putCached(key, suppliers, generation);
+        return suppliers;
+    }
+
+    /**
+     * Sum each supplier's products in SQL, grouped by supplier through the supplier index.
+     */
+    private List<SupplierTotal> querySupplierTotals() {
+        List<SupplierTotal> suppliers = new ArrayList<>();
+        Uri uri = ProductEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ProductContract.QUERY_PARAMETER_GROUP_BY,
+                        ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID)
+                .build();
+        Cursor cursor = mContentResolver.query(uri, SUPPLIER_TOTAL_COLUMNS, null, null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    suppliers.add(new SupplierTotal(cursor.getString(0), cursor.getInt(1), cursor.getLong(2),
+                            cursor.getLong(3)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return suppliers;
+    }
+
+    /**
+     * Sum each supplier's products from the snapshot.
+     */
+    private static List<SupplierTotal> sumSuppliers(CatalogSnapshot snapshot) {
+        List<SupplierTotal> suppliers = new ArrayList<>();
+        int[] productCounts = snapshot.getProductCountBySupplier();
+        long[] quantities = snapshot.getQuantityBySupplier();
+        long[] values = snapshot.getValueBySupplier();
+        for (int i = 0; i < productCounts.length; i++) {
+            if (productCounts[i] > 0) {
+                suppliers.add(new SupplierTotal(snapshot.getSupplierName(i), productCounts[i],
+                        quantities[i], values[i]));
+            }
+        }
+        return suppliers;
+    }
+
+    /**
+     * Return the snapshot to read the totals of the given generation from, brought up to date, or
+     * null if they are to be computed in SQL: the first time totals are asked for, and until the
+     * products change. Call while holding the snapshot's lock.
+     */
+    private CatalogSnapshot getSnapshot(long generation) {
+        if (mFirstGeneration == -1) {
+            mFirstGeneration = generation;
+        }
+        if (generation == mFirstGeneration && !isSnapshotLoaded()) {
+            return null;
+        }
+        return updateSnapshot();
+    }
+
+    /**
+     * Bring the snapshot up to date: load it the first time, then apply the changes queued since.
+     * Call while holding the snapshot's lock.
+     */
+    private CatalogSnapshot updateSnapshot() {
+        List<Uri> changes = takePendingChanges();
+        if (changes == null) {
+            // Changes are queued from now on, so any made while loading are applied next time
+            try {
+                mSnapshot.load();
+            } catch (RuntimeException ex) {
+                setSnapshotUnloaded();
+                throw ex;
+            }
+            return mSnapshot;
+        }
+        for (Uri change : changes) {
+            if (change == null) {
+                // The whole table changed, so the rest of the changes are in the load too
+                mSnapshot.load();
+                break;
+            }
+            mSnapshot.applyChange(change);
+        }
+        return mSnapshot;
+    }
+
+    /**
+     * Return a single number computed over the products that match the selection.
+     */
+    private long queryLong(String aggregate, String selection) {
+        Cursor cursor = mContentResolver.query(ProductEntry.CONTENT_URI, new String[] { aggregate },
+                selection, null, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Query a list of products.
+     */
+    private List<ProductTotal> queryProducts(Uri uri, String selection, String[] selectionArgs,
+                                             String sortOrder) {
+        List<ProductTotal> products = new ArrayList<>();
+        Cursor cursor = mContentResolver.query(uri, PRODUCT_COLUMNS, selection, selectionArgs, sortOrder);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    products.add(new ProductTotal(cursor.getLong(0), cursor.getString(1), cursor.getInt(2)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return Collections.unmodifiableList(products);
+    }
+
+    private synchronized Object getCached(String key) {
+        return mCache.get(key);
+    }
+
+    private synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache a report, unless the products have changed since it was started.
+     */
+    private synchronized void putCached(String key, Object report, long generation) {
+        if (generation == mGeneration) {
+            mCache.put(key, report);
+        }
+    }
+
+    private synchronized boolean isSnapshotLoaded() {
+        return mSnapshotLoaded;
+    }
+
+    private synchronized void setSnapshotUnloaded() {
+        mSnapshotLoaded = false;
+        mPendingChanges.clear();
+    }
+
+    /**
+     * Return the changes queued for the snapshot, or null if it hasn't been loaded yet, in which
+     * case changes are queued from now on.
+     */
+    private synchronized List<Uri> takePendingChanges() {
+        if (!mSnapshotLoaded) {
+            mSnapshotLoaded = true;
+            return null;
+        }
+        List<Uri> changes = new ArrayList<>(mPendingChanges);
+        mPendingChanges.clear();
+        return changes;
+    }
+
+    /**
+     * Drop the cached reports, and queue the change for the snapshot if it has been loaded.
+     */
+    private synchronized void invalidate(Uri change) {
+        mGeneration++;
+        mCache.clear();
+        if (!mSnapshotLoaded) {
+            return;
+        }
+        if (!mPendingChanges.isEmpty() && mPendingChanges.get(0) == null) {
+            // The whole table is loaded again already
+            return;
+        }
+        if (change == null || mPendingChanges.size() >= MAX_PENDING_CHANGES) {
+            // Whatever was queued before is covered by loading the whole table
+            mPendingChanges.clear();
+            change = null;
+        }
+        mPendingChanges.add(change);
+    }
+}
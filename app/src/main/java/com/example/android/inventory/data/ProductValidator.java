@@ -0,0 +1,88 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentValues;
+import android.text.TextUtils;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.SupplierEntry;
+
+/**
+ * Validation rules for product rows, shared by the content provider and the catalog importer so
+ * that every path into the products table enforces the same constraints.
+ */
+public final class ProductValidator {
+
+    // To prevent someone from accidentally instantiating the validator class,
+    // give it an empty constructor.
+    private ProductValidator() {}
+
+    /**
+     * Check that the given content values describe a complete, valid product. Throws an
+     * {@link IllegalArgumentException} naming the first value that fails.
+     */
+    public static void validateProduct(ContentValues values) {
+        // Check that the name is not null
+        String name = values.getAsString(ProductEntry.COLUMN_PRODUCT_NAME);
+        if (TextUtils.isEmpty(name)) {
+            throw new IllegalArgumentException("Product requires a name");
+        }
+
+        // Check that the price is provided in whole cents, and that it's greater than or equal to 0
+        Long price = Prices.getCents(values);
+        if (price == null || price < 0) {
+            throw new IllegalArgumentException("Product requires valid price");
+        }
+
+        // Check that the quantity is provided, and that it's greater than or equal to 0 kg
+        Integer quantity = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_QUANTITY);
+        if (quantity == null || quantity < 0) {
+            throw new IllegalArgumentException("Product requires valid quantity");
+        }
+
+        // Check that the reorder threshold, which is optional, is greater than or equal to 0
+        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD)) {
+            Integer reorderThreshold = values.getAsInteger(ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD);
+            if (reorderThreshold == null || reorderThreshold < 0) {
+                throw new IllegalArgumentException("Product requires valid reorder threshold");
+            }
+        }
+
+        // Check that the SKU, which is optional, isn't blank
+        if (values.containsKey(ProductEntry.COLUMN_PRODUCT_SKU)) {
+            String sku = values.getAsString(ProductEntry.COLUMN_PRODUCT_SKU);
+            if (sku != null && TextUtils.isEmpty(sku.trim())) {
+                throw new IllegalArgumentException("Product requires valid SKU");
+            }
+        }
+
+        // Check that the supplier name is not null
+        String supplierName = values.getAsString(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME);
+        if (TextUtils.isEmpty(supplierName)) {
+            throw new IllegalArgumentException("Product requires a name");
+        }
+
+        // Check that the supplier phone is not null
+        String supplierPhone = values.getAsString(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE);
+        if (TextUtils.isEmpty(supplierPhone)) {
+            throw new IllegalArgumentException("Product requires a name");
+        }
+    }
+
+    /**
+     * Check that the given content values describe a complete, valid supplier. Throws an
+     * {@link IllegalArgumentException} naming the first value that fails.
+     */
+    public static void validateSupplier(ContentValues values) {
+        // Check that the name is not null
+        String name = values.getAsString(SupplierEntry.COLUMN_SUPPLIER_NAME);
+        if (TextUtils.isEmpty(name)) {
+            throw new IllegalArgumentException("Supplier requires a name");
+        }
+
+        // Check that the phone is not null
+        String phone = values.getAsString(SupplierEntry.COLUMN_SUPPLIER_PHONE);
+        if (TextUtils.isEmpty(phone)) {
+            throw new IllegalArgumentException("Supplier requires a phone");
+        }
+    }
+}
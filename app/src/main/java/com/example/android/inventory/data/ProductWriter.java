@@ -0,0 +1,199 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes to the products provider on a background thread, so that the UI thread never waits on
+ * the database.
+ * <p>
+ * Every writer in the app shares one thread, which runs the writes one at a time in the order
+ * they were submitted. Writes to the same product therefore always land in the order they were
+ * made, and never contend with each other for the database. Each write returns a {@link Future},
+ * and can report its outcome to a {@link Callback} on the main thread.
+ */
+public class ProductWriter {
+
+    /** Runs every write, one at a time. The thread goes away when there is nothing to write. */
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Receives the outcome of a write on the main thread.
+     */
+    public interface Callback<T> {
+        /**
+         * Called once the write has been committed.
+         *
+         * @param result what the provider returned
+         */
+        void onSuccess(T result);
+
+        /**
+         * Called if the provider rejected the write, for example an
+         * {@link IllegalArgumentException} for invalid values.
+         */
+        void onFailure(RuntimeException ex);
+    }
+
+    /**
+     * A write to run on the writer thread.
+     */
+    private interface Write<T> {
+        T run();
+    }
+
+    private final ContentResolver mContentResolver;
+
+    /**
+     * Constructs a new {@link ProductWriter}.
+     *
+     * @param contentResolver used to write to the provider
+     */
+    public ProductWriter(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /**
+     * Insert a row, as {@link ContentResolver#insert} does.
+     *
+     * @param callback notified of the new row's URI, or null
+     */
+    public Future<Uri> insert(final Uri uri, ContentValues values, Callback<Uri> callback) {
+        final ContentValues copy = new ContentValues(values);
+        return submit(new Write<Uri>() {
+            @Override
+            public Uri run() {
+                return mContentResolver.insert(uri, copy);
+            }
+        }, callback);
+    }
+
+    /**
+     * Update rows, as {@link ContentResolver#update} does.
+     *
+     * @param callback notified of the number of rows updated, or null
+     */
+    public Future<Integer> update(final Uri uri, ContentValues values, final String selection,
+                                  final String[] selectionArgs, Callback<Integer> callback) {
+        final ContentValues copy = new ContentValues(values);
+        return submit(new Write<Integer>() {
+            @Override
+            public Integer run() {
+                return mContentResolver.update(uri, copy, selection, selectionArgs);
+            }
+        }, callback);
+    }
+
+    /**
+     * Delete rows, as {@link ContentResolver#delete} does.
+     *
+     * @param callback notified of the number of rows deleted, or null
+     */
+    public Future<Integer> delete(final Uri uri, final String selection, final String[] selectionArgs,
+                                  Callback<Integer> callback) {
+        return submit(new Write<Integer>() {
+            @Override
+            public Integer run() {
+                return mContentResolver.delete(uri, selection, selectionArgs);
+            }
+        }, callback);
+    }
+
+    /**
+     * Call a provider method that writes, such as {@link ProductContract#METHOD_SELL_BATCH}, as
+     * {@link ContentResolver#call} does.
+     *
+     * @param callback notified of the method's result, or null
+     */
+    public Future<Bundle> call(final String method, final String arg, final Bundle extras,
+                               Callback<Bundle> callback) {
+        return submit(new Write<Bundle>() {
+            @Override
+            public Bundle run() {
+                return mContentResolver.call(ProductEntry.CONTENT_URI, method, arg, extras);
+            }
+        }, callback);
+    }
+
+    /**
+     * Apply a batch of operations in one transaction, as {@link ContentResolver#applyBatch} does.
+     * If any operation fails, none of them are applied.
+     *
+     * @param callback notified of the result of each operation, or null
+     */
+    public Future<ContentProviderResult[]> applyBatch(ArrayList<ContentProviderOperation> operations,
+                                                      Callback<ContentProviderResult[]> callback) {
+        final ArrayList<ContentProviderOperation> copy = new ArrayList<>(operations);
+        return submit(new Write<ContentProviderResult[]>() {
+            @Override
+            public ContentProviderResult[] run() {
+                try {
+                    return mContentResolver.applyBatch(ProductContract.CONTENT_AUTHORITY, copy);
+                } catch (OperationApplicationException ex) {
+                    throw new IllegalStateException("Batch of " + copy.size() + " operations failed", ex);
+                } catch (RemoteException ex) {
+                    throw new IllegalStateException("Product provider failed", ex);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Queue the given write behind any others, and post its outcome to the callback.
+     */
+    private static <T> Future<T> submit(final Write<T> write, final Callback<T> callback) {
+        return sExecutor.submit(new Callable<T>() {
+            @Override
+            public T call() {
+                final T result;
+                try {
+                    result = write.run();
+                } catch (final RuntimeException ex) {
+                    if (callback != null) {
+                        sMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onFailure(ex);
+                            }
+                        });
+                    }
+                    throw ex;
+                }
+
+                if (callback != null) {
+                    sMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onSuccess(result);
+                        }
+                    });
+                }
+                return result;
+            }
+        });
+    }
+}
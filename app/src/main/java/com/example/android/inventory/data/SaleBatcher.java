@@ -0,0 +1,158 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+/**
+ * Collects Sale taps and writes them to the provider in batches.
+ * <p>
+ * Each tap only adds to a pending count for its product. The pending sales are flushed with one
+ * {@link ProductContract#METHOD_SELL_BATCH} call, which is one transaction and one change
+ * notification, either {@link #FLUSH_DELAY_MILLIS} after the first unflushed tap or as soon as
+ * {@link #FLUSH_THRESHOLD} taps are pending. Call {@link #flush} when the screen goes away, so
+ * that the sales are written while the process is still running.
+ * <p>
+ * Flushes are written by a {@link ProductWriter}, off the main thread. Sales being written still
+ * count as pending until the write completes.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public class SaleBatcher {
+
+    private static final String LOG_TAG = SaleBatcher.class.getSimpleName();
+
+    /** How long a tap may wait before the pending sales are flushed */
+    public static final long FLUSH_DELAY_MILLIS = 500;
+
+    /** Number of pending taps, across all products, that causes an immediate flush */
+    public static final int FLUSH_THRESHOLD = 20;
+
+    /**
+     * Receives the outcome of each flush.
+     */
+    public interface Listener {
+        /**
+         * Called on the main thread after pending sales have been written.
+         *
+         * @param ids         the products that were sold
+         * @param requested   number of each product that was tapped
+         * @param sold        number of each product actually sold, which is less than requested
+         *                    if stock ran out
+         * @param stockLevels quantity of each product left
+         */
+        void onSalesFlushed(long[] ids, int[] requested, int[] sold, int[] stockLevels);
+    }
+
+    private final ProductWriter mProductWriter;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Pending sale count for each product ID, not counting sales being written
+    private final LongSparseArray<Integer> mPending = new LongSparseArray<>();
+    private int mPendingTotal;
+
+    // Count of sales of each product ID that have been flushed but not yet written
+    private final LongSparseArray<Integer> mWriting = new LongSparseArray<>();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Constructs a new {@link SaleBatcher}.
+     *
+     * @param contentResolver used to write the sales
+     * @param listener        notified after each flush, or null
+     */
+    public SaleBatcher(ContentResolver contentResolver, Listener listener) {
+        mProductWriter = new ProductWriter(contentResolver);
+        mListener = listener;
+    }
+
+    /**
+     * Record one sale of the given product. It is written with the next flush.
+     */
+    public void sell(long id) {
+        mPending.put(id, mPending.get(id, 0) + 1);
+        mPendingTotal++;
+
+        if (mPendingTotal >= FLUSH_THRESHOLD) {
+            flush();
+        } else if (mPendingTotal == 1) {
+            mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Return the number of sales of the given product that have not been written yet.
+     */
+    public int getPending(long id) {
+        return mPending.get(id, 0) + mWriting.get(id, 0);
+    }
+
+    /**
+     * Start writing all pending sales now, in one transaction. This doesn't wait for the write,
+     * which may be queued behind other writes.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (mPendingTotal == 0) {
+            return;
+        }
+
+        int size = mPending.size();
+        final long[] ids = new long[size];
+        final int[] requested = new int[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = mPending.keyAt(i);
+            requested[i] = mPending.valueAt(i);
+        }
+        mPending.clear();
+        mPendingTotal = 0;
+        addWriting(ids, requested, 1);
+
+        Bundle extras = new Bundle();
+        extras.putLongArray(ProductContract.EXTRA_PRODUCT_IDS, ids);
+        extras.putIntArray(ProductContract.EXTRA_SALE_QUANTITIES, requested);
+
+        mProductWriter.call(ProductContract.METHOD_SELL_BATCH, null, extras, new ProductWriter.Callback<Bundle>() {
+            @Override
+            public void onSuccess(Bundle result) {
+                addWriting(ids, requested, -1);
+                if (result != null && mListener != null) {
+                    mListener.onSalesFlushed(ids, requested,
+                            result.getIntArray(ProductContract.EXTRA_SOLD_QUANTITIES),
+                            result.getIntArray(ProductContract.EXTRA_STOCK_LEVELS));
+                }
+            }
+
+            @Override
+            public void onFailure(RuntimeException ex) {
+                addWriting(ids, requested, -1);
+                Log.e(LOG_TAG, "There was a problem recording " + ids.length + " product sales", ex);
+            }
+        });
+    }
+
+    /**
+     * Add the given sales to the counts being written, or take them away again when the
+     * direction is -1.
+     */
+    private void addWriting(long[] ids, int[] quantities, int direction) {
+        for (int i = 0; i < ids.length; i++) {
+            int writing = mWriting.get(ids[i], 0) + direction * quantities[i];
+            if (writing == 0) {
+                mWriting.remove(ids[i]);
+            } else {
+                mWriting.put(ids[i], writing);
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.StockCounterEntry;
+import com.example.android.inventory.data.ProductContract.StockMovementEntry;
+import com.example.android.inventory.data.ProductContract.StockSnapshotEntry;
+
+/**
+ * Records stock movements, and the snapshots that checkpoint them, alongside the writes that
+ * change product quantities.
+ * <p>
+ * Use a ledger inside the same transaction as the quantity change it records, so that the
+ * quantity column is always the sum of the product's movements, and close it when done. All of
+ * the movements one ledger records share one timestamp.
+ * <p>
+ * The database adds every movement to this device's {@link StockCounterEntry}. Counters from
+ * other devices are merged with {@link #mergeCounter}, which records the stock they add up to as
+ * a {@link StockMovementEntry#TYPE_MERGE} movement.
+ */
+public class StockLedger {
+
+    private static final String SQL_INSERT_MOVEMENT =
+            "INSERT INTO " + StockMovementEntry.TABLE_NAME + " (" +
+                    StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID + ", " +
+                    StockMovementEntry.COLUMN_MOVEMENT_TYPE + ", " +
+                    StockMovementEntry.COLUMN_MOVEMENT_QUANTITY + ", " +
+                    StockMovementEntry.COLUMN_MOVEMENT_TIMESTAMP + ") VALUES (?, ?, ?, ?)";
+
+    /** Records the difference between a new quantity and each selected product's current one */
+    private static final String SQL_INSERT_ADJUSTMENTS =
+            "INSERT INTO " + StockMovementEntry.TABLE_NAME + " (" +
+                    StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID + ", " +
+                    StockMovementEntry.COLUMN_MOVEMENT_TYPE + ", " +
+                    StockMovementEntry.COLUMN_MOVEMENT_QUANTITY + ", " +
+                    StockMovementEntry.COLUMN_MOVEMENT_TIMESTAMP + ") SELECT " +
+                    ProductEntry._ID + ", " + StockMovementEntry.TYPE_ADJUSTMENT + ", ? - " +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + ", ? FROM " + ProductEntry.TABLE_NAME +
+                    " WHERE " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " != ?";
+
+    // A bare MAX() is answered from the end of the index, where older SQLite versions scan the
+    // whole table for MAX() inside another function. An empty table gives NULL, which is read
+    // as 0.
+    private static final String SQL_LAST_MOVEMENT =
+            "SELECT MAX(" + StockMovementEntry._ID + ") FROM " + StockMovementEntry.TABLE_NAME;
+
+    private static final String SQL_LAST_CHECKPOINT =
+            "SELECT MAX(" + StockSnapshotEntry.COLUMN_SNAPSHOT_MOVEMENT_ID + ") FROM " +
+                    StockSnapshotEntry.TABLE_NAME;
+
+    /** Snapshots the current quantity of every product that has moved since a given movement */
+    private static final String SQL_CHECKPOINT =
+            "INSERT INTO " + StockSnapshotEntry.TABLE_NAME + " (" +
+                    StockSnapshotEntry.COLUMN_SNAPSHOT_PRODUCT_ID + ", " +
+                    StockSnapshotEntry.COLUMN_SNAPSHOT_MOVEMENT_ID + ", " +
+                    StockSnapshotEntry.COLUMN_SNAPSHOT_TIMESTAMP + ", " +
+                    StockSnapshotEntry.COLUMN_SNAPSHOT_QUANTITY + ") SELECT m." +
+                    StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID + ", MAX(m." +
+                    StockMovementEntry._ID + "), MAX(m." +
+                    StockMovementEntry.COLUMN_MOVEMENT_TIMESTAMP + "), p." +
+                    ProductEntry.COLUMN_PRODUCT_QUANTITY + " FROM " +
+                    StockMovementEntry.TABLE_NAME + " m JOIN " + ProductEntry.TABLE_NAME + " p ON p." +
+                    ProductEntry._ID + " = m." + StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID +
+                    " WHERE m." + StockMovementEntry._ID + " > ? GROUP BY m." +
+                    StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID;
+
+    /** Finds a product's last snapshot at or before a given time */
+    private static final String SQL_FIND_SNAPSHOT =
+            "SELECT " + StockSnapshotEntry.COLUMN_SNAPSHOT_MOVEMENT_ID + ", " +
+                    StockSnapshotEntry.COLUMN_SNAPSHOT_QUANTITY + " FROM " + StockSnapshotEntry.TABLE_NAME +
+                    " WHERE " + StockSnapshotEntry.COLUMN_SNAPSHOT_PRODUCT_ID + " = ? AND " +
+                    StockSnapshotEntry.COLUMN_SNAPSHOT_TIMESTAMP + " <= ? ORDER BY " +
+                    StockSnapshotEntry.COLUMN_SNAPSHOT_TIMESTAMP + " DESC, " +
+                    StockSnapshotEntry.COLUMN_SNAPSHOT_MOVEMENT_ID + " DESC LIMIT 1";
+
+    /** Finds the movement ID of a product's next snapshot after a given movement, or -1 */
+    private static final String SQL_FIND_NEXT_SNAPSHOT =
+            "SELECT IFNULL(MIN(" + StockSnapshotEntry.COLUMN_SNAPSHOT_MOVEMENT_ID + "), -1) FROM " +
+                    StockSnapshotEntry.TABLE_NAME + " WHERE " +
+                    StockSnapshotEntry.COLUMN_SNAPSHOT_PRODUCT_ID + " = ? AND " +
+                    StockSnapshotEntry.COLUMN_SNAPSHOT_MOVEMENT_ID + " > ?";
+
+    /** Sums a product's movements in a range of movement IDs, up to a given time */
+    private static final String SQL_REPLAY =
+            "SELECT IFNULL(SUM(" + StockMovementEntry.COLUMN_MOVEMENT_QUANTITY + "), 0) FROM " +
+                    StockMovementEntry.TABLE_NAME + " WHERE " +
+                    StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID + " = ? AND " +
+                    StockMovementEntry._ID + " > ? AND " +
+                    StockMovementEntry._ID + " <= ? AND " +
+                    StockMovementEntry.COLUMN_MOVEMENT_TIMESTAMP + " <= ?";
+
+    /** Counter selection for one product and device */
+    private static final String COUNTER_SELECTION =
+            StockCounterEntry.COLUMN_COUNTER_PRODUCT_ID + " = ? AND " +
+                    StockCounterEntry.COLUMN_COUNTER_DEVICE_ID + " = ?";
+
+    private static final String[] COUNTER_PROJECTION = new String[] {
+            StockCounterEntry.COLUMN_COUNTER_INCREMENTS,
+            StockCounterEntry.COLUMN_COUNTER_DECREMENTS,
+    };
+
+    private final SQLiteDatabase mDatabase;
+    private final long mTimestamp;
+
+    // Compiled the first time a movement is recorded
+    private SQLiteStatement mInsertMovement;
+
+    /**
+     * Constructs a new {@link StockLedger} that records movements at the current time.
+     *
+     * @param database the writable database, which must be in a transaction whenever the ledger
+     *                 is used
+     */
+    public StockLedger(SQLiteDatabase database) {
+        mDatabase = database;
+        mTimestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Record one movement of a product's stock.
+     *
+     * @param productId the product's {@link ProductEntry#_ID}
+     * @param type      one of the {@link StockMovementEntry} types
+     * @param quantity  the change in the product's quantity
+     */
+    public void record(long productId, int type, long quantity) {
+        if (mInsertMovement == null) {
+            mInsertMovement = mDatabase.compileStatement(SQL_INSERT_MOVEMENT);
+        }
+        mInsertMovement.bindLong(1, productId);
+        mInsertMovement.bindLong(2, type);
+        mInsertMovement.bindLong(3, quantity);
+        mInsertMovement.bindLong(4, mTimestamp);
+        mInsertMovement.executeInsert();
+    }
+
+    /**
+     * Record an adjustment for each selected product whose quantity is about to be set to the
+     * given one. Call this before the products are updated.
+     *
+     * @param quantity      the new quantity
+     * @param selection     the products being updated, or null for all of them
+     * @param selectionArgs arguments of the selection
+     */
+    public void recordAdjustments(long quantity, String selection, String[] selectionArgs) {
+        String sql = SQL_INSERT_ADJUSTMENTS;
+        if (!TextUtils.isEmpty(selection)) {
+            sql += " AND (" + selection + ")";
+        }
+        int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+        Object[] bindArgs = new Object[3 + argCount];
+        bindArgs[0] = quantity;
+        bindArgs[1] = mTimestamp;
+        bindArgs[2] = quantity;
+        if (argCount != 0) {
+            System.arraycopy(selectionArgs, 0, bindArgs, 3, argCount);
+        }
+        mDatabase.execSQL(sql, bindArgs);
+    }
+
+    /**
+     * Merge a copy of a device's counter for a product into the product's counter for that
+     * device, keeping the larger of each count, and record the change in stock that follows as a
+     * {@link StockMovementEntry#TYPE_MERGE} movement. Merging the same counter again, or an older
+     * copy of it, changes nothing. Call this before the product's quantity is changed by the
+     * returned amount.
+     *
+     * @param productId  the product's {@link ProductEntry#_ID}
+     * @param deviceId   the device's {@link StockCounterEntry#COLUMN_COUNTER_DEVICE_ID}
+     * @param increments the device's increments in the copy
+     * @param decrements the device's decrements in the copy
+     * @return the change in the product's quantity
+     */
+    public long mergeCounter(long productId, String deviceId, long increments, long decrements) {
+        String[] selectionArgs = new String[] { String.valueOf(productId), deviceId };
+        boolean exists;
+        long oldIncrements = 0;
+        long oldDecrements = 0;
+        Cursor cursor = mDatabase.query(StockCounterEntry.TABLE_NAME, COUNTER_PROJECTION,
+                COUNTER_SELECTION, selectionArgs, null, null, null);
+        try {
+            exists = cursor.moveToFirst();
+            if (exists) {
+                oldIncrements = cursor.getLong(0);
+                oldDecrements = cursor.getLong(1);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        long newIncrements = Math.max(oldIncrements, increments);
+        long newDecrements = Math.max(oldDecrements, decrements);
+        if (newIncrements == oldIncrements && newDecrements == oldDecrements) {
+            return 0;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(StockCounterEntry.COLUMN_COUNTER_INCREMENTS, newIncrements);
+        values.put(StockCounterEntry.COLUMN_COUNTER_DECREMENTS, newDecrements);
+        if (exists) {
+            mDatabase.update(StockCounterEntry.TABLE_NAME, values, COUNTER_SELECTION, selectionArgs);
+        } else {
+            values.put(StockCounterEntry.COLUMN_COUNTER_PRODUCT_ID, productId);
+            values.put(StockCounterEntry.COLUMN_COUNTER_DEVICE_ID, deviceId);
+            mDatabase.insertOrThrow(StockCounterEntry.TABLE_NAME, null, values);
+        }
+
+        long change = (newIncrements - oldIncrements) - (newDecrements - oldDecrements);
+        if (change != 0) {
+            record(productId, StockMovementEntry.TYPE_MERGE, change);
+        }
+        return change;
+    }
+
+    /**
+     * Take a checkpoint if {@link StockMovementEntry#CHECKPOINT_INTERVAL} movements have been
+     * recorded since the last one. Call this after recording movements.
+     *
+     * @return the number of snapshots taken
+     */
+    public int checkpointIfDue() {
+        long lastMovement = DatabaseUtils.longForQuery(mDatabase, SQL_LAST_MOVEMENT, null);
+        long lastCheckpoint = DatabaseUtils.longForQuery(mDatabase, SQL_LAST_CHECKPOINT, null);
+        if (lastMovement - lastCheckpoint < StockMovementEntry.CHECKPOINT_INTERVAL) {
+            return 0;
+        }
+        return checkpoint(lastCheckpoint);
+    }
+
+    /**
+     * Snapshot the quantity of every product that has moved since the last checkpoint.
+     *
+     * @return the number of snapshots taken
+     */
+    public int checkpoint() {
+        return checkpoint(DatabaseUtils.longForQuery(mDatabase, SQL_LAST_CHECKPOINT, null));
+    }
+
+    private int checkpoint(long lastCheckpoint) {
+        SQLiteStatement statement = mDatabase.compileStatement(SQL_CHECKPOINT);
+        try {
+            statement.bindLong(1, lastCheckpoint);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Release the ledger's compiled statements.
+     */
+    public void close() {
+        if (mInsertMovement != null) {
+            mInsertMovement.close();
+        }
+    }
+
+    /**
+     * Return how much of a product was in stock at the given time: its last snapshot at or
+     * before then, plus the movements recorded after the snapshot up to then. The replay stops
+     * at the next snapshot, so a movement with a skewed timestamp after it isn't counted.
+     *
+     * @param database  the database to read
+     * @param productId the product's {@link ProductEntry#_ID}
+     * @param timestamp the time, in milliseconds since the epoch
+     */
+    public static long getStockAt(SQLiteDatabase database, long productId, long timestamp) {
+        String id = String.valueOf(productId);
+        String time = String.valueOf(timestamp);
+
+        long movementId = 0;
+        long quantity = 0;
+        Cursor cursor = database.rawQuery(SQL_FIND_SNAPSHOT, new String[] { id, time });
+        try {
+            if (cursor.moveToFirst()) {
+                movementId = cursor.getLong(0);
+                quantity = cursor.getLong(1);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        long nextMovementId = DatabaseUtils.longForQuery(database, SQL_FIND_NEXT_SNAPSHOT,
+                new String[] { id, String.valueOf(movementId) });
+        if (nextMovementId < 0) {
+            nextMovementId = Long.MAX_VALUE;
+        }
+
+        return quantity + DatabaseUtils.longForQuery(database, SQL_REPLAY,
+                new String[] { id, String.valueOf(movementId), String.valueOf(nextMovementId), time });
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.android.inventory.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends JSON requests to the sync server over HTTP.
+ * <p>
+ * Request bodies are gzipped, and gzipped responses are accepted, since batches of products
+ * compress well. A request that fails because of the network, or because the server is busy or
+ * down, is retried a few times with exponential backoff. Other failures, like a request the
+ * server rejects or a response that isn't JSON, are not retried.
+ */
+class SyncClient {
+
+    private static final String LOG_TAG = SyncClient.class.getSimpleName();
+
+    /** Number of times a request is tried before its failure is passed on */
+    private static final int MAX_ATTEMPTS = 4;
+
+    /** Wait before the first retry, which doubles with each retry after it */
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * Thrown when the server answers with a status other than success.
+     */
+    static class HttpStatusException extends IOException {
+        final int mStatus;
+
+        HttpStatusException(int status, String request) {
+            super("HTTP " + status + " for " + request);
+            mStatus = status;
+        }
+    }
+
+    private final String mBaseUrl;
+
+    /**
+     * Constructs a new {@link SyncClient}.
+     *
+     * @param baseUrl URL of the sync server, which request paths are appended to
+     */
+    SyncClient(String baseUrl) {
+        mBaseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    /**
+     * Fetch the JSON object at the given path.
+     */
+    JSONObject get(String path) throws IOException {
+        return execute("GET", path, null);
+    }
+
+    /**
+     * Send the given JSON object to the given path, and return the server's answer.
+     */
+    JSONObject post(String path, JSONObject body) throws IOException {
+        return execute("POST", path, gzip(body.toString()));
+    }
+
+    /**
+     * Run a request, retrying it if it fails in a way that may pass.
+     */
+    private JSONObject execute(String method, String path, byte[] body) throws IOException {
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return executeOnce(method, path, body);
+            } catch (IOException ex) {
+                if (attempt == MAX_ATTEMPTS || !isRetryable(ex)) {
+                    throw ex;
+                }
+                Log.w(LOG_TAG, method + " " + path + " failed, retrying in " + backoff + " ms", ex);
+                SystemClock.sleep(backoff);
+                backoff *= 2;
+            }
+        }
+    }
+
+    private JSONObject executeOnce(String method, String path, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mBaseUrl + path).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setRequestMethod(method);
+            connection.setRequestProperty("Accept", "application/json");
+            // Asking for gzip explicitly means the response has to be unzipped here too
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setFixedLengthStreamingMode(body.length);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+
+            int status = connection.getResponseCode();
+            if (status < 200 || status >= 300) {
+                throw new HttpStatusException(status, method + " " + path);
+            }
+
+            InputStream in = connection.getInputStream();
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                in = new GZIPInputStream(in);
+            }
+            String response;
+            try {
+                response = readFully(in);
+            } finally {
+                in.close();
+            }
+
+            try {
+                return response.isEmpty() ? new JSONObject() : new JSONObject(response);
+            } catch (JSONException ex) {
+                throw new ProtocolException("Invalid response to " + method + " " + path + ": " + ex.getMessage());
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Return whether a request that failed with the given exception is worth trying again:
+     * network failures, timeouts, and the statuses a busy or restarting server answers with.
+     */
+    private static boolean isRetryable(IOException ex) {
+        if (ex instanceof HttpStatusException) {
+            int status = ((HttpStatusException) ex).mStatus;
+            return status >= 500 || status == 408 || status == 429;
+        }
+        return !(ex instanceof ProtocolException);
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        try {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,437 @@
+package com.example.android.inventory.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.example.android.inventory.R;
+import com.example.android.inventory.data.ProductContract;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.StockCounterEntry;
+import com.example.android.inventory.data.ProductContract.TombstoneEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Syncs products with the sync server, sending and receiving only the products changed since
+ * the last sync.
+ * <p>
+ * Pushing sends the products, and the tombstones of deleted products, whose
+ * {@link ProductEntry#COLUMN_PRODUCT_VERSION} is above the latest version already pushed, in
+ * version order and in batches. Pulling asks the server for the changes after the position it
+ * returned last time, and applies each batch with {@link ProductContract#METHOD_APPLY_SYNC}.
+ * <p>
+ * Both watermarks are saved after every batch, so a sync that fails part way resumes from the
+ * last batch that made it, rather than from the start. A batch that is sent twice because its
+ * watermark wasn't saved is harmless, since every change carries the whole product.
+ * <p>
+ * Quantities aren't synced as such. Instead each changed product carries this device's
+ * {@link StockCounterEntry} for it, and the opening counter, which are the only counters that
+ * change here other than by merging. The server merges them into its own, and sends back the
+ * counters of every device, which are merged here the same way, so sales made on several devices
+ * at once all count.
+ * <p>
+ * The server's API is:
+ * <ul>
+ * <li>{@code POST /changes} with {@code {"device", "products": [...], "deleted": [{"syncId",
+ * "deletedAt"}]}} records the changes made on a device. The server keeps the larger of each
+ * count when it merges a counter.</li>
+ * <li>{@code GET /changes?since=&limit=&device=} answers {@code {"products": [...], "deleted":
+ * [{"syncId"}], "next", "more"}}, the changes after the position {@code since} made on other
+ * devices, the position to ask from next, and whether there are more changes after it.</li>
+ * </ul>
+ * Each product is a JSON object keyed by its {@link ProductEntry} column names, with its
+ * counters in {@code "counters": [{"deviceId", "increments", "decrements"}]}.
+ */
+public class SyncEngine {
+
+    private static final String LOG_TAG = SyncEngine.class.getSimpleName();
+
+    private static final String PATH_CHANGES = "/changes";
+
+    /** Preferences that hold both watermarks */
+    private static final String PREFS_NAME = "sync";
+    private static final String PREF_PUSHED_VERSION = "pushedVersion";
+    private static final String PREF_PULL_POSITION = "pullPosition";
+
+    private static final String KEY_DEVICE = "device";
+    private static final String KEY_PRODUCTS = "products";
+    private static final String KEY_DELETED = "deleted";
+    private static final String KEY_NEXT = "next";
+    private static final String KEY_MORE = "more";
+    private static final String KEY_COUNTERS = "counters";
+
+    /** Key that holds a change's version until the batch is trimmed */
+    private static final String KEY_VERSION = "version";
+
+    /** Columns of a product that are synced, besides its version */
+    private static final String[] SYNCED_COLUMNS = new String[] {
+            ProductEntry.COLUMN_PRODUCT_SYNC_ID,
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE,
+            ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD,
+            ProductEntry.COLUMN_PRODUCT_SKU,
+            ProductEntry.COLUMN_PRODUCT_UPDATED_AT,
+    };
+
+    // The ID goes first, to find the product's counters, and is taken out again before pushing
+    private static final String[] PRODUCT_PROJECTION;
+
+    static {
+        PRODUCT_PROJECTION = new String[SYNCED_COLUMNS.length + 2];
+        PRODUCT_PROJECTION[0] = ProductEntry._ID;
+        System.arraycopy(SYNCED_COLUMNS, 0, PRODUCT_PROJECTION, 1, SYNCED_COLUMNS.length);
+        PRODUCT_PROJECTION[SYNCED_COLUMNS.length + 1] = ProductEntry.COLUMN_PRODUCT_VERSION;
+    }
+
+    private static final String[] COUNTER_PROJECTION = new String[] {
+            StockCounterEntry.COLUMN_COUNTER_PRODUCT_ID,
+            StockCounterEntry.COLUMN_COUNTER_DEVICE_ID,
+            StockCounterEntry.COLUMN_COUNTER_INCREMENTS,
+            StockCounterEntry.COLUMN_COUNTER_DECREMENTS,
+    };
+
+    private static final String[] TOMBSTONE_PROJECTION = new String[] {
+            TombstoneEntry.COLUMN_TOMBSTONE_SYNC_ID,
+            TombstoneEntry.COLUMN_TOMBSTONE_DELETED_AT,
+            TombstoneEntry.COLUMN_TOMBSTONE_VERSION,
+    };
+
+    /** Changes between two versions, which the version indexes on both tables serve */
+    private static final String VERSION_RANGE_SELECTION = "version > ? AND version <= ?";
+
+    private final ContentResolver mContentResolver;
+    private final SharedPreferences mPreferences;
+    private final SyncClient mClient;
+    private final int mBatchSize;
+
+    // Read at the start of each sync
+    private String mDeviceId;
+
+    /**
+     * Constructs a new {@link SyncEngine}.
+     *
+     * @param context   used to reach the products and the sync preferences
+     * @param serverUrl URL of the sync server
+     */
+    public SyncEngine(Context context, String serverUrl) {
+        mContentResolver = context.getContentResolver();
+        mPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mClient = new SyncClient(serverUrl);
+        mBatchSize = context.getResources().getInteger(R.integer.sync_batch_size);
+    }
+
+    /**
+     * Push the local changes, then pull everyone else's. Throws an {@link IOException} if the
+     * server can't be reached or answers with something unexpected, in which case the next sync
+     * picks up where this one stopped.
+     */
+    public void sync() throws IOException {
+        Bundle result = mContentResolver.call(ProductEntry.CONTENT_URI,
+                ProductContract.METHOD_GET_VERSION, null, null);
+        if (result == null) {
+            throw new IOException("Cannot read the product version");
+        }
+        mDeviceId = result.getString(ProductContract.EXTRA_DEVICE_ID);
+
+        int pushed = push(result.getLong(ProductContract.EXTRA_VERSION));
+        int pulled = pull();
+        Log.i(LOG_TAG, "Pushed " + pushed + " and pulled " + pulled + " product changes");
+    }
+
+    /**
+     * Send the products changed since the last push, and the tombstones of products deleted
+     * since then, up to the given version, to the server. Return the number of changes sent.
+     */
+    private int push(long target) throws IOException {
+        long pushedVersion = mPreferences.getLong(PREF_PUSHED_VERSION, 0);
+        if (pushedVersion > target) {
+            // The database was recreated, so every product is new
+            pushedVersion = 0;
+        }
+
+        Uri productsUri = withLimit(ProductEntry.CONTENT_URI);
+        Uri tombstonesUri = withLimit(TombstoneEntry.CONTENT_URI);
+        int count = 0;
+        while (pushedVersion < target) {
+            String[] range = new String[] { String.valueOf(pushedVersion), String.valueOf(target) };
+            List<JSONObject> products = new ArrayList<>();
+            long productsEnd = queryChanges(productsUri, PRODUCT_PROJECTION, range, products);
+            List<JSONObject> deleted = new ArrayList<>();
+            long deletedEnd = queryChanges(tombstonesUri, TOMBSTONE_PROJECTION, range, deleted);
+
+            // A full batch may have left changes out after its last version, so the batch only
+            // runs to the earlier of the two last versions, and to the target if neither is full
+            long batchEnd = Math.min(productsEnd, deletedEnd);
+            if (batchEnd == Long.MAX_VALUE) {
+                batchEnd = target;
+            }
+            removeAfter(products, batchEnd);
+            removeAfter(deleted, batchEnd);
+
+            if (!products.isEmpty() || !deleted.isEmpty()) {
+                try {
+                    addCounters(products);
+                    JSONObject body = new JSONObject();
+                    body.put(KEY_DEVICE, mDeviceId);
+                    body.put(KEY_PRODUCTS, new JSONArray(products));
+                    body.put(KEY_DELETED, new JSONArray(deleted));
+                    mClient.post(PATH_CHANGES, body);
+                } catch (JSONException ex) {
+                    throw new ProtocolException("Invalid product change: " + ex.getMessage());
+                }
+                count += products.size() + deleted.size();
+            }
+
+            pushedVersion = batchEnd;
+            mPreferences.edit().putLong(PREF_PUSHED_VERSION, pushedVersion).apply();
+        }
+
+        // The server has every deletion up to the watermark, so their tombstones can go
+        mContentResolver.delete(TombstoneEntry.CONTENT_URI,
+                TombstoneEntry.COLUMN_TOMBSTONE_VERSION + " <= ?",
+                new String[] { String.valueOf(pushedVersion) });
+        return count;
+    }
+
+    /**
+     * Fetch the changes made on other devices since the last pull, and apply them. Return the
+     * number of changes received.
+     */
+    private int pull() throws IOException {
+        String position = mPreferences.getString(PREF_PULL_POSITION, "");
+        int count = 0;
+        boolean more = true;
+        while (more) {
+            String path = PATH_CHANGES + "?since=" + Uri.encode(position) + "&limit=" + mBatchSize +
+                    "&device=" + Uri.encode(mDeviceId);
+            JSONObject response = mClient.get(path);
+
+            Bundle extras = new Bundle();
+            try {
+                JSONArray products = response.optJSONArray(KEY_PRODUCTS);
+                ContentValues[] values = new ContentValues[products == null ? 0 : products.length()];
+                List<ContentValues> counters = new ArrayList<>();
+                for (int i = 0; i < values.length; i++) {
+                    JSONObject product = products.getJSONObject(i);
+                    values[i] = toContentValues(product);
+                    addCounterValues(product, counters);
+                }
+                JSONArray deleted = response.optJSONArray(KEY_DELETED);
+                String[] syncIds = new String[deleted == null ? 0 : deleted.length()];
+                for (int i = 0; i < syncIds.length; i++) {
+                    syncIds[i] = deleted.getJSONObject(i).getString(TombstoneEntry.COLUMN_TOMBSTONE_SYNC_ID);
+                }
+                extras.putParcelableArray(ProductContract.EXTRA_SYNC_PRODUCTS, values);
+                extras.putParcelableArray(ProductContract.EXTRA_SYNC_COUNTERS,
+                        counters.toArray(new ContentValues[counters.size()]));
+                extras.putStringArray(ProductContract.EXTRA_SYNC_DELETED, syncIds);
+                position = response.getString(KEY_NEXT);
+                more = response.optBoolean(KEY_MORE);
+                count += values.length + syncIds.length;
+            } catch (JSONException ex) {
+                throw new ProtocolException("Invalid changes from server: " + ex.getMessage());
+            }
+
+            Bundle result;
+            try {
+                result = mContentResolver.call(ProductEntry.CONTENT_URI,
+                        ProductContract.METHOD_APPLY_SYNC, null, extras);
+            } catch (IllegalArgumentException ex) {
+                throw new ProtocolException("Invalid changes from server: " + ex.getMessage());
+            } catch (SQLiteException ex) {
+                // The pull position isn't saved, so the next sync tries these changes again
+                throw new IOException("Cannot apply changes from server", ex);
+            }
+
+            SharedPreferences.Editor editor = mPreferences.edit();
+            editor.putString(PREF_PULL_POSITION, position);
+            if (result != null && result.getLong(ProductContract.EXTRA_VERSION_BEFORE) ==
+                    mPreferences.getLong(PREF_PUSHED_VERSION, 0)) {
+                // Nothing was left to push, so the versions the pulled changes took don't need
+                // pushing back to the server either
+                editor.putLong(PREF_PUSHED_VERSION, result.getLong(ProductContract.EXTRA_VERSION));
+            }
+            editor.apply();
+        }
+        return count;
+    }
+
+    /**
+     * Add the changes between the given versions, in version order and up to a batch of them, to
+     * the given list. Return the version of the last change if the batch is full, in which case
+     * there may be more after it, and otherwise {@link Long#MAX_VALUE}.
+     */
+    private long queryChanges(Uri uri, String[] projection, String[] range, List<JSONObject> changes)
+            throws IOException {
+        Cursor cursor = mContentResolver.query(uri, projection, VERSION_RANGE_SELECTION, range,
+                "version ASC");
+        if (cursor == null) {
+            throw new IOException("Cannot query " + uri);
+        }
+        try {
+            int versionColumnIndex = projection.length - 1;
+            long lastVersion = 0;
+            while (cursor.moveToNext()) {
+                JSONObject change = new JSONObject();
+                // The version goes last, and is only used to order the batch
+                for (int i = 0; i < versionColumnIndex; i++) {
+                    change.put(projection[i], toJsonValue(cursor, i));
+                }
+                lastVersion = cursor.getLong(versionColumnIndex);
+                change.put(KEY_VERSION, lastVersion);
+                changes.add(change);
+            }
+            return changes.size() < mBatchSize ? Long.MAX_VALUE : lastVersion;
+        } catch (JSONException ex) {
+            throw new ProtocolException("Invalid product change: " + ex.getMessage());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Remove the changes after the given version from the list, and the version from the rest.
+     */
+    private static void removeAfter(List<JSONObject> changes, long version) {
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            JSONObject change = changes.get(i);
+            if (change.optLong(KEY_VERSION) > version) {
+                changes.remove(i);
+            } else {
+                change.remove(KEY_VERSION);
+            }
+        }
+    }
+
+    /**
+     * Add this device's counter and the opening counter of each of the given products to it, in
+     * place of the product's ID.
+     */
+    private void addCounters(List<JSONObject> products) throws IOException, JSONException {
+        LongSparseArray<JSONArray> counters = new LongSparseArray<>();
+        StringBuilder selection = new StringBuilder(StockCounterEntry.COLUMN_COUNTER_DEVICE_ID +
+                " IN (?, ?) AND " + StockCounterEntry.COLUMN_COUNTER_PRODUCT_ID + " IN (");
+        String[] selectionArgs = new String[products.size() + 2];
+        selectionArgs[0] = mDeviceId;
+        selectionArgs[1] = StockCounterEntry.DEVICE_OPENING;
+        for (int i = 0; i < products.size(); i++) {
+            JSONObject product = products.get(i);
+            long id = product.getLong(ProductEntry._ID);
+            product.remove(ProductEntry._ID);
+            JSONArray productCounters = new JSONArray();
+            product.put(KEY_COUNTERS, productCounters);
+            counters.put(id, productCounters);
+
+            selection.append(i == 0 ? "?" : ", ?");
+            selectionArgs[i + 2] = String.valueOf(id);
+        }
+        selection.append(")");
+
+        Cursor cursor = mContentResolver.query(StockCounterEntry.CONTENT_URI, COUNTER_PROJECTION,
+                selection.toString(), selectionArgs, null);
+        if (cursor == null) {
+            throw new IOException("Cannot query " + StockCounterEntry.CONTENT_URI);
+        }
+        try {
+            while (cursor.moveToNext()) {
+                JSONObject counter = new JSONObject();
+                counter.put(StockCounterEntry.COLUMN_COUNTER_DEVICE_ID, cursor.getString(1));
+                counter.put(StockCounterEntry.COLUMN_COUNTER_INCREMENTS, cursor.getLong(2));
+                counter.put(StockCounterEntry.COLUMN_COUNTER_DECREMENTS, cursor.getLong(3));
+                counters.get(cursor.getLong(0)).put(counter);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Add the counters of a product received from the server to the given list, as
+     * {@link ProductContract#METHOD_APPLY_SYNC} takes them.
+     */
+    private static void addCounterValues(JSONObject product, List<ContentValues> counters)
+            throws JSONException {
+        JSONArray productCounters = product.optJSONArray(KEY_COUNTERS);
+        if (productCounters == null) {
+            return;
+        }
+        String syncId = product.getString(ProductEntry.COLUMN_PRODUCT_SYNC_ID);
+        for (int i = 0; i < productCounters.length(); i++) {
+            JSONObject counter = productCounters.getJSONObject(i);
+            ContentValues values = new ContentValues();
+            values.put(ProductEntry.COLUMN_PRODUCT_SYNC_ID, syncId);
+            values.put(StockCounterEntry.COLUMN_COUNTER_DEVICE_ID,
+                    counter.getString(StockCounterEntry.COLUMN_COUNTER_DEVICE_ID));
+            values.put(StockCounterEntry.COLUMN_COUNTER_INCREMENTS,
+                    counter.getLong(StockCounterEntry.COLUMN_COUNTER_INCREMENTS));
+            values.put(StockCounterEntry.COLUMN_COUNTER_DECREMENTS,
+                    counter.getLong(StockCounterEntry.COLUMN_COUNTER_DECREMENTS));
+            counters.add(values);
+        }
+    }
+
+    /**
+     * Return the value of the given cursor column as it is sent to the server.
+     */
+    private static Object toJsonValue(Cursor cursor, int columnIndex) {
+        switch (cursor.getType(columnIndex)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return JSONObject.NULL;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(columnIndex);
+            default:
+                return cursor.getString(columnIndex);
+        }
+    }
+
+    /**
+     * Return the content values of a product received from the server, as
+     * {@link ProductContract#METHOD_APPLY_SYNC} takes them.
+     */
+    private static ContentValues toContentValues(JSONObject product) throws JSONException {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_SYNC_ID, product.getString(ProductEntry.COLUMN_PRODUCT_SYNC_ID));
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, product.getString(ProductEntry.COLUMN_PRODUCT_NAME));
+        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, product.getLong(ProductEntry.COLUMN_PRODUCT_PRICE));
+        values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME,
+                product.getString(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME));
+        values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE,
+                product.getString(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE));
+        values.put(ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD,
+                product.optInt(ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD));
+        if (product.isNull(ProductEntry.COLUMN_PRODUCT_SKU)) {
+            values.putNull(ProductEntry.COLUMN_PRODUCT_SKU);
+        } else {
+            values.put(ProductEntry.COLUMN_PRODUCT_SKU, product.getString(ProductEntry.COLUMN_PRODUCT_SKU));
+        }
+        // Keep the time the change was made on the device it came from
+        values.put(ProductEntry.COLUMN_PRODUCT_UPDATED_AT, product.getLong(ProductEntry.COLUMN_PRODUCT_UPDATED_AT));
+        return values;
+    }
+
+    /**
+     * Return the given URI limited to one batch of rows.
+     */
+    private Uri withLimit(Uri uri) {
+        return uri.buildUpon()
+                .appendQueryParameter(ProductContract.QUERY_PARAMETER_LIMIT, String.valueOf(mBatchSize))
+                .build();
+    }
+}
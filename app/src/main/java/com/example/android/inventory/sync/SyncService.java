@@ -0,0 +1,71 @@
+package com.example.android.inventory.sync;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v4.app.JobIntentService;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.inventory.R;
+
+import java.io.IOException;
+
+/**
+ * Runs a {@link SyncEngine} sync in the background about once an hour, from an alarm set by
+ * {@link #schedule}. Sync is off while no server is configured.
+ */
+public class SyncService extends JobIntentService {
+
+    private static final String LOG_TAG = SyncService.class.getSimpleName();
+
+    /** Unique ID of the sync work, within the app */
+    private static final int JOB_ID = 1001;
+
+    /**
+     * Set the hourly alarm that runs the sync, unless it is already set or there is no server to
+     * sync with. Alarms don't survive a reboot, so this is called every time the app starts.
+     */
+    public static void schedule(Context context) {
+        if (TextUtils.isEmpty(context.getString(R.string.sync_server_url))) {
+            return;
+        }
+        Intent intent = new Intent(context, AlarmReceiver.class);
+        if (PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager != null) {
+            alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                    SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR,
+                    AlarmManager.INTERVAL_HOUR, PendingIntent.getBroadcast(context, 0, intent, 0));
+        }
+    }
+
+    /**
+     * Receives the alarm and hands the sync to the service, which runs it as a job where
+     * background services aren't allowed.
+     */
+    public static class AlarmReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            enqueueWork(context, SyncService.class, JOB_ID, intent);
+        }
+    }
+
+    @Override
+    protected void onHandleWork(@NonNull Intent intent) {
+        try {
+            new SyncEngine(this, getString(R.string.sync_server_url)).sync();
+        } catch (IOException | SQLiteException ex) {
+            // The watermarks are saved after each batch, so the next alarm resumes from here
+            Log.e(LOG_TAG, "There was a problem syncing products", ex);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.android.inventory;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+
+import com.example.android.inventory.data.ProductContract;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class ProviderMetricsTest {
+
+    private ContentResolver mContentResolver;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void sellBatchWithoutExtras_isRecordedAsAFailure() {
+        try {
+            mContentResolver.call(ProductEntry.CONTENT_URI, ProductContract.METHOD_SELL_BATCH, null, null);
+            fail("Batch sale without extras should throw");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertEquals(1, getMetric(ProductContract.EXTRA_METRIC_CALLS, "sellBatch"));
+        assertEquals(1, getMetric(ProductContract.EXTRA_METRIC_FAILURES, "sellBatch"));
+    }
+
+    private long getMetric(String key, String operation) {
+        Bundle metrics = mContentResolver.call(ProductEntry.CONTENT_URI, ProductContract.METHOD_GET_METRICS,
+                null, null);
+        int index = Arrays.asList(metrics.getStringArray(ProductContract.EXTRA_METRIC_OPERATIONS)).indexOf(operation);
+        return metrics.getLongArray(key)[index];
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.android.inventory;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.example.android.inventory.data.ProductContract;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.StockCounterEntry;
+import com.example.android.inventory.data.ProductContract.StockMovementEntry;
+import com.example.android.inventory.data.TestProducts;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Simulates several tills, each with its own database, selling from the same stock and
+ * exchanging their stock counters as sync would, in any order.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StockCounterMergeTest {
+
+    private static final int OPENING_STOCK = 100;
+
+    private static final String[] SYNCED_PRODUCT_COLUMNS = new String[] {
+            ProductEntry.COLUMN_PRODUCT_SYNC_ID,
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE,
+            ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD,
+            ProductEntry.COLUMN_PRODUCT_UPDATED_AT,
+    };
+
+    private static final String[] COUNTER_COLUMNS = new String[] {
+            StockCounterEntry.COLUMN_COUNTER_DEVICE_ID,
+            StockCounterEntry.COLUMN_COUNTER_INCREMENTS,
+            StockCounterEntry.COLUMN_COUNTER_DECREMENTS,
+    };
+
+    private Till[] mTills;
+
+    @Before
+    public void setUp() {
+        mTills = new Till[3];
+        for (int i = 0; i < mTills.length; i++) {
+            mTills[i] = new Till("till" + i);
+        }
+
+        // The product is added on the first till and reaches the others by sync
+        mTills[0].mProvider.insert(ProductEntry.CONTENT_URI,
+                TestProducts.product("Bolts", 1999, OPENING_STOCK, "Acme", "555-0100"));
+        Bundle state = mTills[0].getState();
+        for (int i = 1; i < mTills.length; i++) {
+            mTills[i].merge(state);
+        }
+    }
+
+    @Test
+    public void concurrentSales_allCountAfterMerging() {
+        assertTrue(mTills[0].sell(2));
+        assertTrue(mTills[1].sell(3));
+        assertTrue(mTills[2].sell(4));
+        assertEquals(OPENING_STOCK - 2, mTills[0].getQuantity());
+
+        exchangeAll();
+
+        for (Till till : mTills) {
+            assertEquals(OPENING_STOCK - 9, till.getQuantity());
+        }
+    }
+
+    @Test
+    public void merging_isIdempotentAndOrderFree() {
+        assertTrue(mTills[0].sell(5));
+        Bundle early = mTills[0].getState();
+        mTills[0].restock(20);
+        assertTrue(mTills[0].sell(1));
+        Bundle late = mTills[0].getState();
+
+        // The later state arrives first, the earlier one after it, and both arrive twice
+        mTills[1].merge(late);
+        mTills[1].merge(early);
+        mTills[1].merge(late);
+        mTills[2].merge(early);
+        mTills[2].merge(late);
+        mTills[2].merge(early);
+
+        for (Till till : mTills) {
+            assertEquals(OPENING_STOCK - 5 + 20 - 1, till.getQuantity());
+        }
+        assertEquals(mTills[0].getCounters(), mTills[1].getCounters());
+        assertEquals(mTills[0].getCounters(), mTills[2].getCounters());
+    }
+
+    @Test
+    public void randomGossip_converges() {
+        Random random = new Random(42);
+        List<Bundle> sent = new ArrayList<>();
+        int expected = OPENING_STOCK;
+        for (int step = 0; step < 300; step++) {
+            Till till = mTills[random.nextInt(mTills.length)];
+            int action = random.nextInt(10);
+            if (action < 5) {
+                int quantity = 1 + random.nextInt(3);
+                if (till.sell(quantity)) {
+                    expected -= quantity;
+                }
+            } else if (action < 6) {
+                int quantity = 1 + random.nextInt(10);
+                till.restock(quantity);
+                expected += quantity;
+            } else if (action < 8) {
+                sent.add(till.getState());
+            } else if (!sent.isEmpty()) {
+                // Deliver an old or new state, possibly again
+                till.merge(sent.get(random.nextInt(sent.size())));
+            }
+        }
+
+        exchangeAll();
+
+        for (Till till : mTills) {
+            assertEquals(expected, till.getQuantity());
+            assertEquals(mTills[0].getCounters(), till.getCounters());
+        }
+    }
+
+    /**
+     * Send every till's current state to every other till.
+     */
+    private void exchangeAll() {
+        for (Till from : mTills) {
+            Bundle state = from.getState();
+            for (Till to : mTills) {
+                if (to != from) {
+                    to.merge(state);
+                }
+            }
+        }
+    }
+
+    /**
+     * One device, with its own provider and database.
+     */
+    private static class Till {
+        final ProductProvider mProvider;
+
+        Till(String name) {
+            final File directory = RuntimeEnvironment.application.getDir(name, Context.MODE_PRIVATE);
+            Context context = new ContextWrapper(RuntimeEnvironment.application) {
+                @Override
+                public File getDatabasePath(String databaseName) {
+                    return new File(directory, databaseName);
+                }
+            };
+            ProviderInfo info = new ProviderInfo();
+            info.authority = ProductContract.CONTENT_AUTHORITY;
+            mProvider = new ProductProvider();
+            mProvider.attachInfo(context, info);
+        }
+
+        long getProductId() {
+            Cursor cursor = mProvider.query(ProductEntry.CONTENT_URI, new String[] { ProductEntry._ID },
+                    null, null, null);
+            try {
+                assertEquals(1, cursor.getCount());
+                cursor.moveToFirst();
+                return cursor.getLong(0);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        int getQuantity() {
+            Cursor cursor = mProvider.query(ProductEntry.CONTENT_URI,
+                    new String[] { ProductEntry.COLUMN_PRODUCT_QUANTITY }, null, null, null);
+            try {
+                cursor.moveToFirst();
+                return cursor.getInt(0);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        boolean sell(int quantity) {
+            Bundle extras = new Bundle();
+            extras.putInt(ProductContract.EXTRA_SALE_QUANTITY, quantity);
+            return mProvider.call(ProductContract.METHOD_SELL, String.valueOf(getProductId()), extras)
+                    .getBoolean(ProductContract.EXTRA_SOLD);
+        }
+
+        void restock(int quantity) {
+            ContentValues values = new ContentValues();
+            values.put(StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID, getProductId());
+            values.put(StockMovementEntry.COLUMN_MOVEMENT_TYPE, StockMovementEntry.TYPE_RECEIPT);
+            values.put(StockMovementEntry.COLUMN_MOVEMENT_QUANTITY, quantity);
+            mProvider.insert(StockMovementEntry.CONTENT_URI, values);
+        }
+
+        /**
+         * Return the product and all of its counters, as sync sends them.
+         */
+        Bundle getState() {
+            ContentValues product = new ContentValues();
+            Cursor cursor = mProvider.query(ProductEntry.CONTENT_URI, SYNCED_PRODUCT_COLUMNS,
+                    null, null, null);
+            try {
+                cursor.moveToFirst();
+                for (int i = 0; i < SYNCED_PRODUCT_COLUMNS.length; i++) {
+                    product.put(SYNCED_PRODUCT_COLUMNS[i], cursor.getString(i));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            List<ContentValues> counters = new ArrayList<>();
+            cursor = mProvider.query(StockCounterEntry.CONTENT_URI, COUNTER_COLUMNS, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    ContentValues counter = new ContentValues();
+                    counter.put(ProductEntry.COLUMN_PRODUCT_SYNC_ID,
+                            product.getAsString(ProductEntry.COLUMN_PRODUCT_SYNC_ID));
+                    counter.put(StockCounterEntry.COLUMN_COUNTER_DEVICE_ID, cursor.getString(0));
+                    counter.put(StockCounterEntry.COLUMN_COUNTER_INCREMENTS, cursor.getLong(1));
+                    counter.put(StockCounterEntry.COLUMN_COUNTER_DECREMENTS, cursor.getLong(2));
+                    counters.add(counter);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            Bundle state = new Bundle();
+            state.putParcelableArray(ProductContract.EXTRA_SYNC_PRODUCTS, new ContentValues[] { product });
+            state.putParcelableArray(ProductContract.EXTRA_SYNC_COUNTERS,
+                    counters.toArray(new ContentValues[counters.size()]));
+            return state;
+        }
+
+        void merge(Bundle state) {
+            mProvider.call(ProductContract.METHOD_APPLY_SYNC, null, state);
+        }
+
+        /**
+         * Return every counter as one line of its device and counts, in device order.
+         */
+        TreeSet<String> getCounters() {
+            TreeSet<String> counters = new TreeSet<>();
+            Cursor cursor = mProvider.query(StockCounterEntry.CONTENT_URI, COUNTER_COLUMNS, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    counters.add(cursor.getString(0) + "|" + cursor.getLong(1) + "|" + cursor.getLong(2));
+                }
+            } finally {
+                cursor.close();
+            }
+            return counters;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.example.android.inventory.benchmark;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.inventory.ProductProvider;
+import com.example.android.inventory.data.ProductContract;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.TestProducts;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the throughput and latency of the provider's query, insert, update and delete paths
+ * on catalogs of 1k, 100k and 1M products, running against SQLite under Robolectric.
+ * <p>
+ * Benchmarks are slow, so they are skipped unless the {@code inventory.benchmark} system property
+ * is true, which {@code -Pbenchmark} on the Gradle command line sets. Each catalog size writes
+ * its results to {@code provider-<rows>.csv} in the {@code inventory.benchmark.results}
+ * directory, and fails if an operation's median latency is more than
+ * {@code inventory.benchmark.tolerance} times the one recorded in the
+ * {@code inventory.benchmark.baseline} file. To record a new baseline, copy the results over it
+ * and say on {@code #} comment lines at the top which machine and JDK they were measured on, since
+ * medians are only comparable on the same setup.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProviderBenchmark {
+
+    private static final String CSV_HEADER = "rows,operation,count,opsPerSecond,p50Micros,p90Micros,p99Micros";
+
+    /** Operations timed before the measured ones, so that class loading and JIT aren't counted */
+    private static final int WARMUP_COUNT = 200;
+
+    /** Operations measured, of each kind */
+    private static final int MEASURED_COUNT = 2000;
+
+    private static final String[] QUERY_PROJECTION = new String[] {
+            ProductEntry._ID,
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME,
+    };
+
+    private ContentResolver mContentResolver;
+    private final Random mRandom = new Random(42);
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.getBoolean("inventory.benchmark"));
+        Robolectric.setupContentProvider(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void thousandProducts() throws IOException {
+        run(1000);
+    }
+
+    @Test
+    public void hundredThousandProducts() throws IOException {
+        run(100000);
+    }
+
+    @Test
+    public void millionProducts() throws IOException {
+        run(1000000);
+    }
+
+    private void run(final int rows) throws IOException {
+        List<Result> results = new ArrayList<>();
+
+        long start = System.nanoTime();
+        TestProducts.insert(mContentResolver, rows);
+        long[] bulkInsert = new long[] { System.nanoTime() - start };
+        results.add(new Result(rows, "bulkInsert", rows, bulkInsert));
+
+        // Each operation is timed on its own, on products picked at random rather than in order,
+        // so that one operation doesn't find the pages it needs already read by the one before
+        results.add(measure(rows, "queryById", new Operation() {
+            @Override
+            public void run(int i) {
+                Cursor cursor = mContentResolver.query(randomProductUri(rows), QUERY_PROJECTION,
+                        null, null, null);
+                try {
+                    assertTrue(cursor.moveToFirst());
+                } finally {
+                    cursor.close();
+                }
+            }
+        }));
+        results.add(measure(rows, "queryPage", new Operation() {
+            @Override
+            public void run(int i) {
+                Uri pageUri = ProductEntry.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(ProductContract.QUERY_PARAMETER_LIMIT, "50")
+                        .build();
+                Cursor cursor = mContentResolver.query(pageUri, QUERY_PROJECTION, ProductEntry._ID + " > ?",
+                        new String[] { String.valueOf(mRandom.nextInt(Math.max(1, rows - 50))) },
+                        ProductEntry._ID);
+                try {
+                    while (cursor.moveToNext()) {
+                        cursor.getString(1);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }));
+        results.add(measure(rows, "update", new Operation() {
+            @Override
+            public void run(int i) {
+                ContentValues values = new ContentValues();
+                values.put(ProductEntry.COLUMN_PRODUCT_PRICE, 100 + mRandom.nextInt(10000));
+                assertEquals(1, mContentResolver.update(randomProductUri(rows), values, null, null));
+            }
+        }));
+
+        // The products inserted are deleted again, so the catalog stays the same size
+        final List<Uri> inserted = new ArrayList<>();
+        results.add(measure(rows, "insert", new Operation() {
+            @Override
+            public void run(int i) {
+                inserted.add(mContentResolver.insert(ProductEntry.CONTENT_URI,
+                        TestProducts.product(rows + i)));
+            }
+        }));
+        results.add(measure(rows, "delete", new Operation() {
+            @Override
+            public void run(int i) {
+                assertEquals(1, mContentResolver.delete(inserted.get(i), null, null));
+            }
+        }));
+
+        writeResults(rows, results);
+        checkBaseline(results);
+    }
+
+    /**
+     * Run an operation {@link #WARMUP_COUNT} times, then time it {@link #MEASURED_COUNT} times.
+     */
+    private static Result measure(int rows, String name, Operation operation) {
+        for (int i = 0; i < WARMUP_COUNT; i++) {
+            operation.run(i);
+        }
+        long[] nanos = new long[MEASURED_COUNT];
+        for (int i = 0; i < MEASURED_COUNT; i++) {
+            long start = System.nanoTime();
+            operation.run(WARMUP_COUNT + i);
+            nanos[i] = System.nanoTime() - start;
+        }
+        return new Result(rows, name, MEASURED_COUNT, nanos);
+    }
+
+    private Uri randomProductUri(int rows) {
+        return ContentUris.withAppendedId(ProductEntry.CONTENT_URI, 1 + mRandom.nextInt(rows));
+    }
+
+    private static void writeResults(int rows, List<Result> results) throws IOException {
+        File directory = new File(System.getProperty("inventory.benchmark.results", "build/benchmarks"));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        Writer out = new OutputStreamWriter(
+                new FileOutputStream(new File(directory, "provider-" + rows + ".csv")), StandardCharsets.UTF_8);
+        try {
+            out.write(CSV_HEADER + "\n");
+            for (Result result : results) {
+                out.write(result.toCsv() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Fail if an operation's median latency has grown past the tolerance since the baseline.
+     */
+    private static void checkBaseline(List<Result> results) throws IOException {
+        String path = System.getProperty("inventory.benchmark.baseline");
+        if (path == null || !new File(path).isFile()) {
+            return;
+        }
+        double tolerance = Double.parseDouble(System.getProperty("inventory.benchmark.tolerance", "2"));
+
+        // Baseline medians, by catalog size and operation
+        Map<String, Double> baseline = new HashMap<>();
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                // Skip the comments saying where the baseline was recorded, and the header row
+                if (line.startsWith("#") || line.equals(CSV_HEADER)) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                baseline.put(fields[0] + "," + fields[1], Double.parseDouble(fields[4]));
+            }
+        } finally {
+            in.close();
+        }
+
+        StringBuilder regressions = new StringBuilder();
+        for (Result result : results) {
+            Double median = baseline.get(result.mRows + "," + result.mOperation);
+            if (median != null && result.getPercentileMicros(50) > median * tolerance) {
+                regressions.append(String.format(Locale.US, "\n%s on %d rows: %.1f us, baseline %.1f us",
+                        result.mOperation, result.mRows, result.getPercentileMicros(50), median));
+            }
+        }
+        assertTrue("Median latency regressed:" + regressions, regressions.length() == 0);
+    }
+
+    private interface Operation {
+        void run(int i);
+    }
+
+    /**
+     * Timings of one operation on one catalog size.
+     */
+    private static class Result {
+        final int mRows;
+        final String mOperation;
+        final int mCount;
+        final long[] mSortedNanos;
+        final long mTotalNanos;
+
+        /**
+         * @param count number of operations the timings cover, which for a bulk operation is
+         *              more than the number of timings
+         */
+        Result(int rows, String operation, int count, long[] nanos) {
+            mRows = rows;
+            mOperation = operation;
+            mCount = count;
+            mSortedNanos = nanos.clone();
+            Arrays.sort(mSortedNanos);
+            long total = 0;
+            for (long time : nanos) {
+                total += time;
+            }
+            mTotalNanos = total;
+        }
+
+        double getPercentileMicros(int percentile) {
+            int index = (int) Math.ceil(percentile / 100.0 * mSortedNanos.length) - 1;
+            return mSortedNanos[Math.max(0, index)] / 1000.0;
+        }
+
+        String toCsv() {
+            return String.format(Locale.US, "%d,%s,%d,%.0f,%.1f,%.1f,%.1f", mRows, mOperation, mCount,
+                    mCount * 1e9 / mTotalNanos, getPercentileMicros(50), getPercentileMicros(90),
+                    getPercentileMicros(99));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.inventory.ProductProvider;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class CatalogSnapshotTest {
+
+    /** Products in the catalog, which takes more than one page to load */
+    private static final int CATALOG_SIZE = 2500;
+
+    private ContentResolver mContentResolver;
+    private CatalogSnapshot mSnapshot;
+    private final List<Uri> mChanges = new ArrayList<>();
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            mChanges.add(uri);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+        TestProducts.insert(mContentResolver, CATALOG_SIZE);
+        mSnapshot = new CatalogSnapshot(mContentResolver);
+        mSnapshot.load();
+        mContentResolver.registerContentObserver(ProductEntry.CONTENT_URI, true, mObserver);
+    }
+
+    @After
+    public void tearDown() {
+        mContentResolver.unregisterContentObserver(mObserver);
+    }
+
+    @Test
+    public void load_readsEveryPage() {
+        assertEquals(CATALOG_SIZE, mSnapshot.getSize());
+        assertMatchesLoad();
+    }
+
+    @Test
+    public void applyChange_followsInsertsUpdatesAndDeletes() {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, 4321);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 7);
+        mContentResolver.update(productUri(10), values, null, null);
+
+        values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD, 1000);
+        mContentResolver.update(productUri(11), values, null, null);
+
+        mContentResolver.insert(ProductEntry.CONTENT_URI,
+                TestProducts.product("Bolts", 1999, 3, "New supplier", "555-0199"));
+        mContentResolver.delete(productUri(12), null, null);
+        mContentResolver.delete(ProductEntry.CONTENT_URI, ProductEntry._ID + " IN (13, 14)", null);
+
+        applyChanges();
+        assertEquals(CATALOG_SIZE - 2, mSnapshot.getSize());
+        assertMatchesLoad();
+    }
+
+    @Test
+    public void applyChange_followsAProductToAnotherSupplier() {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME, "Supplier 3");
+        values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE, "555-0103");
+        mContentResolver.update(productUri(20), values, null, null);
+
+        applyChanges();
+        assertMatchesLoad();
+    }
+
+    @Test
+    public void applyChange_followsABatch() throws Exception {
+        // Read the product first, so that the provider caches it. Product 30 is numbered 29.
+        assertEquals(100 + 29, getPrice(30));
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(ProductEntry.CONTENT_URI)
+                .withValues(TestProducts.product("Bolts", 1999, 3, "Supplier 1", "555-0101"))
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(productUri(30))
+                .withValue(ProductEntry.COLUMN_PRODUCT_PRICE, 4321)
+                .build());
+        operations.add(ContentProviderOperation.newDelete(productUri(31)).build());
+        ContentProviderResult[] results = mContentResolver.applyBatch(ProductContract.CONTENT_AUTHORITY,
+                operations);
+
+        // One notification, naming just the products in the batch
+        assertEquals(1, mChanges.size());
+        ProductChange change = ProductChange.fromUri(mChanges.get(0));
+        assertArrayEquals(new long[] { ContentUris.parseId(results[0].uri), 30, 31 }, change.getIds());
+        assertEquals(4321, getPrice(30));
+
+        applyChanges();
+        assertEquals(CATALOG_SIZE, mSnapshot.getSize());
+        assertMatchesLoad();
+    }
+
+    @Test
+    public void applyChange_withoutAUri_loadsTheTableAgain() {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 0);
+        mContentResolver.update(ProductEntry.CONTENT_URI, values, ProductEntry._ID + " <= 100", null);
+
+        mSnapshot.applyChange(null);
+        assertMatchesLoad();
+    }
+
+    private static Uri productUri(long id) {
+        return ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id);
+    }
+
+    private long getPrice(long id) {
+        Cursor cursor = mContentResolver.query(productUri(id),
+                new String[] { ProductEntry.COLUMN_PRODUCT_PRICE }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void applyChanges() {
+        for (Uri change : mChanges) {
+            mSnapshot.applyChange(change);
+        }
+        mChanges.clear();
+    }
+
+    /**
+     * Check the snapshot against one loaded from the table now.
+     */
+    private void assertMatchesLoad() {
+        CatalogSnapshot loaded = new CatalogSnapshot(mContentResolver);
+        loaded.load();
+        assertEquals(loaded.getSize(), mSnapshot.getSize());
+        assertEquals(loaded.getInventoryValue(), mSnapshot.getInventoryValue());
+        assertEquals(loaded.getTotalQuantity(), mSnapshot.getTotalQuantity());
+        assertEquals(loaded.countLowStock(), mSnapshot.countLowStock());
+        assertEquals(sumBySupplier(loaded), sumBySupplier(mSnapshot));
+    }
+
+    /**
+     * Return each supplier's product count, quantity and value, leaving out suppliers with no
+     * products, whose position in the snapshot may differ.
+     */
+    private static Map<String, List<Long>> sumBySupplier(CatalogSnapshot snapshot) {
+        Map<String, List<Long>> suppliers = new HashMap<>();
+        int[] productCounts = snapshot.getProductCountBySupplier();
+        long[] quantities = snapshot.getQuantityBySupplier();
+        long[] values = snapshot.getValueBySupplier();
+        for (int i = 0; i < productCounts.length; i++) {
+            if (productCounts[i] > 0) {
+                List<Long> totals = new ArrayList<>();
+                totals.add((long) productCounts[i]);
+                totals.add(quantities[i]);
+                totals.add(values[i]);
+                suppliers.put(snapshot.getSupplierName(i), totals);
+            }
+        }
+        return suppliers;
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.android.inventory.data;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.lang.management.ManagementFactory;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class CurrencyFormatterTest {
+
+    private static final Locale[] LOCALES = new Locale[] {
+            Locale.US, Locale.UK, Locale.GERMANY, Locale.FRANCE, Locale.JAPAN,
+            new Locale("de", "CH"), new Locale("hi", "IN"), new Locale("ar", "EG"),
+    };
+
+    private static final long[] PRICES = new long[] {
+            0, 1, 5, 10, 99, 100, 1999, 100000, 123456789, -1, -1999, -123456789,
+    };
+
+    /** Number of prices formatted when counting allocations, about a long list scrolled through */
+    private static final int FORMAT_COUNT = 10000;
+
+    private Locale mDefaultLocale;
+
+    @Before
+    public void setUp() {
+        mDefaultLocale = Locale.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        Locale.setDefault(mDefaultLocale);
+    }
+
+    @Test
+    public void format_matchesTheLocaleCurrencyFormat() {
+        CurrencyFormatter formatter = CurrencyFormatter.getInstance();
+        for (Locale locale : LOCALES) {
+            Locale.setDefault(locale);
+            NumberFormat expected = NumberFormat.getCurrencyInstance(locale);
+            for (long cents : PRICES) {
+                assertEquals(locale + " " + cents, expected.format(Prices.toUnits(cents)),
+                        formatter.formatToString(cents));
+            }
+        }
+    }
+
+    @Test
+    public void format_followsLocaleChanges() {
+        CurrencyFormatter formatter = CurrencyFormatter.getInstance();
+        Locale.setDefault(Locale.US);
+        assertEquals("$1,999.00", formatter.formatToString(199900));
+        Locale.setDefault(Locale.GERMANY);
+        assertEquals(NumberFormat.getCurrencyInstance(Locale.GERMANY).format(1999),
+                formatter.formatToString(199900));
+        Locale.setDefault(Locale.US);
+        assertEquals("$0.05", formatter.formatToString(5));
+    }
+
+    @Test
+    public void format_allocatesNothingOnceTheLocaleIsKnown() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+        Locale.setDefault(Locale.US);
+
+        // What binding each row used to cost: a currency format lookup and a new string
+        long start = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < FORMAT_COUNT; i++) {
+            NumberFormat.getCurrencyInstance(Locale.getDefault()).format(Prices.toUnits(i));
+        }
+        long lookupPerFormat = (threads.getThreadAllocatedBytes(thread) - start) / FORMAT_COUNT;
+
+        CurrencyFormatter formatter = CurrencyFormatter.getInstance();
+        // Warm up, so that the locale's format is already read
+        formatter.format(0);
+        start = threads.getThreadAllocatedBytes(thread);
+        int length = 0;
+        for (int i = 0; i < FORMAT_COUNT; i++) {
+            length += formatter.format(i);
+        }
+        long formatterPerFormat = (threads.getThreadAllocatedBytes(thread) - start) / FORMAT_COUNT;
+
+        assertTrue(length > 0);
+        assertTrue("Formatting allocated " + formatterPerFormat + " bytes per price, against " +
+                lookupPerFormat + " for a format lookup", formatterPerFormat == 0);
+        assertTrue(lookupPerFormat > 0);
+    }
+}
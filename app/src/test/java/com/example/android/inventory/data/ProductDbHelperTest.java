@@ -0,0 +1,202 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.StockMovementEntry;
+import com.example.android.inventory.data.ProductContract.SupplierEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ProductDbHelperTest {
+
+    private static final String DATABASE_NAME = "inventory.db";
+
+    /** The products table as the first release of the app created it */
+    private static final String SQL_CREATE_VERSION_1 =
+            "CREATE TABLE products (" +
+                    "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "name TEXT NOT NULL," +
+                    "price REAL NOT NULL," +
+                    "quantity INTEGER NOT NULL," +
+                    "supplierName TEXT NOT NULL," +
+                    "supplierPhone TEXT NOT NULL)";
+
+    private Context mContext;
+    private ProductDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (mDbHelper != null) {
+            mDbHelper.close();
+        }
+    }
+
+    @Test
+    public void upgradeFromVersion1_keepsEveryProduct() {
+        SQLiteDatabase old = mContext.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+        old.execSQL(SQL_CREATE_VERSION_1);
+        insertVersion1(old, "Bolts", 19.99, 3, "Acme", "555-0100");
+        insertVersion1(old, "Nuts", 0.1, 0, "Acme", "555-0100");
+        insertVersion1(old, "Washers", 2.5, 40, "Bits & Bobs", "555-0199");
+        insertVersion1(old, "Discontinued", 1, 1, "Acme", "555-0100");
+        old.delete("products", "name = ?", new String[] { "Discontinued" });
+        old.setVersion(1);
+        old.close();
+
+        mDbHelper = new ProductDbHelper(mContext);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        assertEquals(Arrays.asList(
+                "1|Bolts|1999|3|Acme|555-0100",
+                "2|Nuts|10|0|Acme|555-0100",
+                "3|Washers|250|40|Bits & Bobs|555-0199"), readProducts(db));
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, SupplierEntry.TABLE_NAME));
+
+        // Quantities carry over into the stock ledger as opening adjustments
+        Cursor cursor = db.rawQuery("SELECT " + StockMovementEntry.COLUMN_MOVEMENT_PRODUCT_ID + ", SUM(" +
+                StockMovementEntry.COLUMN_MOVEMENT_QUANTITY + ") FROM " + StockMovementEntry.TABLE_NAME +
+                " GROUP BY 1 ORDER BY 1", null);
+        try {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(3, cursor.getInt(1));
+            cursor.moveToNext();
+            assertEquals(40, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+
+        // The ID of the deleted product isn't handed out again
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, "Screws");
+        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, 5);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 0);
+        values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID, 1);
+        assertEquals(5, db.insertOrThrow(ProductEntry.TABLE_NAME, null, values));
+    }
+
+    @Test
+    public void upgradeFromEmptyVersion1_startsIdsFromOne() {
+        SQLiteDatabase old = mContext.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+        old.execSQL(SQL_CREATE_VERSION_1);
+        old.setVersion(1);
+        old.close();
+
+        mDbHelper = new ProductDbHelper(mContext);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        ContentValues supplier = new ContentValues();
+        supplier.put(SupplierEntry.COLUMN_SUPPLIER_NAME, "Acme");
+        supplier.put(SupplierEntry.COLUMN_SUPPLIER_PHONE, "555-0100");
+        long supplierId = db.insertOrThrow(SupplierEntry.TABLE_NAME, null, supplier);
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, "Screws");
+        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, 5);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 0);
+        values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID, supplierId);
+        assertEquals(1, db.insertOrThrow(ProductEntry.TABLE_NAME, null, values));
+    }
+
+    @Test
+    public void lookups_useIndexes() {
+        mDbHelper = new ProductDbHelper(mContext);
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+
+        assertUsesIndex(db, "products_name_index",
+                "SELECT _id FROM products WHERE name = 'Bolts' COLLATE NOCASE");
+        assertUsesIndex(db, "products_name_index",
+                "SELECT _id FROM products WHERE name LIKE 'bol%'");
+        assertUsesIndex(db, "products_name_index",
+                "SELECT _id, name FROM products ORDER BY name COLLATE NOCASE");
+        assertUsesIndex(db, "products_quantity_index",
+                "SELECT _id FROM products WHERE quantity <= 0");
+        assertUsesIndex(db, "products_supplier_id_index",
+                "SELECT _id FROM products WHERE supplierId = 1");
+        assertUsesIndex(db, "products_sku_index",
+                "SELECT _id FROM products WHERE sku = '0123456789012'");
+        // The low stock check reads only the index
+        assertUsesIndex(db, "COVERING INDEX products_version_index",
+                "SELECT version FROM products WHERE version > 10 AND version <= 20 AND " +
+                        "quantity <= reorderThreshold");
+    }
+
+    private static void insertVersion1(SQLiteDatabase db, String name, double price, int quantity,
+                                       String supplierName, String supplierPhone) {
+        ContentValues values = new ContentValues();
+        values.put("name", name);
+        values.put("price", price);
+        values.put("quantity", quantity);
+        values.put("supplierName", supplierName);
+        values.put("supplierPhone", supplierPhone);
+        db.insertOrThrow("products", null, values);
+    }
+
+    /**
+     * Return every product as one line of its columns, in ID order.
+     */
+    private static List<String> readProducts(SQLiteDatabase db) {
+        List<String> products = new ArrayList<>();
+        Cursor cursor = db.query(ProductEntry.VIEW_NAME, new String[] {
+                ProductEntry._ID,
+                ProductEntry.COLUMN_PRODUCT_NAME,
+                ProductEntry.COLUMN_PRODUCT_PRICE,
+                ProductEntry.COLUMN_PRODUCT_QUANTITY,
+                ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME,
+                ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE,
+        }, null, null, null, null, ProductEntry._ID);
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder product = new StringBuilder();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    if (i > 0) {
+                        product.append('|');
+                    }
+                    product.append(cursor.getString(i));
+                }
+                products.add(product.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+        return products;
+    }
+
+    private static void assertUsesIndex(SQLiteDatabase db, String index, String query) {
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + query, null);
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        assertTrue("Plan for " + query + " doesn't use " + index + ":\n" + plan,
+                plan.toString().contains(index));
+    }
+}
@@ -0,0 +1,288 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import com.example.android.inventory.ProductProvider;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class ProductExporterTest {
+
+    private static final String[] PRODUCT_COLUMNS = new String[] {
+            ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME,
+            ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE,
+            ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD,
+            ProductEntry.COLUMN_PRODUCT_SKU,
+    };
+
+    private ContentResolver mContentResolver;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void exportThenImport_keepsEveryProduct() throws IOException {
+        ContentValues bolts = TestProducts.product("Bolts, 10mm", 1999, 3, "Acme \"Hardware\"", "555-0100");
+        bolts.put(ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD, 5);
+        bolts.put(ProductEntry.COLUMN_PRODUCT_SKU, "4006381333931");
+        mContentResolver.insert(ProductEntry.CONTENT_URI, bolts);
+        mContentResolver.insert(ProductEntry.CONTENT_URI,
+                TestProducts.product("Two\nline name", 5, 0, "Acme", "555-0101"));
+        TestProducts.insert(mContentResolver, 120);
+        List<String> before = readProducts();
+
+        ByteArrayChannel channel = new ByteArrayChannel();
+        int rowsWritten = new ProductExporter(mContentResolver, 50, 256).exportCsv(channel, null, null);
+        assertEquals(122, rowsWritten);
+
+        mContentResolver.delete(ProductEntry.CONTENT_URI, null, null);
+        ProductImporter.Result result = new ProductImporter(mContentResolver)
+                .importCsv(new StringReader(channel.toString()));
+
+        assertEquals(0, result.getErrorCount());
+        assertEquals(122, result.getRowsImported());
+        assertEquals(before, readProducts());
+    }
+
+    @Test
+    public void import_ofTwoRowsWithOneSku_importsNeitherOfThem() throws IOException {
+        String csv = "name,price,quantity,supplierName,supplierPhone,sku\n"
+                + "Bolts,1.00,1,Acme,555-0100,4006381333931\n"
+                + "Nuts,2.00,2,Acme,555-0100,4006381333931\n";
+
+        ProductImporter.Result result = new ProductImporter(mContentResolver)
+                .importCsv(new StringReader(csv));
+
+        assertEquals(0, result.getRowsImported());
+        assertEquals(1, result.getErrorCount());
+        assertTrue(result.getErrors().get(0).getMessage().endsWith("Product SKU is already in use"));
+        assertTrue(readProducts().isEmpty());
+    }
+
+    @Test
+    public void import_ofASkuAlreadyInUse_importsNoneOfTheChunk() throws IOException {
+        ContentValues bolts = TestProducts.product("Bolts", 100, 1, "Acme", "555-0100");
+        bolts.put(ProductEntry.COLUMN_PRODUCT_SKU, "4006381333931");
+        mContentResolver.insert(ProductEntry.CONTENT_URI, bolts);
+        List<String> before = readProducts();
+        String csv = "name,price,quantity,supplierName,supplierPhone,sku\n"
+                + "Washers,1.00,1,Acme,555-0100,\n"
+                + "Nuts,2.00,2,Acme,555-0100,4006381333931\n";
+
+        ProductImporter.Result result = new ProductImporter(mContentResolver)
+                .importCsv(new StringReader(csv));
+
+        assertEquals(0, result.getRowsImported());
+        assertEquals(1, result.getErrorCount());
+        assertTrue(result.getErrors().get(0).getMessage().endsWith("Product SKU is already in use"));
+        assertEquals(before, readProducts());
+    }
+
+    @Test
+    public void export_reportsProgressAfterEachPage() throws IOException {
+        TestProducts.insert(mContentResolver, 25);
+
+        final List<Integer> progress = new ArrayList<>();
+        new ProductExporter(mContentResolver, 10, 256).exportCsv(new ByteArrayChannel(),
+                new ProductExporter.ProgressListener() {
+                    @Override
+                    public void onProgress(int rowsWritten) {
+                        progress.add(rowsWritten);
+                    }
+                }, null);
+
+        assertEquals(Arrays.asList(10, 20, 25), progress);
+    }
+
+    @Test
+    public void export_stopsWhenCanceled() throws IOException {
+        TestProducts.insert(mContentResolver, 100);
+
+        final CancellationSignal signal = new CancellationSignal();
+        final List<Integer> progress = new ArrayList<>();
+        try {
+            new ProductExporter(mContentResolver, 10, 256).exportCsv(new ByteArrayChannel(),
+                    new ProductExporter.ProgressListener() {
+                        @Override
+                        public void onProgress(int rowsWritten) {
+                            progress.add(rowsWritten);
+                            signal.cancel();
+                        }
+                    }, signal);
+            fail("Export should have been canceled");
+        } catch (OperationCanceledException expected) {
+            assertEquals(1, progress.size());
+        }
+    }
+
+    @Test
+    public void export_writesEachBufferAsItFills() throws IOException {
+        TestProducts.insert(mContentResolver, 2000);
+
+        // Each page's rows reach the channel before the next page is read, apart from what
+        // fits in the buffer, so no more than a page and a buffer are ever held
+        final int bufferSize = 1024;
+        final ByteArrayChannel channel = new ByteArrayChannel();
+        final List<Integer> bytesAtProgress = new ArrayList<>();
+        int rowsWritten = new ProductExporter(mContentResolver, 100, bufferSize).exportCsv(channel,
+                new ProductExporter.ProgressListener() {
+                    @Override
+                    public void onProgress(int rowsWritten) {
+                        bytesAtProgress.add(channel.size());
+                    }
+                }, null);
+
+        assertEquals(2000, rowsWritten);
+        assertTrue("Largest write was " + channel.getLargestWrite() + " bytes",
+                channel.getLargestWrite() <= bufferSize * 3);
+        int bytesPerPage = channel.size() / bytesAtProgress.size();
+        for (int page = 0; page < bytesAtProgress.size(); page++) {
+            int expected = bytesPerPage * (page + 1);
+            assertTrue("Page " + page + " had only " + bytesAtProgress.get(page) + " bytes written",
+                    bytesAtProgress.get(page) >= expected - bufferSize * 3 - bytesPerPage / 10);
+        }
+    }
+
+    @Test
+    public void export_allocatesNoMorePerRowForALargerCatalog() throws IOException {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        TestProducts.insert(mContentResolver, 1000);
+        ProductExporter exporter = new ProductExporter(mContentResolver, 100, 4096);
+        // Warm up, so that class loading isn't counted
+        exporter.exportCsv(new NullChannel(), null, null);
+
+        long start = threads.getThreadAllocatedBytes(thread);
+        exporter.exportCsv(new NullChannel(), null, null);
+        long smallPerRow = (threads.getThreadAllocatedBytes(thread) - start) / 1000;
+
+        TestProducts.insert(mContentResolver, 9000);
+        start = threads.getThreadAllocatedBytes(thread);
+        exporter.exportCsv(new NullChannel(), null, null);
+        long largePerRow = (threads.getThreadAllocatedBytes(thread) - start) / 10000;
+
+        // Memory that grew with the catalog would show up as more allocation per row
+        assertTrue("Allocated " + smallPerRow + " bytes per row for 1000 rows but " + largePerRow +
+                " for 10000", largePerRow <= smallPerRow * 3 / 2);
+    }
+
+    /**
+     * Return every product as one line of its exported columns, in name order.
+     */
+    private List<String> readProducts() {
+        List<String> products = new ArrayList<>();
+        Cursor cursor = mContentResolver.query(ProductEntry.CONTENT_URI, PRODUCT_COLUMNS, null, null,
+                ProductEntry.COLUMN_PRODUCT_NAME);
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder product = new StringBuilder();
+                for (int i = 0; i < PRODUCT_COLUMNS.length; i++) {
+                    product.append(cursor.getString(i)).append('|');
+                }
+                products.add(product.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+        return products;
+    }
+
+    /**
+     * Collects what is written to it, and the size of the largest single write.
+     */
+    private static class ByteArrayChannel implements WritableByteChannel {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private int mLargestWrite;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            mLargestWrite = Math.max(mLargestWrite, length);
+            byte[] bytes = new byte[length];
+            src.get(bytes);
+            mBytes.write(bytes, 0, length);
+            return length;
+        }
+
+        int size() {
+            return mBytes.size();
+        }
+
+        int getLargestWrite() {
+            return mLargestWrite;
+        }
+
+        @Override
+        public String toString() {
+            return new String(mBytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Throws away what is written to it.
+     */
+    private static class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.inventory.ProductProvider;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ProductReportsTest {
+
+    /** Products in the larger catalog, which takes more than one page to load */
+    private static final int CATALOG_SIZE = 2500;
+
+    private ContentResolver mContentResolver;
+    private ProductReports mProductReports;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+        mProductReports = new ProductReports(mContentResolver);
+    }
+
+    @After
+    public void tearDown() {
+        mProductReports.close();
+    }
+
+    @Test
+    public void reports_addUpEveryProduct() {
+        insert("Bolts", 1999, 3, 5, "Acme");
+        insert("Nuts", 10, 100, 0, "Acme");
+        insert("Washers", 250, 0, 0, "Brico");
+        insert("Screws", 5, 40, 0, "Brico");
+
+        assertEquals(1999 * 3 + 10 * 100 + 5 * 40, mProductReports.getTotalValue());
+        assertEquals(2, mProductReports.getLowStockCount());
+
+        List<ProductReports.SupplierTotal> suppliers = mProductReports.getValueBySupplier();
+        assertEquals(2, suppliers.size());
+        assertSupplier(suppliers.get(0), "Acme", 2, 103, 1999 * 3 + 10 * 100);
+        assertSupplier(suppliers.get(1), "Brico", 2, 40, 5 * 40);
+
+        List<ProductReports.ProductTotal> top = mProductReports.getTopByQuantity(1);
+        assertEquals(1, top.size());
+        assertEquals("Nuts", top.get(0).getName());
+        List<ProductReports.ProductTotal> outOfStock = mProductReports.getOutOfStock();
+        assertEquals(1, outOfStock.size());
+        assertEquals("Washers", outOfStock.get(0).getName());
+    }
+
+    @Test
+    public void reports_ofAnEmptyCatalog_areEmpty() {
+        assertEquals(0, mProductReports.getTotalValue());
+        assertEquals(0, mProductReports.getLowStockCount());
+        assertTrue(mProductReports.getValueBySupplier().isEmpty());
+        assertTrue(mProductReports.getOutOfStock().isEmpty());
+    }
+
+    @Test
+    public void reports_areCachedUntilTheProductsChange() {
+        long id = insert("Bolts", 1999, 3, 0, "Acme");
+        assertEquals(1999 * 3, mProductReports.getTotalValue());
+        mProductReports.getValueBySupplier();
+
+        long queries = getQueryCalls();
+        assertEquals(1999 * 3, mProductReports.getTotalValue());
+        mProductReports.getValueBySupplier();
+        assertEquals(queries, getQueryCalls());
+
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, 2500);
+        mContentResolver.update(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id), values, null, null);
+        assertEquals(2500 * 3, mProductReports.getTotalValue());
+        assertSupplier(mProductReports.getValueBySupplier().get(0), "Acme", 1, 3, 2500 * 3);
+    }
+
+    @Test
+    public void reportsAfterChanges_fetchOnlyTheChangedProducts() {
+        TestProducts.insert(mContentResolver, CATALOG_SIZE);
+        readTotals(mProductReports);
+
+        // The first change loads the snapshot
+        updatePrice(7, 4321);
+        assertTotalsMatchQueries();
+
+        // After that, each change only fetches the product it names, and a deletion nothing
+        long rows = getQueryRows();
+        updatePrice(8, 1);
+        mContentResolver.insert(ProductEntry.CONTENT_URI, TestProducts.product(CATALOG_SIZE));
+        mContentResolver.delete(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, 9), null, null);
+        readTotals(mProductReports);
+        assertEquals(2, getQueryRows() - rows);
+        assertTotalsMatchQueries();
+    }
+
+    @Test
+    public void reportsAfterManyChanges_loadTheTableAgain() {
+        TestProducts.insert(mContentResolver, CATALOG_SIZE);
+        readTotals(mProductReports);
+        updatePrice(1, 1);
+        readTotals(mProductReports);
+
+        long queries = getQueryCalls();
+        for (int id = 1; id <= ProductReports.MAX_PENDING_CHANGES * 2; id++) {
+            updatePrice(id, 2);
+        }
+        readTotals(mProductReports);
+
+        // One query per page of the table, not one per change
+        int pages = CATALOG_SIZE / CatalogSnapshot.LOAD_PAGE_SIZE + 1;
+        assertEquals(pages, getQueryCalls() - queries);
+        assertTotalsMatchQueries();
+    }
+
+    @Test
+    public void changesBeforeTheSnapshotIsLoaded_areNotFetched() {
+        TestProducts.insert(mContentResolver, CATALOG_SIZE);
+        readTotals(mProductReports);
+        for (int id = 1; id <= 20; id++) {
+            updatePrice(id, 3);
+        }
+
+        // Loading the snapshot reads those changes, so nothing else is fetched
+        long queries = getQueryCalls();
+        readTotals(mProductReports);
+        int pages = CATALOG_SIZE / CatalogSnapshot.LOAD_PAGE_SIZE + 1;
+        assertEquals(pages, getQueryCalls() - queries);
+        assertTotalsMatchQueries();
+    }
+
+    private long insert(String name, long cents, int quantity, int reorderThreshold, String supplierName) {
+        ContentValues values = TestProducts.product(name, cents, quantity, supplierName, "555-0100");
+        values.put(ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD, reorderThreshold);
+        return ContentUris.parseId(mContentResolver.insert(ProductEntry.CONTENT_URI, values));
+    }
+
+    private void updatePrice(long id, long cents) {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, cents);
+        Uri uri = ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id);
+        assertEquals(1, mContentResolver.update(uri, values, null, null));
+    }
+
+    private static void readTotals(ProductReports reports) {
+        reports.getTotalValue();
+        reports.getLowStockCount();
+        reports.getValueBySupplier();
+    }
+
+    /**
+     * Check the totals against new reports, whose first totals are computed in SQL.
+     */
+    private void assertTotalsMatchQueries() {
+        ProductReports queried = new ProductReports(mContentResolver);
+        try {
+            assertEquals(queried.getTotalValue(), mProductReports.getTotalValue());
+            assertEquals(queried.getLowStockCount(), mProductReports.getLowStockCount());
+            List<ProductReports.SupplierTotal> expected = queried.getValueBySupplier();
+            List<ProductReports.SupplierTotal> actual = mProductReports.getValueBySupplier();
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertSupplier(actual.get(i), expected.get(i).getName(), expected.get(i).getProductCount(),
+                        expected.get(i).getQuantity(), expected.get(i).getValue());
+            }
+        } finally {
+            queried.close();
+        }
+    }
+
+    private static void assertSupplier(ProductReports.SupplierTotal supplier, String name, int productCount,
+                                       long quantity, long value) {
+        assertEquals(name, supplier.getName());
+        assertEquals(productCount, supplier.getProductCount());
+        assertEquals(quantity, supplier.getQuantity());
+        assertEquals(value, supplier.getValue());
+    }
+
+    private long getQueryCalls() {
+        return getQueryMetric(ProductContract.EXTRA_METRIC_CALLS);
+    }
+
+    private long getQueryRows() {
+        return getQueryMetric(ProductContract.EXTRA_METRIC_ROWS);
+    }
+
+    private long getQueryMetric(String key) {
+        Bundle metrics = mContentResolver.call(ProductEntry.CONTENT_URI, ProductContract.METHOD_GET_METRICS,
+                null, null);
+        int query = Arrays.asList(metrics.getStringArray(ProductContract.EXTRA_METRIC_OPERATIONS)).indexOf("query");
+        return metrics.getLongArray(key)[query];
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.inventory.ProductProvider;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.SupplierEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ProductSearchTest {
+
+    private ContentResolver mContentResolver;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void search_ranksNameMatchesFirst() {
+        insert("Nut driver", "Boltworks");
+        insert("Bolt cutter", "Acme");
+        insert("Bolt", "Nutco");
+        insert("Washer", "Acme");
+
+        assertEquals(Arrays.asList("Bolt", "Bolt cutter", "Nut driver"), search("bol"));
+        assertEquals(Arrays.asList("Nut driver", "Bolt"), search("nut"));
+    }
+
+    @Test
+    public void search_matchesEveryWordAsAPrefix() {
+        insert("Bolt cutter", "Acme");
+        insert("Bolt", "Nutco");
+
+        assertEquals(Collections.singletonList("Bolt cutter"), search("cut bol"));
+        assertEquals(Collections.singletonList("Bolt cutter"), search("bolt acm"));
+        assertEquals(Collections.<String>emptyList(), search("bolt zinc"));
+    }
+
+    @Test
+    public void search_readsQuerySyntaxAsText() {
+        insert("Bolt", "Acme");
+
+        assertEquals(Collections.singletonList("Bolt"), search("\"bolt* -acme"));
+        assertEquals(Collections.<String>emptyList(), search("name:nut"));
+        assertEquals(Collections.<String>emptyList(), search("  "));
+    }
+
+    @Test
+    public void search_followsProductChanges() {
+        long id = insert("Bolt", "Acme");
+
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, "Hex screw");
+        mContentResolver.update(productUri(id), values, null, null);
+        assertEquals(Collections.<String>emptyList(), search("bolt"));
+        assertEquals(Collections.singletonList("Hex screw"), search("hex"));
+
+        values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME, "Brico");
+        values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE, "555-0101");
+        mContentResolver.update(productUri(id), values, null, null);
+        assertEquals(Collections.<String>emptyList(), search("acme"));
+        assertEquals(Collections.singletonList("Hex screw"), search("brico"));
+
+        mContentResolver.delete(productUri(id), null, null);
+        assertEquals(Collections.<String>emptyList(), search("hex"));
+    }
+
+    @Test
+    public void search_followsSupplierRenames() {
+        long id = insert("Bolt", "Acme");
+        insert("Nut", "Acme");
+        insert("Washer", "Brico");
+
+        ContentValues values = new ContentValues();
+        values.put(SupplierEntry.COLUMN_SUPPLIER_NAME, "Zenith");
+        Uri supplierUri = ContentUris.withAppendedId(SupplierEntry.CONTENT_URI, getSupplierId(id));
+        assertEquals(1, mContentResolver.update(supplierUri, values, null, null));
+
+        assertEquals(Collections.<String>emptyList(), search("acme"));
+        assertEquals(Arrays.asList("Nut", "Bolt"), search("zen"));
+    }
+
+    private long insert(String name, String supplierName) {
+        return ContentUris.parseId(mContentResolver.insert(ProductEntry.CONTENT_URI,
+                TestProducts.product(name, 100, 1, supplierName, "555-0100")));
+    }
+
+    private static Uri productUri(long id) {
+        return ContentUris.withAppendedId(ProductEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Return the names of the products the search finds, in the order it ranks them.
+     */
+    private List<String> search(String text) {
+        List<String> names = new ArrayList<>();
+        Cursor cursor = mContentResolver.query(ProductEntry.buildSearchUri(text),
+                new String[] { ProductEntry.COLUMN_PRODUCT_NAME }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    private long getSupplierId(long productId) {
+        Cursor cursor = mContentResolver.query(productUri(productId),
+                new String[] { ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
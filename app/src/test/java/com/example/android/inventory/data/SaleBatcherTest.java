@@ -0,0 +1,156 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+
+import com.example.android.inventory.ProductProvider;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class SaleBatcherTest {
+
+    /** Opening stock of the product sold */
+    private static final int STOCK = 10;
+
+    /** Let through once the test has checked what happens while a sale is being written */
+    private static CountDownLatch sRelease;
+
+    /** Counted down when a sale starts being written */
+    private static CountDownLatch sWriting;
+
+    private ContentResolver mContentResolver;
+    private SaleBatcher mSaleBatcher;
+    private long mId;
+    private int mFlushes;
+
+    /**
+     * The provider, with every sale held up until the test lets it through, as if it were queued
+     * behind a long write.
+     */
+    public static class SlowProductProvider extends ProductProvider {
+        @Override
+        public Bundle call(@NonNull String method, String arg, Bundle extras) {
+            if (ProductContract.METHOD_SELL_BATCH.equals(method)) {
+                sWriting.countDown();
+                try {
+                    sRelease.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.call(method, arg, extras);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        sRelease = new CountDownLatch(1);
+        sWriting = new CountDownLatch(1);
+        Robolectric.setupContentProvider(SlowProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+        mId = ContentUris.parseId(mContentResolver.insert(ProductEntry.CONTENT_URI,
+                TestProducts.product("Bolts", 1999, STOCK, "Acme", "555-0100")));
+        mSaleBatcher = new SaleBatcher(mContentResolver, new SaleBatcher.Listener() {
+            @Override
+            public void onSalesFlushed(long[] ids, int[] requested, int[] sold, int[] stockLevels) {
+                mFlushes++;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        // Don't leave the shared writer thread stuck for the next test
+        sRelease.countDown();
+    }
+
+    @Test
+    public void flush_returnsWithoutWaitingForTheWrite() throws InterruptedException {
+        mSaleBatcher.sell(mId);
+        mSaleBatcher.sell(mId);
+
+        mSaleBatcher.flush();
+
+        // The write has started and is held up, and the flush has already returned
+        assertTrue(sWriting.await(5, TimeUnit.SECONDS));
+        assertEquals(2, mSaleBatcher.getPending(mId));
+        assertEquals(STOCK, getQuantity());
+
+        sRelease.countDown();
+        waitForFlushes(1);
+        assertEquals(0, mSaleBatcher.getPending(mId));
+        assertEquals(STOCK - 2, getQuantity());
+    }
+
+    @Test
+    public void sell_flushesAfterTheDelay() {
+        sRelease.countDown();
+        mSaleBatcher.sell(mId);
+        mSaleBatcher.sell(mId);
+        mSaleBatcher.sell(mId);
+        ShadowLooper.idleMainLooper(SaleBatcher.FLUSH_DELAY_MILLIS - 1, TimeUnit.MILLISECONDS);
+        assertEquals(STOCK, getQuantity());
+
+        ShadowLooper.idleMainLooper(1, TimeUnit.MILLISECONDS);
+        waitForFlushes(1);
+        assertEquals(STOCK - 3, getQuantity());
+    }
+
+    @Test
+    public void sell_flushesAtTheThreshold() {
+        sRelease.countDown();
+        for (int i = 0; i < SaleBatcher.FLUSH_THRESHOLD; i++) {
+            mSaleBatcher.sell(mId);
+        }
+
+        // Stock ran out part way, so only what there was is sold
+        waitForFlushes(1);
+        assertEquals(0, getQuantity());
+        assertEquals(0, mSaleBatcher.getPending(mId));
+    }
+
+    /**
+     * Run the main looper until the listener has heard of the given number of flushes. The
+     * writes happen on the writer thread, so this waits in real time, not Robolectric's.
+     */
+    private void waitForFlushes(int count) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (mFlushes < count) {
+            if (System.nanoTime() > deadline) {
+                fail("Only " + mFlushes + " of " + count + " flushes were written");
+            }
+            ShadowLooper.runUiThreadTasks();
+            Thread.yield();
+        }
+    }
+
+    private int getQuantity() {
+        Cursor cursor = mContentResolver.query(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, mId),
+                new String[] { ProductEntry.COLUMN_PRODUCT_QUANTITY }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
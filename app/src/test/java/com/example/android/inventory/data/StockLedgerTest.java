@@ -0,0 +1,198 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.ProductContract.StockMovementEntry;
+import com.example.android.inventory.data.ProductContract.StockSnapshotEntry;
+import com.example.android.inventory.data.ProductContract.SupplierEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class StockLedgerTest {
+
+    private static final String DATABASE_NAME = "ledger-test.db";
+
+    private Context mContext;
+    private ProductDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+    private long mSupplierId;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new ProductDbHelper(mContext, DATABASE_NAME, false);
+        mDatabase = mDbHelper.getWritableDatabase();
+
+        ContentValues supplier = new ContentValues();
+        supplier.put(SupplierEntry.COLUMN_SUPPLIER_NAME, "Acme");
+        supplier.put(SupplierEntry.COLUMN_SUPPLIER_PHONE, "555-0100");
+        mSupplierId = mDatabase.insertOrThrow(SupplierEntry.TABLE_NAME, null, supplier);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void getStockAt_beforeBetweenAndAfterCheckpoints() {
+        long id = insertProduct();
+        move(id, 10, 1000);
+        move(id, -3, 2000);
+        checkpoint();
+        move(id, 5, 3000);
+        move(id, -2, 4000);
+        checkpoint();
+        move(id, -1, 5000);
+
+        // Before the first movement
+        assertEquals(0, getStockAt(id, 500));
+        // Before the first checkpoint, from the movements alone
+        assertEquals(10, getStockAt(id, 1500));
+        // At a checkpoint, and between two of them
+        assertEquals(7, getStockAt(id, 2000));
+        assertEquals(12, getStockAt(id, 3500));
+        assertEquals(10, getStockAt(id, 4000));
+        // After the last checkpoint
+        assertEquals(10, getStockAt(id, 4500));
+        assertEquals(9, getStockAt(id, 10000));
+    }
+
+    @Test
+    public void getStockAt_withSkewedTimestamps_countsMovementsAfterTheirCheckpoint() {
+        long id = insertProduct();
+        move(id, 10, 1000);
+        move(id, -3, 2000);
+        checkpoint();
+        // Recorded after the checkpoint, by a clock that had gone back
+        move(id, -4, 1500);
+        move(id, 5, 3000);
+        checkpoint();
+
+        // The skewed movement isn't counted before the checkpoint it was recorded after, and is
+        // counted from that checkpoint on, since its own time is earlier
+        assertEquals(10, getStockAt(id, 1800));
+        assertEquals(3, getStockAt(id, 2000));
+        assertEquals(3, getStockAt(id, 2500));
+        assertEquals(8, getStockAt(id, 3000));
+    }
+
+    @Test
+    public void getStockAt_onlyCountsTheGivenProduct() {
+        long bolts = insertProduct();
+        long nuts = insertProduct();
+        move(bolts, 10, 1000);
+        move(nuts, 20, 1000);
+        checkpoint();
+        move(nuts, -5, 2000);
+
+        assertEquals(10, getStockAt(bolts, 3000));
+        assertEquals(15, getStockAt(nuts, 3000));
+    }
+
+    @Test
+    public void checkpointIfDue_waitsForTheInterval() {
+        long bolts = insertProduct();
+        long nuts = insertProduct();
+        move(nuts, 1, 1000);
+        for (int i = 1; i < StockMovementEntry.CHECKPOINT_INTERVAL - 1; i++) {
+            move(bolts, 2, 1000 + i);
+        }
+        assertEquals(0, checkpointIfDue());
+
+        // Both products moved since the start
+        move(bolts, 1, 5000);
+        assertEquals(2, checkpointIfDue());
+        assertEquals(0, checkpointIfDue());
+
+        // Only one product moved since the last checkpoint
+        for (int i = 0; i < StockMovementEntry.CHECKPOINT_INTERVAL - 1; i++) {
+            move(bolts, -1, 6000 + i);
+        }
+        assertEquals(0, checkpointIfDue());
+        move(bolts, -1, 9000);
+        assertEquals(1, checkpointIfDue());
+
+        assertEquals(3, DatabaseUtils.queryNumEntries(mDatabase, StockSnapshotEntry.TABLE_NAME));
+        assertEquals(getQuantity(bolts), getStockAt(bolts, 10000));
+        assertEquals(1, getStockAt(nuts, 10000));
+    }
+
+    private long insertProduct() {
+        ContentValues product = new ContentValues();
+        product.put(ProductEntry.COLUMN_PRODUCT_NAME, "Bolts");
+        product.put(ProductEntry.COLUMN_PRODUCT_PRICE, 100);
+        product.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, 0);
+        product.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_ID, mSupplierId);
+        return mDatabase.insertOrThrow(ProductEntry.TABLE_NAME, null, product);
+    }
+
+    /**
+     * Change a product's quantity, recording the movement as the provider does, and give the
+     * movement the given time in place of the ledger's.
+     */
+    private void move(long productId, int quantity, long timestamp) {
+        mDatabase.beginTransaction();
+        StockLedger ledger = new StockLedger(mDatabase);
+        try {
+            ledger.record(productId, quantity > 0 ? StockMovementEntry.TYPE_RECEIPT : StockMovementEntry.TYPE_SALE,
+                    quantity);
+            mDatabase.execSQL("UPDATE " + ProductEntry.TABLE_NAME + " SET " + ProductEntry.COLUMN_PRODUCT_QUANTITY +
+                    " = " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " + ? WHERE " + ProductEntry._ID + " = ?",
+                    new Object[] { quantity, productId });
+            mDatabase.execSQL("UPDATE " + StockMovementEntry.TABLE_NAME + " SET " +
+                    StockMovementEntry.COLUMN_MOVEMENT_TIMESTAMP + " = ? WHERE " + StockMovementEntry._ID +
+                    " = (SELECT MAX(" + StockMovementEntry._ID + ") FROM " + StockMovementEntry.TABLE_NAME + ")",
+                    new Object[] { timestamp });
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+            ledger.close();
+        }
+    }
+
+    private void checkpoint() {
+        mDatabase.beginTransaction();
+        try {
+            new StockLedger(mDatabase).checkpoint();
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    private int checkpointIfDue() {
+        mDatabase.beginTransaction();
+        try {
+            int snapshots = new StockLedger(mDatabase).checkpointIfDue();
+            mDatabase.setTransactionSuccessful();
+            return snapshots;
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    private long getQuantity(long productId) {
+        return DatabaseUtils.longForQuery(mDatabase, "SELECT " + ProductEntry.COLUMN_PRODUCT_QUANTITY + " FROM " +
+                ProductEntry.TABLE_NAME + " WHERE " + ProductEntry._ID + " = ?",
+                new String[] { String.valueOf(productId) });
+    }
+
+    private long getStockAt(long productId, long timestamp) {
+        return StockLedger.getStockAt(mDatabase, productId, timestamp);
+    }
+}
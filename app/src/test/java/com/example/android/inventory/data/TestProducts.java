@@ -0,0 +1,52 @@
+package com.example.android.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+
+/**
+ * Builds products for tests, and fills the products table with them.
+ */
+public final class TestProducts {
+
+    /** Products inserted per bulk insert by {@link #insert} */
+    private static final int CHUNK_SIZE = 1000;
+
+    private TestProducts() {}
+
+    /**
+     * Return the content values of a product.
+     */
+    public static ContentValues product(String name, long cents, int quantity, String supplierName,
+                                        String supplierPhone) {
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, cents);
+        values.put(ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME, supplierName);
+        values.put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE, supplierPhone);
+        return values;
+    }
+
+    /**
+     * Return the content values of the product numbered i, which has one of ten suppliers.
+     */
+    public static ContentValues product(int i) {
+        return product(String.format("Product %07d", i), 100 + i % 10000, i % 50,
+                "Supplier " + i % 10, "555-01" + String.format("%02d", i % 10));
+    }
+
+    /**
+     * Insert the given number of numbered products, as {@link #product(int)} describes.
+     */
+    public static void insert(ContentResolver contentResolver, int count) {
+        for (int first = 0; first < count; first += CHUNK_SIZE) {
+            ContentValues[] chunk = new ContentValues[Math.min(CHUNK_SIZE, count - first)];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = product(first + i);
+            }
+            contentResolver.bulkInsert(ProductEntry.CONTENT_URI, chunk);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.example.android.inventory.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.inventory.ProductProvider;
+import com.example.android.inventory.data.ProductContract;
+import com.example.android.inventory.data.ProductContract.ProductEntry;
+import com.example.android.inventory.data.TestProducts;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class SyncEngineTest {
+
+    /** Products in the catalog, several batches of them */
+    private static final int CATALOG_SIZE = 1200;
+
+    /** Products per batch, from res/values/sync.xml */
+    private static final int BATCH_SIZE = 500;
+
+    private ContentResolver mContentResolver;
+    private MockWebServer mServer;
+    private FakeSyncServer mSyncServer;
+    private SyncEngine mSyncEngine;
+
+    @Before
+    public void setUp() throws IOException {
+        Robolectric.setupContentProvider(ProductProvider.class, ProductContract.CONTENT_AUTHORITY);
+        mContentResolver = RuntimeEnvironment.application.getContentResolver();
+
+        mSyncServer = new FakeSyncServer();
+        mServer = new MockWebServer();
+        mServer.setDispatcher(mSyncServer);
+        mServer.start();
+        mSyncEngine = new SyncEngine(RuntimeEnvironment.application, mServer.url("/").toString());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void sync_afterSmallEdit_sendsOnlyTheEditedProduct() throws Exception {
+        TestProducts.insert(mContentResolver, CATALOG_SIZE);
+        mSyncEngine.sync();
+        assertEquals(3, mSyncServer.mPushes.size());
+        assertEquals(CATALOG_SIZE, countProducts(mSyncServer.mPushes));
+        long catalogBytes = mSyncServer.mPushedBytes;
+
+        ContentValues values = new ContentValues();
+        values.put(ProductEntry.COLUMN_PRODUCT_PRICE, 4321);
+        mContentResolver.update(ContentUris.withAppendedId(ProductEntry.CONTENT_URI, 7), values, null, null);
+        mSyncServer.reset();
+        mSyncEngine.sync();
+
+        assertEquals(1, mSyncServer.mPushes.size());
+        JSONArray products = mSyncServer.mPushes.get(0).getJSONArray("products");
+        assertEquals(1, products.length());
+        assertEquals(4321, products.getJSONObject(0).getLong(ProductEntry.COLUMN_PRODUCT_PRICE));
+        assertTrue("Pushing one product sent " + mSyncServer.mPushedBytes + " bytes",
+                mSyncServer.mPushedBytes < 1024);
+        assertTrue("Pushing the catalog sent only " + catalogBytes + " bytes",
+                mSyncServer.mPushedBytes * 20 < catalogBytes);
+
+        // Nothing changed since, so nothing is sent
+        mSyncServer.reset();
+        mSyncEngine.sync();
+        assertEquals(0, mSyncServer.mPushes.size());
+    }
+
+    @Test
+    public void sync_retriesWhenTheServerIsBusy() throws Exception {
+        TestProducts.insert(mContentResolver, 10);
+        mSyncServer.mFailures.add(new MockResponse().setResponseCode(503));
+        mSyncServer.mFailures.add(new MockResponse().setResponseCode(503));
+
+        mSyncEngine.sync();
+
+        assertEquals(1, mSyncServer.mPushes.size());
+        assertEquals(10, countProducts(mSyncServer.mPushes));
+        assertEquals(3, mSyncServer.mPushAttempts);
+    }
+
+    @Test
+    public void sync_afterFailedBatch_resumesFromThatBatch() throws Exception {
+        TestProducts.insert(mContentResolver, CATALOG_SIZE);
+        mSyncServer.mFailAfterPushes = 1;
+        try {
+            mSyncEngine.sync();
+            fail("Sync should have failed");
+        } catch (SyncClient.HttpStatusException expected) {
+            assertEquals(400, expected.mStatus);
+        }
+        assertEquals(1, mSyncServer.mPushes.size());
+        Set<String> firstBatch = getSyncIds(mSyncServer.mPushes);
+        assertEquals(BATCH_SIZE, firstBatch.size());
+
+        mSyncServer.reset();
+        mSyncEngine.sync();
+
+        assertEquals(2, mSyncServer.mPushes.size());
+        Set<String> rest = getSyncIds(mSyncServer.mPushes);
+        assertEquals(CATALOG_SIZE - BATCH_SIZE, rest.size());
+        assertTrue(Collections.disjoint(firstBatch, rest));
+    }
+
+    @Test
+    public void sync_appliesChangesFromOtherDevices() throws Exception {
+        mContentResolver.insert(ProductEntry.CONTENT_URI,
+                TestProducts.product("Bolts", 1999, 3, "Acme", "555-0100"));
+        String localSyncId = getLocalSyncIds().get(0);
+
+        JSONObject product = new JSONObject()
+                .put(ProductEntry.COLUMN_PRODUCT_SYNC_ID, "0123456789abcdef0123456789abcdef")
+                .put(ProductEntry.COLUMN_PRODUCT_NAME, "Nuts")
+                .put(ProductEntry.COLUMN_PRODUCT_PRICE, 10)
+                .put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME, "Acme")
+                .put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE, "555-0100")
+                .put(ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD, 2)
+                .put(ProductEntry.COLUMN_PRODUCT_SKU, JSONObject.NULL)
+                .put(ProductEntry.COLUMN_PRODUCT_UPDATED_AT, 1500000000000L)
+                .put("counters", new JSONArray().put(new JSONObject()
+                        .put("deviceId", "till-2")
+                        .put("increments", 10)
+                        .put("decrements", 3)));
+        mSyncServer.mChanges.add(new JSONObject()
+                .put("products", new JSONArray().put(product))
+                .put("next", "1")
+                .put("more", true));
+        mSyncServer.mChanges.add(new JSONObject()
+                .put("deleted", new JSONArray().put(new JSONObject().put("syncId", localSyncId)))
+                .put("next", "2")
+                .put("more", false));
+
+        mSyncEngine.sync();
+
+        assertEquals(1, mSyncServer.mPushes.size());
+        assertEquals(2, mSyncServer.mPulls.size());
+        assertTrue(mSyncServer.mPulls.get(1).contains("since=1"));
+        Cursor cursor = mContentResolver.query(ProductEntry.CONTENT_URI, new String[] {
+                ProductEntry.COLUMN_PRODUCT_NAME,
+                ProductEntry.COLUMN_PRODUCT_QUANTITY,
+        }, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("Nuts", cursor.getString(0));
+            assertEquals(7, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+
+        // Pulled changes aren't pushed back, and the next pull starts after them
+        mSyncServer.reset();
+        mSyncEngine.sync();
+        assertEquals(0, mSyncServer.mPushes.size());
+        assertTrue(mSyncServer.mPulls.get(0).contains("since=2"));
+    }
+
+    @Test
+    public void sync_whenPulledSkuIsTakenHere_keepsBothProducts() throws Exception {
+        ContentValues local = TestProducts.product("Bolts", 1999, 3, "Acme", "555-0100");
+        local.put(ProductEntry.COLUMN_PRODUCT_SKU, "4006381333931");
+        mContentResolver.insert(ProductEntry.CONTENT_URI, local);
+
+        // Another till registered the same barcode for a product of its own, and a third one
+        // registered it again
+        mSyncServer.mChanges.add(new JSONObject()
+                .put("products", new JSONArray()
+                        .put(remoteProduct("0123456789abcdef0123456789abcdef", "Nuts", "4006381333931"))
+                        .put(remoteProduct("fedcba9876543210fedcba9876543210", "Washers", "4006381333931")))
+                .put("next", "1")
+                .put("more", false));
+
+        mSyncEngine.sync();
+
+        Cursor cursor = mContentResolver.query(ProductEntry.CONTENT_URI, new String[] {
+                ProductEntry.COLUMN_PRODUCT_NAME,
+                ProductEntry.COLUMN_PRODUCT_SKU,
+        }, null, null, ProductEntry.COLUMN_PRODUCT_NAME);
+        try {
+            assertEquals(3, cursor.getCount());
+            cursor.moveToNext();
+            assertEquals("Bolts", cursor.getString(0));
+            assertEquals("4006381333931", cursor.getString(1));
+            cursor.moveToNext();
+            assertEquals("Nuts", cursor.getString(0));
+            assertTrue(cursor.isNull(1));
+            cursor.moveToNext();
+            assertEquals("Washers", cursor.getString(0));
+            assertTrue(cursor.isNull(1));
+        } finally {
+            cursor.close();
+        }
+
+        // The batch was applied, so the next pull starts after it
+        mSyncServer.reset();
+        mSyncEngine.sync();
+        assertTrue(mSyncServer.mPulls.get(0).contains("since=1"));
+    }
+
+    private static JSONObject remoteProduct(String syncId, String name, String sku) throws JSONException {
+        return new JSONObject()
+                .put(ProductEntry.COLUMN_PRODUCT_SYNC_ID, syncId)
+                .put(ProductEntry.COLUMN_PRODUCT_NAME, name)
+                .put(ProductEntry.COLUMN_PRODUCT_PRICE, 10)
+                .put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_NAME, "Acme")
+                .put(ProductEntry.COLUMN_PRODUCT_SUPPLIER_PHONE, "555-0100")
+                .put(ProductEntry.COLUMN_PRODUCT_REORDER_THRESHOLD, 2)
+                .put(ProductEntry.COLUMN_PRODUCT_SKU, sku)
+                .put(ProductEntry.COLUMN_PRODUCT_UPDATED_AT, 1500000000000L)
+                .put("counters", new JSONArray());
+    }
+
+    private static int countProducts(List<JSONObject> pushes) throws JSONException {
+        int count = 0;
+        for (JSONObject push : pushes) {
+            count += push.getJSONArray("products").length();
+        }
+        return count;
+    }
+
+    private static Set<String> getSyncIds(List<JSONObject> pushes) throws JSONException {
+        Set<String> syncIds = new HashSet<>();
+        for (JSONObject push : pushes) {
+            JSONArray products = push.getJSONArray("products");
+            for (int i = 0; i < products.length(); i++) {
+                syncIds.add(products.getJSONObject(i).getString(ProductEntry.COLUMN_PRODUCT_SYNC_ID));
+            }
+        }
+        return syncIds;
+    }
+
+    private List<String> getLocalSyncIds() {
+        List<String> syncIds = new ArrayList<>();
+        Cursor cursor = mContentResolver.query(ProductEntry.CONTENT_URI,
+                new String[] { ProductEntry.COLUMN_PRODUCT_SYNC_ID }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                syncIds.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return syncIds;
+    }
+
+    /**
+     * Answers as the sync server does, recording what is pushed to it and handing out the
+     * changes it is given, followed by an empty answer.
+     */
+    private static class FakeSyncServer extends Dispatcher {
+        final List<JSONObject> mPushes = new ArrayList<>();
+        final List<String> mPulls = new ArrayList<>();
+        final Queue<JSONObject> mChanges = new LinkedList<>();
+        final Queue<MockResponse> mFailures = new LinkedList<>();
+        long mPushedBytes;
+        int mPushAttempts;
+        int mFailAfterPushes = -1;
+
+        /**
+         * Forget the requests made so far, and stop failing.
+         */
+        synchronized void reset() {
+            mPushes.clear();
+            mPulls.clear();
+            mPushedBytes = 0;
+            mPushAttempts = 0;
+            mFailAfterPushes = -1;
+        }
+
+        @Override
+        public synchronized MockResponse dispatch(RecordedRequest request) {
+            try {
+                if ("POST".equals(request.getMethod())) {
+                    mPushAttempts++;
+                    if (!mFailures.isEmpty()) {
+                        return mFailures.remove();
+                    }
+                    if (mPushes.size() == mFailAfterPushes) {
+                        return new MockResponse().setResponseCode(400);
+                    }
+                    if (!"gzip".equals(request.getHeader("Content-Encoding"))) {
+                        return new MockResponse().setResponseCode(415);
+                    }
+                    mPushedBytes += request.getBodySize();
+                    mPushes.add(new JSONObject(gunzip(request.getBody().inputStream())));
+                    return new MockResponse().setBody("{}");
+                }
+
+                mPulls.add(request.getPath());
+                JSONObject changes = mChanges.poll();
+                if (changes == null) {
+                    String since = request.getRequestUrl().queryParameter("since");
+                    changes = new JSONObject().put("next", since).put("more", false);
+                }
+                return new MockResponse().setBody(changes.toString());
+            } catch (IOException | JSONException ex) {
+                return new MockResponse().setResponseCode(400).setBody(ex.toString());
+            }
+        }
+
+        private static String gunzip(InputStream body) throws IOException {
+            InputStream in = new GZIPInputStream(body);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}